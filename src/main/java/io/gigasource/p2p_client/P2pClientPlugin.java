@@ -2,7 +2,12 @@ package io.gigasource.p2p_client;
 
 import io.gigasource.p2p_client.api.Core;
 import io.gigasource.p2p_client.api.Service;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler;
+import io.gigasource.p2p_client.api.object.message.PayloadCodec;
+import io.gigasource.p2p_client.api.object.stream.BroadcastStream;
+import io.gigasource.p2p_client.api.object.stream.ChunkCodec;
 import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.api.object.stream.FileTransfer;
 import io.gigasource.p2p_client.api.Message;
 import io.gigasource.p2p_client.api.Stream;
 import io.gigasource.p2p_client.exception.P2pStreamException;
@@ -10,9 +15,19 @@ import io.gigasource.p2p_client.exception.TargetClientException;
 import io.socket.client.Manager;
 import io.socket.client.Socket;
 import io.socket.emitter.Emitter;
+import java9.util.concurrent.CompletableFuture;
 import java9.util.function.Consumer;
+import java9.util.function.Function;
 import org.apache.commons.lang3.reflect.FieldUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
 
 public class P2pClientPlugin extends Socket {
     private Core coreApi;
@@ -59,6 +74,18 @@ public class P2pClientPlugin extends Socket {
     public void addP2pTarget(String targetClientId) throws TargetClientException {
         messageApi.addP2pTarget(targetClientId);
     }
+    public CompletableFuture<Void> addP2pTargetAsync(String targetClientId) {
+        return messageApi.addP2pTargetAsync(targetClientId);
+    }
+    public Map<String, TargetClientException> addP2pTargets(Collection<String> targetClientIds) throws TargetClientException {
+        return messageApi.addP2pTargets(targetClientIds);
+    }
+    public CompletableFuture<Map<String, TargetClientException>> addP2pTargetsAsync(Collection<String> targetClientIds) {
+        return messageApi.addP2pTargetsAsync(targetClientIds);
+    }
+    public void setAckTimeout(long timeout, TimeUnit unit) {
+        messageApi.setAckTimeout(timeout, unit);
+    }
     public void onAddP2pTarget(Consumer<String> callback) {
         messageApi.onAddP2pTarget(callback);
     }
@@ -68,6 +95,30 @@ public class P2pClientPlugin extends Socket {
     public void emitTo(String targetClientId, String event, Object... args) {
         messageApi.emitTo(targetClientId, event, args);
     }
+    public void emitToMany(Collection<String> targetClientIds, String event, Object... args) {
+        messageApi.emitToMany(targetClientIds, event, args);
+    }
+    public CompletableFuture<Map<String, Object[]>> emitToManyWithAck(Collection<String> targetClientIds, String event, Object... args) {
+        return messageApi.emitToManyWithAck(targetClientIds, event, args);
+    }
+    public void registerPayloadCodec(PayloadCodec codec) {
+        messageApi.registerPayloadCodec(codec);
+    }
+    public CompletableFuture<String> negotiatePayloadCodec(String targetClientId) {
+        return messageApi.negotiatePayloadCodec(targetClientId);
+    }
+    public OutboundScheduler getOutboundScheduler() { return messageApi.getOutboundScheduler(); }
+    public boolean isWritable() { return messageApi.isWritable(); }
+    public void setGlobalRateLimit(double messagesPerSecond, double bytesPerSecond) {
+        messageApi.getRateLimiter().setGlobalLimit(messagesPerSecond, bytesPerSecond);
+    }
+    public void setTargetRateLimit(String targetClientId, double messagesPerSecond, double bytesPerSecond) {
+        messageApi.getRateLimiter().setTargetLimit(targetClientId, messagesPerSecond, bytesPerSecond);
+    }
+    public void onDrain(Consumer<Void> callback) { messageApi.onDrain(callback); }
+    public void setCompactEventsEnabled(boolean compactEventsEnabled) { messageApi.setCompactEventsEnabled(compactEventsEnabled); }
+    public void enableOutbox(File file, int capacity) throws IOException { messageApi.enableOutbox(file, capacity); }
+    public void disableOutbox() throws IOException { messageApi.disableOutbox(); }
     public String getClientId() { return messageApi.getClientId(); };
     public void onAny(String event, Emitter.Listener callback) {messageApi.onAny(event, callback);}
     public void onceAny(String event, Emitter.Listener callback) {messageApi.onceAny(event, callback);}
@@ -78,17 +129,59 @@ public class P2pClientPlugin extends Socket {
     public Duplex addP2pStream(String targetClientId) throws P2pStreamException {
         return streamApi.addP2pStream(targetClientId);
     }
+    public CompletableFuture<Duplex> addP2pStreamAsync(String targetClientId) {
+        return streamApi.addP2pStreamAsync(targetClientId);
+    }
+    public Duplex openP2pStream(String targetClientId, byte[] earlyData) {
+        return streamApi.openP2pStream(targetClientId, earlyData);
+    }
     public void onAddP2pStream(Consumer<Duplex> callback) {
         streamApi.onAddP2pStream(callback);
     }
     public void offAddP2pStream() {
         streamApi.offAddP2pStream();
     }
+    public CompletableFuture<Duplex> leaseP2pStream(String targetClientId) {
+        return streamApi.leaseP2pStream(targetClientId);
+    }
+    public void releaseP2pStream(Duplex duplex) {
+        streamApi.releaseP2pStream(duplex);
+    }
+    public void setStreamPumpExecutor(Executor pumpExecutor) {
+        streamApi.setPumpExecutor(pumpExecutor);
+    }
+    public void setStreamResumeTimeout(long timeout, TimeUnit unit) {
+        streamApi.setResumeTimeout(timeout, unit);
+    }
+    public void setCompressStreams(boolean compressStreams) {
+        streamApi.setCompressStreams(compressStreams);
+    }
+    public void registerChunkCodec(ChunkCodec codec) {
+        streamApi.registerChunkCodec(codec);
+    }
+    public FileTransfer sendFile(String targetClientId, File file) {
+        return streamApi.sendFile(targetClientId, file);
+    }
+    public FileTransfer sendFile(String targetClientId, File file, int parallelism, long segmentSize) {
+        return streamApi.sendFile(targetClientId, file, parallelism, segmentSize);
+    }
+    public BroadcastStream broadcast(Collection<String> targetClientIds, InputStream source, long maxLag) {
+        return streamApi.broadcast(targetClientIds, source, maxLag);
+    }
+    public void onReceiveFile(Function<FileTransfer, File> destinationOf) {
+        streamApi.onReceiveFile(destinationOf);
+    }
+    public void offReceiveFile() {
+        streamApi.offReceiveFile();
+    }
 
     // Service API
     public void emitService(String serviceName, String api, Object... args) {
         serviceApi.emitService(serviceName, api, args);
     }
+    public void setServiceRateLimit(String serviceName, double messagesPerSecond, double bytesPerSecond) {
+        serviceApi.setServiceRateLimit(serviceName, messagesPerSecond, bytesPerSecond);
+    }
     public void onService(String serviceName, String api, Emitter.Listener callback) {
         serviceApi.onService(serviceName, api, callback);
     }
@@ -1,70 +1,246 @@
 package io.gigasource.p2p_client.api;
 
+import io.gigasource.p2p_client.api.object.message.BinaryPayloadCodec;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.api.object.message.EventDictionary;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler;
+import io.gigasource.p2p_client.api.object.message.Outbox;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.Lane;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.OverflowPolicy;
+import io.gigasource.p2p_client.api.object.message.PayloadCodec;
+import io.gigasource.p2p_client.api.object.message.RateLimiter;
+import io.gigasource.p2p_client.api.object.stream.StreamMultiplexer;
 import io.gigasource.p2p_client.constants.SocketEvent;
 import io.gigasource.p2p_client.exception.TargetClientException;
 import io.socket.client.Ack;
 import io.socket.client.Socket;
 import io.socket.emitter.Emitter;
 import java9.util.function.Consumer;
-import org.apache.commons.lang3.ArrayUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java9.util.concurrent.CompletableFuture;
+import java9.util.concurrent.CompletionException;
 
 public class Message {
+    public static final long DEFAULT_ACK_TIMEOUT = 30000; // ms
+
     private Socket socket;
     private String clientId;
     private String currentTargetId;
-    private Map<String, List<Listener>> listenerMap;  // used for listeners created with from().on(), from().once();
-    private Map<String, List<Listener>> listenerMapAny; // used for listeners created with onAny(), onceAny();
-
-    // Example of listenerMap in JSON:
-    // this.listenerMap = {
-    //   clientA: [{event: 'getData', callback: () => {}, newCallback: () => {}}],
-    //   clientB: [{event: 'doSomething', callback: () => {}, newCallback: () => {}}],
-    // }
-
-    // Example of listenerMapAny in JSON:
-    // this.listenerMapAny = {
-    //   getData: [{callback: () => {}, newCallback: () => {}}],
-    //   doSomething: [{callback: () => {}, newCallback: () => {}}],
+    private volatile long ackTimeout = DEFAULT_ACK_TIMEOUT; // ms
+    private volatile boolean multiEmitEnabled;
+    private volatile boolean compactEventsEnabled;
+    private EventDictionary eventDictionary;
+    private OutboundScheduler outboundScheduler;
+    private RateLimiter rateLimiter;
+    private Map<String, EventRouter> routerMap; // one socket listener per event, shared by from().on() and onAny()
+    private Map<String, PayloadCodec> payloadCodecs; // codec name -> codec, in order of preference
+    private Map<String, PayloadCodec> targetCodecs; // targetClientId -> codec negotiated with that target
+    private volatile Outbox outbox;
+    private Map<Long, Ack> outboxAcks; // outbox id -> ack given to emitTo, called at most once
+    private Set<Long> unackedOutboxIds; // journaled messages sent with an ack which has not arrived yet
+    private StreamMultiplexer streamMultiplexer;
+
+    // Example of routerMap in JSON:
+    // this.routerMap = {
+    //   getData: {
+    //     targetListeners: {
+    //       clientA: [{event: 'getData', callback: () => {}, once: false}],
+    //       clientB: [{event: 'getData', callback: () => {}, once: true}],
+    //     },
+    //     anyListeners: [{event: 'getData', callback: () => {}, once: false}],
+    //   },
     // }
 
     public Message(Socket socket, String clientId) {
         this.socket = socket;
         this.clientId = clientId;
-        listenerMap = new HashMap<>();
-        listenerMapAny = new HashMap<>();
+        outboundScheduler = new OutboundScheduler(socket);
+        rateLimiter = new RateLimiter(outboundScheduler);
+        routerMap = new ConcurrentHashMap<>();
+        payloadCodecs = Collections.synchronizedMap(new LinkedHashMap<>());
+        targetCodecs = new ConcurrentHashMap<>();
+        eventDictionary = new EventDictionary();
+        registerPayloadCodec(new BinaryPayloadCodec());
+        outboxAcks = new ConcurrentHashMap<>();
+        unackedOutboxIds = ConcurrentHashMap.newKeySet();
+
+        // registered after the scheduler's handler, so the resent messages are queued once the scheduler was reset
+        socket.on(Socket.EVENT_DISCONNECT, (args) -> {
+            eventDictionary.resetTargets(); // the targets forget our aliases when told we disconnected
+            resendUnackedOutboxEntries();
+        });
 
         socket.on(SocketEvent.MULTI_API_TARGET_DISCONNECT, (args) -> {
             String targetClientId = (String) args[0];
-            List<Listener> listeners = listenerMap.get(targetClientId);
+            targetCodecs.remove(targetClientId); // the peer may come back with a different client
+            eventDictionary.resetTarget(targetClientId);
+            eventDictionary.forgetPeer(targetClientId);
+
+            synchronized (this) {
+                for (EventRouter router : new ArrayList<>(routerMap.values())) {
+                    router.targetListeners.remove(targetClientId);
+                    detachIfEmpty(router);
+                }
+            }
+        });
 
-            if (listeners == null) return;
+        socket.on(SocketEvent.SERVER_ERROR, (args) -> System.err.println(args[0]));
 
-            for (Listener listener : listeners) socket.off(listener.getEvent(), listener.getNewCallback());
+        // peer offers codecs in order of preference, the first one we know is used from now on in both directions
+        socket.on(SocketEvent.P2P_NEGOTIATE_CODEC, (args) -> {
+            String targetClientId = (String) args[0];
+            JSONArray offeredCodecs = (JSONArray) args[1];
+            Ack ack = (Ack) args[args.length - 1];
+
+            for (int i = 0; i < offeredCodecs.length(); i++) {
+                PayloadCodec codec = payloadCodecs.get(offeredCodecs.optString(i));
+                if (codec != null) {
+                    targetCodecs.put(targetClientId, codec);
+                    ack.call(codec.getName());
+                    return;
+                }
+            }
 
-            listenerMap.remove(targetClientId);
+            targetCodecs.remove(targetClientId);
+            ack.call(PayloadCodec.JSON);
         });
 
-        socket.on(SocketEvent.SERVER_ERROR, (args) -> System.err.println(args[0]));
+        socket.on(SocketEvent.P2P_DEFINE_EVENT, (args) -> {
+            Ack ack = (Ack) args[args.length - 1];
+            int alias = args.length > 3 && args[1] instanceof String && args[2] instanceof Number
+                    ? eventDictionary.define((String) args[0], (String) args[1], ((Number) args[2]).intValue())
+                    : -1;
+
+            // the sender keeps sending the event by name
+            if (alias < 0) ack.call("Invalid definition of event id " + (args.length > 2 ? args[2] : null));
+            else ack.call(alias);
+        });
+
+        socket.on(SocketEvent.P2P_COMPACT_EMIT, (args) -> routeCompact(args, false));
+        socket.on(SocketEvent.P2P_COMPACT_CODEC_EMIT, (args) -> routeCompact(args, true));
+
+        // [sender, event, codec name, encoded args, (ack)]
+        socket.on(SocketEvent.P2P_CODEC_EMIT, (args) -> {
+            EventRouter router = routerMap.get(String.valueOf(args[1]));
+            if (router != null) router.route((String) args[0], args, 3, String.valueOf(args[2]));
+        });
+
+        socket.on(SocketEvent.P2P_RESET_EVENT_IDS, (args) -> eventDictionary.resetTarget((String) args[0]));
+    }
+
+    // [alias, event id, (codec name if encoded), args..., (ack)]
+    private void routeCompact(Object[] args, boolean encoded) {
+        int alias = ((Number) args[0]).intValue();
+        String senderClientId = eventDictionary.resolvePeer(alias);
+        String event = eventDictionary.resolveEvent(alias, ((Number) args[1]).intValue());
+
+        if (event == null) {
+            // the sender uses ids we don't know (anymore), it has to define them again
+            System.err.println("Dropped a message with unknown event id " + args[1] + " from " + senderClientId);
+            if (senderClientId != null) resetEventIdsOf(senderClientId);
+            return;
+        }
+
+        EventRouter router = routerMap.get(event);
+        if (router == null) return;
+        if (encoded) router.route(senderClientId, args, 3, String.valueOf(args[2]));
+        else router.route(senderClientId, args, 2);
     }
 
     public void addP2pTarget(String targetClientId) throws TargetClientException {
+        try {
+            addP2pTargetAsync(targetClientId).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TargetClientException) throw (TargetClientException) e.getCause();
+            if (e.getCause() instanceof TimeoutException) {
+                throw new TargetClientException("Timed out while adding target " + targetClientId);
+            }
+            throw e;
+        }
+    }
+
+    public CompletableFuture<Void> addP2pTargetAsync(String targetClientId) {
+        return addP2pTargetAsync(targetClientId, ackTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    // The returned future fails with TargetClientException if the server refuses the target,
+    // or with TimeoutException if no ack arrives in time (timeout <= 0 waits forever)
+    public CompletableFuture<Void> addP2pTargetAsync(String targetClientId, long timeout, TimeUnit unit) {
         if (targetClientId == null) throw new IllegalArgumentException("targetClientId can not be null");
 
-        CompletableFuture<String> lock = new CompletableFuture<>();
+        CompletableFuture<Void> result = new CompletableFuture<>();
 
-        socket.emit(SocketEvent.MULTI_API_ADD_TARGET, targetClientId, (Ack) (args) -> {
-            if (args.length == 0) lock.complete(null);
-            else lock.complete(args[0].toString());
+        outboundScheduler.emit(Lane.CONTROL, SocketEvent.MULTI_API_ADD_TARGET, targetClientId, (Ack) (args) -> {
+            if (args.length == 0) result.complete(null);
+            else result.completeExceptionally(new TargetClientException(args[0].toString()));
         });
 
-        String err = lock.join();
-        if (err != null) throw new TargetClientException(err);
+        return timeout > 0 ? result.orTimeout(timeout, unit) : result;
+    }
+
+    // Returns the targets which could not be added, mapped to their error; an empty map means all targets were added
+    public Map<String, TargetClientException> addP2pTargets(Collection<String> targetClientIds) throws TargetClientException {
+        try {
+            return addP2pTargetsAsync(targetClientIds).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw new TargetClientException("Timed out while adding " + targetClientIds.size() + " targets");
+            }
+            throw e;
+        }
+    }
+
+    public CompletableFuture<Map<String, TargetClientException>> addP2pTargetsAsync(Collection<String> targetClientIds) {
+        return addP2pTargetsAsync(targetClientIds, ackTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    // Adds all targets with a single MULTI_API_ADD_TARGETS round trip.
+    // The server acks with nothing if every target was added, with {targetClientId: error} for the failed ones,
+    // or with a single error string if the whole batch was refused.
+    public CompletableFuture<Map<String, TargetClientException>> addP2pTargetsAsync(Collection<String> targetClientIds,
+                                                                                  long timeout, TimeUnit unit) {
+        if (targetClientIds == null) throw new IllegalArgumentException("targetClientIds can not be null");
+
+        Set<String> uniqueIds = new LinkedHashSet<>(targetClientIds);
+        if (uniqueIds.contains(null)) throw new IllegalArgumentException("targetClientId can not be null");
+
+        CompletableFuture<Map<String, TargetClientException>> result = new CompletableFuture<>();
+        if (uniqueIds.isEmpty()) {
+            result.complete(new HashMap<>());
+            return result;
+        }
+
+        outboundScheduler.emit(Lane.CONTROL, SocketEvent.MULTI_API_ADD_TARGETS, new JSONArray(uniqueIds), (Ack) (args) -> {
+            Map<String, TargetClientException> errors = new HashMap<>();
+
+            if (args.length > 0 && args[0] instanceof JSONObject) {
+                JSONObject errorMap = (JSONObject) args[0];
+                for (String targetClientId : uniqueIds) {
+                    Object err = errorMap.opt(targetClientId);
+                    if (err != null && err != JSONObject.NULL) {
+                        errors.put(targetClientId, new TargetClientException(err.toString()));
+                    }
+                }
+            } else if (args.length > 0 && args[0] != null) {
+                for (String targetClientId : uniqueIds) {
+                    errors.put(targetClientId, new TargetClientException(args[0].toString()));
+                }
+            }
+
+            result.complete(errors);
+        });
+
+        return timeout > 0 ? result.orTimeout(timeout, unit) : result;
     }
 
     public void onAddP2pTarget(Consumer<String> callback) {
@@ -79,189 +255,584 @@ public class Message {
     }
 
     public void onAny(String event, Emitter.Listener callback) {
-        Emitter.Listener newCallback = args -> {
-            Object[] newArgs = new Object[args.length - 1];
-            System.arraycopy(args, 1, newArgs, 0, args.length - 1);
-            callback.call(newArgs);
-        };
-
-        Listener listener = new Listener(callback, newCallback);
-
-        if (!this.listenerMapAny.containsKey(event)) {
-            this.listenerMapAny.put(event, new ArrayList<>());
-        }
-        this.listenerMapAny.get(event).add(listener);
-        socket.on(event, newCallback);
+        addAnyListener(new Listener(event, callback, false));
     }
 
     public void onceAny(String event, Emitter.Listener callback) {
-        Emitter.Listener newCallback = args -> {
-            Object[] newArgs = new Object[args.length - 1];
-            System.arraycopy(args, 1, newArgs, 0, args.length - 1);
-            callback.call(newArgs);
-
-            removeListeners(event, callback);
-        };
-
-        Listener listener = new Listener(callback, newCallback);
-
-        if (!this.listenerMapAny.containsKey(event)) {
-            this.listenerMapAny.put(event, new ArrayList<>());
-        }
-        this.listenerMapAny.get(event).add(listener);
-        socket.once(event, newCallback);
+        addAnyListener(new Listener(event, callback, true));
     }
 
-    public void offAny(String event, Emitter.Listener callback) {
+    public synchronized void offAny(String event, Emitter.Listener callback) {
         if (event == null && callback == null) {
-            for (String ev : listenerMapAny.keySet()) socket.off(ev);
-            listenerMapAny = new HashMap<>();
+            for (EventRouter router : new ArrayList<>(routerMap.values())) {
+                router.anyListeners.clear();
+                detachIfEmpty(router);
+            }
         } else {
-            List<Listener> listeners = listenerMapAny.get(event);
-            if (listeners == null) return;
+            EventRouter router = routerMap.get(event);
+            if (router == null) return;
 
-            if (callback != null) {
-                for (Listener listener : listeners) {
-                    if (listener.getCallback() == callback) socket.off(event, listener.getNewCallback());
-                }
-                removeListeners(event, callback);
-            } else {
-                socket.off(event);
-                listenerMapAny.remove(event);
-            }
+            if (callback != null) router.anyListeners.removeIf(listener -> listener.getCallback() == callback);
+            else router.anyListeners.clear();
+
+            detachIfEmpty(router);
         }
     }
 
+    // For events of the library's own protocols (e.g. the stream pool's lease): listener is told the sender, and
+    // neither off/offAny nor a disconnecting peer remove it
+    public synchronized void addProtocolListener(String event, PeerListener listener) {
+        getOrCreateRouter(event).protocolListeners.add(listener);
+    }
+
     public Message from(String targetClientId) {
         currentTargetId = targetClientId;
         return this;
     }
 
     public void on(String event, Emitter.Listener callback) {
+        addTargetListener(currentTargetId, new Listener(event, callback, false));
+    }
+
+    public void once(String event, Emitter.Listener callback) {
+        addTargetListener(currentTargetId, new Listener(event, callback, true));
+    }
+
+    public synchronized void off(String event, Emitter.Listener callback) {
         String targetId = currentTargetId;
-        Emitter.Listener newCallback = args -> {
-            if (!args[0].equals(targetId)) return;
+        EventRouter router = routerMap.get(event);
+        if (router == null || targetId == null) return;
 
-            Object[] newArgs = new Object[args.length - 1];
-            System.arraycopy(args, 1, newArgs, 0, args.length - 1);
-            callback.call(newArgs);
-        };
+        List<Listener> listeners = router.targetListeners.get(targetId);
+        if (listeners == null) return;
 
-        socket.on(event, newCallback);
+        if (callback != null) listeners.removeIf(listener -> listener.getCallback() == callback);
+        else listeners.clear();
 
-        if (!listenerMap.containsKey(targetId)) {
-            listenerMap.put(targetId, new ArrayList<>());
-        }
+        if (listeners.isEmpty()) router.targetListeners.remove(targetId);
+        detachIfEmpty(router);
+    }
 
-        Listener listener = new Listener(event, callback, newCallback);
-        listenerMap.get(targetId).add(listener);
+    public void off(String event) {
+        off(event, null);
     }
 
-    public void once(String event, Emitter.Listener callback) {
-        String targetId = currentTargetId;
-        Emitter.Listener newCallback = args -> {
-            if (!args[0].equals(targetId)) return;
+    public synchronized boolean hasListener(String event, Emitter.Listener callback) {
+        EventRouter router = routerMap.get(event);
+        if (router == null || currentTargetId == null) return false;
 
-            Object[] newArgs = new Object[args.length - 1];
-            System.arraycopy(args, 1, newArgs, 0, args.length - 1);
-            callback.call(newArgs);
-            removeListeners(targetId, event, callback);
-        };
+        List<Listener> listeners = router.targetListeners.get(currentTargetId);
+        if (listeners == null) return false;
 
-        socket.once(event, newCallback);
+        for (Listener listener : listeners) {
+            if (listener.getCallback() == callback) return true;
+        }
+        return false;
+    }
+
+    public void emitTo(String targetClientId, String event, Object... args) {
+        emitTo(Lane.CONTROL, targetClientId, event, args);
+    }
+
+    // lane decides which outbound queue the message waits in, see OutboundScheduler.
+    // Throws OutboundQueueFullException when the outbox is full (see enableOutbox) or the scheduler can't take the
+    // message (see OverflowPolicy). The policy also applies to a message held back by the rate limiter, it counts as
+    // pending from the start. Only a full outbox can make it fail later on the limiter's thread, where the exception
+    // is only logged.
+    public void emitTo(Lane lane, String targetClientId, String event, Object... args) {
+        if (rateLimiter.isEnabled()) rateLimiter.submit(targetClientId, args, () -> sendTo(lane, targetClientId, event, args));
+        else sendTo(lane, targetClientId, event, args);
+    }
 
-        if (!listenerMap.containsKey(targetId)) {
-            listenerMap.put(targetId, new ArrayList<>());
+    // Queues a message without ack in front of its lane, past the rate limiter and the overflow policy: it never
+    // waits or throws, e.g. the notice that a stream was destroyed
+    public void emitFirstTo(Lane lane, String targetClientId, String event, Object... args) {
+        JSONObject emitPayload = encodeEnvelope(targetClientId, event, args, args.length);
+        if (emitPayload != null) outboundScheduler.emitFirst(lane, null, SocketEvent.P2P_EMIT, emitPayload);
+    }
+
+    private void sendTo(Lane lane, String targetClientId, String event, Object... args) {
+        int lastIndex = args.length - 1;
+        boolean isAckCase = args.length > 0 && args[lastIndex] instanceof Ack;
+        int argCount = isAckCase ? lastIndex : args.length;
+        Ack ack = isAckCase ? (Ack) args[lastIndex] : null;
+
+        // stream chunks are not journaled, a stream does not outlive the connection
+        Outbox currentOutbox = outbox;
+        if (currentOutbox != null && lane == Lane.CONTROL) {
+            try {
+                long id = currentOutbox.append(targetClientId, event, args, argCount, isAckCase);
+                if (ack != null) outboxAcks.put(id, ack);
+                sendOutboxEntry(currentOutbox, id, targetClientId, event, args, argCount, isAckCase, false);
+                return;
+            } catch (IOException e) {
+                e.printStackTrace(); // args the journal can't encode are still sent, just not durably
+            }
         }
 
-        Listener listener = new Listener(event, callback, newCallback);
-        listenerMap.get(targetId).add(listener);
+        JSONObject emitPayload = encodeEnvelope(targetClientId, event, args, argCount);
+        if (emitPayload != null) emitEnvelope(lane, emitPayload, ack);
     }
 
-    public void off(String event, Emitter.Listener callback) {
-        String targetId = currentTargetId;
-        List<Listener> listeners = listenerMap.get(targetId);
-        if (listeners == null) return;
+    private JSONObject encodeEnvelope(String targetClientId, String event, Object[] args, int argCount) {
+        PayloadCodec codec = targetCodecs.get(targetClientId);
 
-        if (callback != null) {
-            for (Listener listener : listeners) {
-                if (listener.getCallback() == callback && listener.event.equals(event))
-                    socket.off(event, listener.newCallback);
+        try {
+            // byte[] args (e.g. a stream chunk and its header) are already sent as attachments, re-encoding only adds a copy
+            boolean encoded = codec != null && !onlyBinaryArgs(args, argCount);
+            if (encoded) {
+                // the event of the envelope marks the args as encoded, they are never mistaken for user args
+                args = new Object[]{codec.getName(), codec.encode(args, argCount)};
+                argCount = args.length;
+            }
+
+            int[] compactIds = compactEventsEnabled ? lookupEventIds(targetClientId, event) : null;
+            if (compactIds != null) {
+                return EnvelopeEncoder.encode(targetClientId, encoded ? SocketEvent.P2P_COMPACT_CODEC_EMIT : SocketEvent.P2P_COMPACT_EMIT,
+                        EnvelopeEncoder.encodeCompactArgs(compactIds[0], compactIds[1], args, argCount));
+            }
+            if (encoded) {
+                Object[] codecArgs = {event, args[0], args[1]};
+                return EnvelopeEncoder.encode(clientId, targetClientId, SocketEvent.P2P_CODEC_EMIT, codecArgs, codecArgs.length);
             }
-            removeListeners(targetId, event, callback);
+            return EnvelopeEncoder.encode(clientId, targetClientId, event, args, argCount);
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static boolean onlyBinaryArgs(Object[] args, int argCount) {
+        for (int i = 0; i < argCount; i++) {
+            if (!(args[i] instanceof byte[])) return false;
+        }
+        return argCount > 0;
+    }
+
+    // Returns the confirmed [alias, eventId] of event, or null after starting to define it at the target
+    private int[] lookupEventIds(String targetClientId, String event) throws JSONException {
+        int[] compactIds = eventDictionary.lookup(targetClientId, event);
+        if (compactIds != null) return compactIds;
+
+        int eventId = eventDictionary.reserve(targetClientId, event);
+        if (eventId >= 0) {
+            Object[] definition = {event, eventId};
+            emitEnvelope(Lane.CONTROL, EnvelopeEncoder.encode(clientId, targetClientId, SocketEvent.P2P_DEFINE_EVENT, definition, 2),
+                    ackArgs -> {
+                        if (ackArgs.length > 0 && ackArgs[0] instanceof Number) {
+                            eventDictionary.confirm(targetClientId, event, eventId, ((Number) ackArgs[0]).intValue());
+                        }
+                    });
+        }
+        return null;
+    }
+
+    private void resetEventIdsOf(String senderClientId) {
+        try {
+            Object[] noArgs = {};
+            emitEnvelope(Lane.CONTROL, EnvelopeEncoder.encode(clientId, senderClientId, SocketEvent.P2P_RESET_EVENT_IDS, noArgs, 0), null);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Journaled messages with an ack stay in the outbox until the ack arrives and are resent after a disconnect.
+    // Messages without an ack leave the outbox once handed to the connected socket.
+    private void sendOutboxEntry(Outbox entryOutbox, long id, String targetClientId, String event,
+                                 Object[] args, int argCount, boolean expectsAck, boolean resend) {
+        JSONObject emitPayload = encodeEnvelope(targetClientId, event, args, argCount);
+        if (emitPayload == null) {
+            entryOutbox.acknowledge(id);
+            outboxAcks.remove(id);
+            return;
+        }
+
+        if (expectsAck) {
+            Ack outboxAck = ackArgs -> {
+                unackedOutboxIds.remove(id);
+                entryOutbox.acknowledge(id);
+
+                Ack ack = outboxAcks.remove(id);
+                if (ack != null) ack.call(ackArgs);
+            };
+            Runnable onSent = () -> {
+                if (entryOutbox.isPending(id)) unackedOutboxIds.add(id);
+            };
+
+            if (resend) outboundScheduler.emitFirst(Lane.CONTROL, onSent, SocketEvent.P2P_EMIT_ACKNOWLEDGE, emitPayload, outboxAck);
+            else outboundScheduler.emit(Lane.CONTROL, onSent, SocketEvent.P2P_EMIT_ACKNOWLEDGE, emitPayload, outboxAck);
         } else {
-            for (Listener listener : listeners) {
-                if (listener.event.equals(event)) socket.off(event, listener.newCallback);
+            outboundScheduler.emit(Lane.CONTROL, () -> entryOutbox.acknowledge(id), SocketEvent.P2P_EMIT, emitPayload);
+        }
+    }
+
+    // Acks of messages sent before a disconnect never arrive; resend them in their original order
+    // in front of the messages which are still queued. The peer may receive some of them twice.
+    private void resendUnackedOutboxEntries() {
+        Outbox currentOutbox = outbox;
+        if (currentOutbox == null || unackedOutboxIds.isEmpty()) return;
+
+        List<Outbox.Entry> resent = new ArrayList<>();
+        try {
+            for (Outbox.Entry entry : currentOutbox.pendingEntries()) {
+                if (unackedOutboxIds.remove(entry.getId())) resent.add(entry);
             }
-            removeListeners(targetId, event);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        for (int i = resent.size() - 1; i >= 0; i--) {
+            Outbox.Entry entry = resent.get(i);
+            sendOutboxEntry(currentOutbox, entry.getId(), entry.getTargetClientId(), entry.getEvent(),
+                    entry.getArgs(), entry.getArgs().length, true, true);
         }
     }
 
-    public void off(String event) {
-        off(event, null);
+    // Journals emitTo messages in a memory-mapped file of at most capacity bytes, so they survive disconnects
+    // and restarts. Messages left in the file by a previous run are sent again right away.
+    // Once the file is full, emitTo throws OutboundQueueFullException until acks free some space.
+    public void enableOutbox(File file, int capacity) throws IOException {
+        if (outbox != null) throw new IllegalStateException("Outbox is already enabled");
+
+        Outbox newOutbox = new Outbox(file, capacity);
+        outbox = newOutbox;
+
+        for (Outbox.Entry entry : newOutbox.pendingEntries()) {
+            sendOutboxEntry(newOutbox, entry.getId(), entry.getTargetClientId(), entry.getEvent(),
+                    entry.getArgs(), entry.getArgs().length, entry.expectsAck(), false);
+        }
     }
 
-    public void emitTo(String targetClientId, String event, Object... args) {
+    // Messages which are not acknowledged yet stay in the file, they are sent again by the next enableOutbox
+    public void disableOutbox() throws IOException {
+        Outbox currentOutbox = outbox;
+        if (currentOutbox == null) return;
+
+        outbox = null;
+        unackedOutboxIds.clear();
+        currentOutbox.close();
+    }
+
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    // Sends the same event to many targets, encoding args only once (always as JSON), where a loop of emitTo would
+    // encode them again for every target. A target listed twice gets the event once, like with emitToManyWithAck.
+    // A trailing Ack is called once per target ack.
+    // Without an Ack and with multiEmitEnabled, a single P2P_EMIT_MULTI frame is sent and fanned out by the server.
+    public void emitToMany(Collection<String> targetClientIds, String event, Object... args) {
+        Set<String> uniqueIds = new LinkedHashSet<>(targetClientIds);
         int lastIndex = args.length - 1;
         boolean isAckCase = args.length > 0 && args[lastIndex] instanceof Ack;
+        JSONArray encodedArgs = EnvelopeEncoder.encodeArgs(clientId, args, isAckCase ? lastIndex : args.length);
 
-        JSONObject emitPayload = new JSONObject();
         try {
-            emitPayload.put("targetClientId", targetClientId);
-            emitPayload.put("event", event);
-
-            if (isAckCase) {
-                Object[] newArgs = new Object[args.length];
-                newArgs[0] = clientId;
-                System.arraycopy(args, 0, newArgs, 1, lastIndex);
-                emitPayload.put("args", new JSONArray(newArgs));
-            } else {
-                args = ArrayUtils.addAll(new Object[]{clientId}, args);
-                emitPayload.put("args", new JSONArray(args));
+            if (!isAckCase && multiEmitEnabled) {
+                outboundScheduler.emit(Lane.CONTROL, SocketEvent.P2P_EMIT_MULTI, EnvelopeEncoder.encodeMulti(uniqueIds, event, encodedArgs));
+                return;
+            }
+
+            for (String targetClientId : uniqueIds) {
+                emitEnvelope(Lane.CONTROL, EnvelopeEncoder.encode(targetClientId, event, encodedArgs),
+                        isAckCase ? (Ack) args[lastIndex] : null);
             }
         } catch (JSONException e) {
             e.printStackTrace();
         }
+    }
+
+    // Like emitToMany, but waits for every target to ack; the result maps each target to its ack arguments.
+    // The future fails with TimeoutException if a target doesn't ack within the ack timeout.
+    public CompletableFuture<Map<String, Object[]>> emitToManyWithAck(Collection<String> targetClientIds,
+                                                                    String event, Object... args) {
+        Set<String> uniqueIds = new LinkedHashSet<>(targetClientIds);
+        Map<String, Object[]> acks = new ConcurrentHashMap<>();
+        CompletableFuture<Map<String, Object[]>> result = new CompletableFuture<>();
+        JSONArray encodedArgs = EnvelopeEncoder.encodeArgs(clientId, args, args.length);
+
+        if (uniqueIds.isEmpty()) {
+            result.complete(acks);
+            return result;
+        }
+
+        try {
+            for (String targetClientId : uniqueIds) {
+                emitEnvelope(Lane.CONTROL, EnvelopeEncoder.encode(targetClientId, event, encodedArgs), (Ack) ackArgs -> {
+                    acks.put(targetClientId, ackArgs);
+                    if (acks.size() == uniqueIds.size()) result.complete(acks);
+                });
+            }
+        } catch (JSONException e) {
+            result.completeExceptionally(e);
+        }
+
+        return ackTimeout > 0 ? result.orTimeout(ackTimeout, TimeUnit.MILLISECONDS) : result;
+    }
+
+    public void registerPayloadCodec(PayloadCodec codec) {
+        if (codec == null || PayloadCodec.JSON.equals(codec.getName())) {
+            throw new IllegalArgumentException("codec can not be null or replace the JSON codec");
+        }
+
+        payloadCodecs.put(codec.getName(), codec);
+    }
+
+    public CompletableFuture<String> negotiatePayloadCodec(String targetClientId) {
+        List<String> codecNames;
+        synchronized (payloadCodecs) {
+            codecNames = new ArrayList<>(payloadCodecs.keySet());
+        }
+
+        return negotiatePayloadCodec(targetClientId, codecNames);
+    }
+
+    // Offers codecNames to the target in order of preference and completes with the name of the agreed codec.
+    // Peers which don't negotiate (e.g. the Node plugin) never ack, they keep using JSON once the ack timeout passes.
+    public CompletableFuture<String> negotiatePayloadCodec(String targetClientId, List<String> codecNames) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        Object[] offer = {new JSONArray(codecNames)};
+        JSONObject emitPayload;
+        try {
+            // always sent as JSON, the target may not be able to decode the currently negotiated codec anymore
+            emitPayload = EnvelopeEncoder.encode(clientId, targetClientId, SocketEvent.P2P_NEGOTIATE_CODEC, offer, 1);
+        } catch (JSONException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        emitEnvelope(Lane.CONTROL, emitPayload, args -> {
+            PayloadCodec codec = args.length > 0 ? payloadCodecs.get(String.valueOf(args[0])) : null;
+
+            if (codec != null) targetCodecs.put(targetClientId, codec);
+            else targetCodecs.remove(targetClientId);
+
+            result.complete(codec != null ? codec.getName() : PayloadCodec.JSON);
+        });
+
+        return ackTimeout > 0 ? result.completeOnTimeout(PayloadCodec.JSON, ackTimeout, TimeUnit.MILLISECONDS) : result;
+    }
 
-        if (isAckCase) { // Ack case
-            Ack ack = (Ack) args[lastIndex];
-            socket.emit(SocketEvent.P2P_EMIT_ACKNOWLEDGE, emitPayload, ack);
+    public String getPayloadCodec(String targetClientId) {
+        PayloadCodec codec = targetCodecs.get(targetClientId);
+        return codec != null ? codec.getName() : PayloadCodec.JSON;
+    }
+
+    public boolean isCompactEventsEnabled() {
+        return compactEventsEnabled;
+    }
+
+    // Sends events by the small ids agreed with each target once they are confirmed, see EventDictionary.
+    // Peers always accept compact messages, so this only changes what we send.
+    public void setCompactEventsEnabled(boolean compactEventsEnabled) {
+        this.compactEventsEnabled = compactEventsEnabled;
+    }
+
+    public EventDictionary getEventDictionary() {
+        return eventDictionary;
+    }
+
+    // shared by every Duplex of this client, created with the first one
+    public synchronized StreamMultiplexer getStreamMultiplexer() {
+        if (streamMultiplexer == null) streamMultiplexer = new StreamMultiplexer(this);
+        return streamMultiplexer;
+    }
+
+    public boolean isMultiEmitEnabled() {
+        return multiEmitEnabled;
+    }
+
+    // Only enable if the server understands P2P_EMIT_MULTI ({targetClientIds, event, args})
+    public void setMultiEmitEnabled(boolean multiEmitEnabled) {
+        this.multiEmitEnabled = multiEmitEnabled;
+    }
+
+    private void emitEnvelope(Lane lane, JSONObject emitPayload, Ack ack) {
+        if (ack != null) { // Ack case
+            outboundScheduler.emit(lane, SocketEvent.P2P_EMIT_ACKNOWLEDGE, emitPayload, ack);
         } else { // No Ack case
-            socket.emit(SocketEvent.P2P_EMIT, emitPayload);
+            outboundScheduler.emit(lane, SocketEvent.P2P_EMIT, emitPayload);
         }
     }
 
+    // limits of emitTo (and so of Service.emitService), adjustable at any time
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public OutboundScheduler getOutboundScheduler() {
+        return outboundScheduler;
+    }
+
+    // false once the outbound queue reaches its high watermark, until it drains to the low watermark
+    public boolean isWritable() {
+        return outboundScheduler.isWritable();
+    }
+
+    public void onDrain(Consumer<Void> callback) {
+        outboundScheduler.onDrain(callback);
+    }
+
+    public void offDrain(Consumer<Void> callback) {
+        outboundScheduler.offDrain(callback);
+    }
+
+    public void setOutboundWatermarks(int lowWatermark, int highWatermark) {
+        outboundScheduler.setWatermarks(lowWatermark, highWatermark);
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        outboundScheduler.setOverflowPolicy(overflowPolicy);
+    }
+
+    public long getAckTimeout() {
+        return ackTimeout;
+    }
+
+    public void setAckTimeout(long timeout, TimeUnit unit) {
+        ackTimeout = unit.toMillis(timeout);
+    }
+
     public String getClientId() {
         return clientId;
     }
 
-    private void removeListeners(String event, Emitter.Listener callback) {
-        listenerMapAny.get(event).removeIf(listener -> listener.getCallback() == callback);
+    private synchronized void addTargetListener(String targetId, Listener listener) {
+        if (targetId == null) throw new IllegalArgumentException("targetClientId can not be null");
+
+        EventRouter router = getOrCreateRouter(listener.getEvent());
+        router.targetListeners.computeIfAbsent(targetId, k -> new CopyOnWriteArrayList<>()).add(listener);
     }
 
-    private void removeListeners(String targetClientId, String event) {
-        listenerMap.get(targetClientId).removeIf(listener -> listener.getEvent().equals(event));
+    // under the same lock as detachIfEmpty, which could otherwise detach the router between lookup and add
+    private synchronized void addAnyListener(Listener listener) {
+        getOrCreateRouter(listener.getEvent()).anyListeners.add(listener);
     }
 
-    private void removeListeners(String targetClientId, String event, Emitter.Listener callback) {
-        listenerMap.get(targetClientId).removeIf(listener ->
-                listener.getCallback() == callback && listener.getEvent().equals(event));
+    private synchronized EventRouter getOrCreateRouter(String event) {
+        EventRouter router = routerMap.get(event);
+
+        if (router == null) {
+            router = new EventRouter(event);
+            routerMap.put(event, router);
+            socket.on(event, router);
+        }
+
+        return router;
     }
 
-    private class Listener {
-        private String event;
-        private Emitter.Listener callback; // the original callback, this will NOT be executed
-        private Emitter.Listener newCallback; // the modified callback, after remove the first arguments, this will be executed
+    private synchronized void detachIfEmpty(EventRouter router) {
+        if (!router.isEmpty() || routerMap.get(router.event) != router) return;
+
+        routerMap.remove(router.event);
+        socket.off(router.event, router);
+    }
+
+    private synchronized boolean removeOnceListener(EventRouter router, List<Listener> listeners, Listener listener) {
+        if (!listeners.remove(listener)) return false; // already consumed by another thread
+
+        if (listeners != router.anyListeners && listeners.isEmpty()) {
+            router.targetListeners.values().remove(listeners);
+        }
+        detachIfEmpty(router);
+        return true;
+    }
+
+    // Routes one inbound socket event to the listeners of its sender (args[0]) with a single map lookup,
+    // so dispatch cost does not depend on how many targets are listening to the same event.
+    public interface PeerListener {
+        void call(String senderClientId, Object... args);
+    }
 
-        Listener(String event, Emitter.Listener callback, Emitter.Listener newCallback) {
+    private class EventRouter implements Emitter.Listener {
+        private final String event;
+        private final Map<String, List<Listener>> targetListeners = new ConcurrentHashMap<>();
+        private final List<Listener> anyListeners = new CopyOnWriteArrayList<>();
+        private final List<PeerListener> protocolListeners = new CopyOnWriteArrayList<>();
+
+        EventRouter(String event) {
             this.event = event;
-            this.callback = callback;
-            this.newCallback = newCallback;
         }
 
-        Listener(Emitter.Listener callback, Emitter.Listener newCallback) {
+        boolean isEmpty() {
+            return targetListeners.isEmpty() && anyListeners.isEmpty() && protocolListeners.isEmpty();
+        }
+
+        @Override
+        public void call(Object... args) {
+            route(args.length > 0 && args[0] instanceof String ? (String) args[0] : null, args, 1);
+        }
+
+        // args[argOffset..] are the arguments of the event, everything before identifies the sender
+        void route(String senderClientId, Object[] args, int argOffset) {
+            route(senderClientId, args, argOffset, null);
+        }
+
+        // codecName is set when args[argOffset] holds the args encoded by that codec
+        void route(String senderClientId, Object[] args, int argOffset, String codecName) {
+            List<Listener> listeners = senderClientId != null ? targetListeners.get(senderClientId) : null;
+
+            boolean hasTargetListeners = listeners != null && !listeners.isEmpty();
+            if (!hasTargetListeners && anyListeners.isEmpty() && protocolListeners.isEmpty()) return;
+
+            // the sender is stripped once per inbound event and the result is shared by every callback
+            Object[] newArgs = Arrays.copyOfRange(args, Math.min(argOffset, args.length), args.length);
+
+            if (codecName != null) {
+                newArgs = decodeArgs(codecName, newArgs);
+                if (newArgs == null) return;
+            }
+
+            if (hasTargetListeners) dispatch(listeners, newArgs);
+            if (!anyListeners.isEmpty()) dispatch(anyListeners, newArgs);
+            for (PeerListener listener : protocolListeners) listener.call(senderClientId, newArgs);
+        }
+
+        private Object[] decodeArgs(String codecName, Object[] encodedArgs) {
+            PayloadCodec codec = payloadCodecs.get(codecName);
+
+            if (codec == null) {
+                System.err.println("Received " + event + " encoded with unknown codec " + codecName);
+                return null;
+            }
+            if (encodedArgs.length == 0 || !(encodedArgs[0] instanceof byte[])) {
+                System.err.println("Received " + event + " without its " + codecName + " payload");
+                return null;
+            }
+
+            try {
+                Object[] decodedArgs = codec.decode((byte[]) encodedArgs[0]);
+                if (encodedArgs.length == 1) return decodedArgs;
+
+                // keep trailing args which are not encoded, e.g. the ack function
+                Object[] newArgs = Arrays.copyOf(decodedArgs, decodedArgs.length + encodedArgs.length - 1);
+                System.arraycopy(encodedArgs, 1, newArgs, decodedArgs.length, encodedArgs.length - 1);
+                return newArgs;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        private void dispatch(List<Listener> listeners, Object[] newArgs) {
+            for (Listener listener : listeners) {
+                if (listener.isOnce() && !removeOnceListener(this, listeners, listener)) continue;
+                listener.getCallback().call(newArgs);
+            }
+        }
+    }
+
+    private static class Listener {
+        private String event;
+        private Emitter.Listener callback;
+        private boolean once;
+
+        Listener(String event, Emitter.Listener callback, boolean once) {
+            this.event = event;
             this.callback = callback;
-            this.newCallback = newCallback;
+            this.once = once;
         }
 
         String getEvent() {
@@ -272,8 +843,8 @@ public class Message {
             return callback;
         }
 
-        Emitter.Listener getNewCallback() {
-            return newCallback;
+        boolean isOnce() {
+            return once;
         }
     }
 }
@@ -23,6 +23,11 @@ public class Service {
         messageApi.emitTo(serviceName, api, args);
     }
 
+    // limits emitService calls to serviceName, a rate <= 0 removes that limit
+    public void setServiceRateLimit(String serviceName, double messagesPerSecond, double bytesPerSecond) {
+        messageApi.getRateLimiter().setTargetLimit(serviceName, messagesPerSecond, bytesPerSecond);
+    }
+
     public void onService(String serviceName, String api, Emitter.Listener callback) {
         messageApi.from(serviceName).on(api, callback);
     }
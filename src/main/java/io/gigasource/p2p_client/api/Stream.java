@@ -1,60 +1,238 @@
 package io.gigasource.p2p_client.api;
 
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.Lane;
+import io.gigasource.p2p_client.api.object.stream.BroadcastStream;
+import io.gigasource.p2p_client.api.object.stream.ChunkCodec;
+import io.gigasource.p2p_client.api.object.stream.DeflateChunkCodec;
 import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.api.object.stream.DuplexPool;
+import io.gigasource.p2p_client.api.object.stream.FileReceiver;
+import io.gigasource.p2p_client.api.object.stream.FileSender;
+import io.gigasource.p2p_client.api.object.stream.FileTransfer;
+import io.gigasource.p2p_client.api.object.stream.PumpExecutor;
 import io.gigasource.p2p_client.constants.SocketEvent;
 import io.gigasource.p2p_client.exception.P2pStreamException;
 import io.socket.client.Ack;
 import io.socket.client.Socket;
 import java9.util.concurrent.CompletableFuture;
+import java9.util.concurrent.CompletionException;
 import java9.util.function.Consumer;
+import java9.util.function.Function;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Stream {
     private Socket socket;
     private Message messageApi;
     private String clientId;
+    private Executor pumpExecutor; // null = PumpExecutor.shared()
+    private Executor receiveExecutor; // null = PumpExecutor.sharedReceive()
+    private long resumeTimeout; // ms, 0 = duplexes are destroyed on disconnect
+    private volatile FileReceiver fileReceiver;
+    private List<ChunkCodec> chunkCodecs = new CopyOnWriteArrayList<>(); // in order of preference
+    private volatile boolean compressStreams;
+    private volatile Consumer<Duplex> addP2pStreamCallback;
+    private Map<String, Duplex> pooledDuplexes = new ConcurrentHashMap<>(); // kept for the peer's DuplexPool, by our stream id
+    private Map<String, DuplexPool> duplexPools = new HashMap<>(); // by targetClientId, guarded by this
+    private int poolMinIdle = DuplexPool.DEFAULT_MIN_IDLE;
+    private int poolMaxSize = DuplexPool.DEFAULT_MAX_SIZE;
+    private long poolIdleTimeout = DuplexPool.DEFAULT_IDLE_TIMEOUT; // ms
 
     public Stream(Socket socket, Message messageApi) {
         this.socket = socket;
         this.messageApi = messageApi;
         clientId = messageApi.getClientId();
+        chunkCodecs.add(new DeflateChunkCodec());
 
-        socket.on(SocketEvent.MULTI_API_CREATE_STREAM, args ->
-                ((Ack) args[1]).call("Client is not listening to create stream event"));
+        // args: our id of the pooled stream the peer leased. Only the peer of the stream can lease or release it.
+        messageApi.addProtocolListener(SocketEvent.P2P_LEASE_STREAM, (senderClientId, args) -> {
+            Duplex duplex = pooledDuplexOf(senderClientId, args);
+            if (duplex == null) return;
+
+            Consumer<Duplex> callback = addP2pStreamCallback;
+            if (callback != null) callback.accept(duplex);
+            else duplex.destroy(); // nobody would read it, the peer's pool replaces it
+        });
+        // args: our id of the pooled stream the peer released
+        messageApi.addProtocolListener(SocketEvent.P2P_RELEASE_STREAM, (senderClientId, args) -> {
+            Duplex duplex = pooledDuplexOf(senderClientId, args);
+            if (duplex != null && !duplex.reset()) duplex.destroy(); // still sending, it can't be reused
+        });
+
+        socket.on(SocketEvent.MULTI_API_CREATE_STREAM, args -> {
+            Duplex duplex = createFileSegmentDuplex((JSONObject) args[0]);
+            if (duplex == null) {
+                ((Ack) args[1]).call("Client is not listening to create stream event");
+                return;
+            }
+            ackStreamCreated((Ack) args[1], duplex);
+        });
+    }
+
+    private Duplex pooledDuplexOf(String senderClientId, Object[] args) {
+        Duplex duplex = args.length > 0 && args[0] instanceof String ? pooledDuplexes.get((String) args[0]) : null;
+        return duplex != null && duplex.getTargetClientId().equals(senderClientId) ? duplex : null;
     }
 
     public Duplex addP2pStream(String targetClientId) throws P2pStreamException {
-        JSONObject payload = new JSONObject();
+        try {
+            return addP2pStreamAsync(targetClientId).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof P2pStreamException) throw (P2pStreamException) e.getCause();
+            if (e.getCause() instanceof TimeoutException) {
+                throw new P2pStreamException("Timed out while creating stream to " + targetClientId);
+            }
+            throw e;
+        }
+    }
+
+    public CompletableFuture<Duplex> addP2pStreamAsync(String targetClientId) {
+        return addP2pStreamAsync(targetClientId, messageApi.getAckTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    // The returned future fails with P2pStreamException if the peer refuses the stream,
+    // or with TimeoutException if no ack arrives in time (timeout <= 0 waits forever)
+    public CompletableFuture<Duplex> addP2pStreamAsync(String targetClientId, long timeout, TimeUnit unit) {
+        return addP2pStreamAsync(targetClientId, UUID.randomUUID().toString(), UUID.randomUUID().toString(), timeout, unit);
+    }
+
+    // With stream ids chosen by the caller, e.g. to tell the peer beforehand which stream is coming (see FileSender)
+    public CompletableFuture<Duplex> addP2pStreamAsync(String targetClientId, String sourceStreamId, String targetStreamId,
+                                                       long timeout, TimeUnit unit) {
+        return createStream(targetClientId, sourceStreamId, targetStreamId, timeout, unit, false);
+    }
+
+    // A stream for a DuplexPool: the peer keeps it aside and hands it to its onAddP2pStream callback only once
+    // the stream is leased
+    public CompletableFuture<Duplex> addIdleP2pStreamAsync(String targetClientId, long timeout, TimeUnit unit) {
+        return createStream(targetClientId, UUID.randomUUID().toString(), UUID.randomUUID().toString(), timeout, unit, true);
+    }
+
+    private CompletableFuture<Duplex> createStream(String targetClientId, String sourceStreamId, String targetStreamId,
+                                                   long timeout, TimeUnit unit, boolean pooled) {
+        CompletableFuture<Duplex> result = new CompletableFuture<>();
+        JSONObject payload;
+
+        try {
+            payload = createStreamPayload(targetClientId, sourceStreamId, targetStreamId);
+            if (pooled) payload.put("pooled", true);
+        } catch (JSONException e) {
+            result.completeExceptionally(new P2pStreamException(e.getMessage()));
+            return result;
+        }
+
+        // the peer acks with nothing, with the negotiated parameters or with an error
+        messageApi.getOutboundScheduler().emit(Lane.CONTROL, SocketEvent.MULTI_API_CREATE_STREAM, payload, (Ack) args -> {
+            boolean created = args.length == 0 || args[0] instanceof JSONObject;
+            if (result.isDone()) {
+                // timed out meanwhile: nobody owns the stream
+                if (created) abandonLateStream(targetClientId, sourceStreamId);
+                return;
+            }
+
+            if (created) {
+                Duplex duplex = createDuplex(targetClientId, sourceStreamId, targetStreamId);
+                applyStreamParameters(duplex, args);
+                result.complete(duplex);
+            } else {
+                result.completeExceptionally(new P2pStreamException(args[0].toString()));
+            }
+        });
+
+        return timeout > 0 ? result.orTimeout(timeout, unit) : result;
+    }
+
+    public Duplex openP2pStream(String targetClientId) {
+        return openP2pStream(targetClientId, null);
+    }
+
+    // Zero round trip open: the duplex is returned right away instead of once the peer acked the stream.
+    // earlyData (up to Duplex.MAX_EARLY_DATA bytes, may be null) travels with the create request and reaches
+    // the peer's duplex as soon as its onAddP2pStream callback returned. Whatever is written to the duplex before
+    // the ack is held back and sent once the peer acked, or dropped with the duplex if the peer refuses the stream
+    // or does not ack in time; duplex.getOpenFuture() tells which.
+    public Duplex openP2pStream(String targetClientId, byte[] earlyData) {
         String sourceStreamId = UUID.randomUUID().toString();
         String targetStreamId = UUID.randomUUID().toString();
+        Duplex duplex = createDuplex(targetClientId, sourceStreamId, targetStreamId);
+        duplex.startOpening(earlyData);
 
+        JSONObject payload;
         try {
-            payload.put("sourceStreamId", sourceStreamId);
-            payload.put("targetStreamId", targetStreamId);
-            // sourceClientId will be set on server
-            payload.put("targetClientId", targetClientId);
+            payload = createStreamPayload(targetClientId, sourceStreamId, targetStreamId);
+            if (earlyData != null && earlyData.length > 0) payload.put("earlyData", earlyData);
         } catch (JSONException e) {
-            e.printStackTrace();
-            return null;
+            duplex.openFailed(new P2pStreamException(e.getMessage()));
+            return duplex;
         }
 
-        CompletableFuture<String> lock = new CompletableFuture<>();
+        CompletableFuture<Object[]> created = new CompletableFuture<>();
+        messageApi.getOutboundScheduler().emit(Lane.CONTROL, SocketEvent.MULTI_API_CREATE_STREAM, payload, (Ack) args -> {
+            boolean accepted = args.length == 0 || args[0] instanceof JSONObject;
+            // after the timeout our duplex is destroyed already, its PEER_STREAM_DESTROYED may have reached the peer
+            // before its own duplex existed
+            if (!created.complete(args) && accepted) abandonLateStream(targetClientId, sourceStreamId);
+        });
 
-        socket.emit(SocketEvent.MULTI_API_CREATE_STREAM, payload, (Ack) args -> {
-            if (args.length == 0) lock.complete(null);
-            else lock.complete(args[0].toString());
+        long timeout = messageApi.getAckTimeout();
+        (timeout > 0 ? created.orTimeout(timeout, TimeUnit.MILLISECONDS) : created).whenComplete((args, error) -> {
+            if (error != null) {
+                duplex.openFailed(new P2pStreamException("Timed out while creating stream to " + targetClientId));
+            } else if (args.length == 0 || args[0] instanceof JSONObject) {
+                applyStreamParameters(duplex, args);
+                duplex.opened();
+            } else {
+                duplex.openFailed(new P2pStreamException(args[0].toString()));
+            }
         });
 
-        String err =  lock.join();
-        if (err != null) throw new P2pStreamException(err);
-        else return new Duplex(socket, messageApi, targetClientId, sourceStreamId, targetStreamId);
+        return duplex;
+    }
+
+    // What the peer agreed to in its ack of the create request. Peers which ack with nothing (the Node plugin,
+    // older clients) neither compress nor multiplex.
+    private void applyStreamParameters(Duplex duplex, Object[] ackArgs) {
+        JSONObject parameters = ackArgs.length > 0 ? (JSONObject) ackArgs[0] : new JSONObject();
+        duplex.setMultiplexed(parameters.optBoolean("multiplexed"));
+        duplex.setCompression(getChunkCodec(parameters.optString("compression", null)));
+    }
+
+    // The peer created a stream after we gave up waiting for it: its duplex is destroyed like by ours
+    private void abandonLateStream(String targetClientId, String sourceStreamId) {
+        messageApi.emitTo(Lane.BULK, targetClientId, SocketEvent.PEER_STREAM_DESTROYED, sourceStreamId);
     }
 
+    private JSONObject createStreamPayload(String targetClientId, String sourceStreamId, String targetStreamId)
+            throws JSONException {
+        JSONObject payload = new JSONObject();
+        payload.put("sourceStreamId", sourceStreamId);
+        payload.put("targetStreamId", targetStreamId);
+        // sourceClientId will be set on server
+        payload.put("targetClientId", targetClientId);
+        payload.put("multiplexed", true);
+        if (compressStreams) payload.put("compression", new JSONArray(getChunkCodecNames()));
+        return payload;
+    }
+
+    // callback also gets the streams of a peer's DuplexPool, each time one of them is leased
     public void onAddP2pStream(Consumer<Duplex> callback) {
         offAddP2pStream();
+        addP2pStreamCallback = callback;
         socket.on(SocketEvent.MULTI_API_CREATE_STREAM, args -> {
             JSONObject connectionInfo = (JSONObject) args[0];
             String targetClientId;
@@ -70,13 +248,221 @@ public class Stream {
                 return;
             }
 
-            Duplex duplex = new Duplex(socket, messageApi, targetClientId, sourceStreamId, targetStreamId);
-            if (callback != null) callback.accept(duplex); // return a Duplex to the listening client
-            ((Ack) args[1]).call(); // notify peer that the duplex has been created
+            Duplex duplex = createDuplex(targetClientId, sourceStreamId, targetStreamId);
+            duplex.setMultiplexed(connectionInfo.optBoolean("multiplexed"));
+            duplex.setCompression(negotiateCompression(connectionInfo));
+            if (connectionInfo.optBoolean("pooled")) {
+                pooledDuplexes.put(sourceStreamId, duplex);
+                duplex.onDestroy(v -> pooledDuplexes.remove(sourceStreamId));
+                ackStreamCreated((Ack) args[1], duplex);
+                return;
+            }
+
+            FileReceiver currentFileReceiver = fileReceiver;
+            boolean fileSegment = currentFileReceiver != null && currentFileReceiver.claim(sourceStreamId, duplex);
+            if (!fileSegment && callback != null) callback.accept(duplex); // return a Duplex to the listening client
+            // sent along by openP2pStream, the ack below acknowledges it
+            Object earlyData = connectionInfo.opt("earlyData");
+            if (earlyData instanceof byte[]) duplex.receiveEarlyData((byte[]) earlyData);
+            ackStreamCreated((Ack) args[1], duplex); // notify peer that the duplex has been created
         });
     }
 
     public void offAddP2pStream() {
+        addP2pStreamCallback = null;
         socket.off(SocketEvent.MULTI_API_CREATE_STREAM);
     }
+
+    // Without an onAddP2pStream callback only the streams of file segments are accepted, returns null otherwise
+    private Duplex createFileSegmentDuplex(JSONObject connectionInfo) {
+        FileReceiver currentFileReceiver = fileReceiver;
+        if (currentFileReceiver == null) return null;
+
+        try {
+            String sourceStreamId = (String) connectionInfo.get("targetStreamId");
+            if (!currentFileReceiver.isAnnounced(sourceStreamId)) return null;
+
+            Duplex duplex = createDuplex((String) connectionInfo.get("sourceClientId"), sourceStreamId,
+                    (String) connectionInfo.get("sourceStreamId"));
+            duplex.setMultiplexed(connectionInfo.optBoolean("multiplexed"));
+            duplex.setCompression(negotiateCompression(connectionInfo));
+            return currentFileReceiver.claim(sourceStreamId, duplex) ? duplex : null;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // The creator offers its codecs in order of preference, the first one we know is used in both directions
+    private ChunkCodec negotiateCompression(JSONObject connectionInfo) {
+        JSONArray offeredCodecs = connectionInfo.optJSONArray("compression");
+        if (offeredCodecs == null) return null;
+
+        for (int i = 0; i < offeredCodecs.length(); i++) {
+            ChunkCodec codec = getChunkCodec(offeredCodecs.optString(i));
+            if (codec != null) return codec;
+        }
+        return null;
+    }
+
+    // Peers which don't know compression or multiplexing ack with nothing, which is also the answer when the creator
+    // offered neither
+    private void ackStreamCreated(Ack ack, Duplex duplex) {
+        if (duplex.getCompression() == null && !duplex.isMultiplexed()) {
+            ack.call();
+            return;
+        }
+
+        JSONObject parameters = new JSONObject();
+        try {
+            if (duplex.isMultiplexed()) parameters.put("multiplexed", true);
+            if (duplex.getCompression() != null) parameters.put("compression", duplex.getCompression());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        ack.call(parameters);
+    }
+
+    // Sends file in segments over parallel duplexes, see FileSender; the peer has to listen with onReceiveFile
+    public FileTransfer sendFile(String targetClientId, File file) {
+        return sendFile(targetClientId, file, FileSender.DEFAULT_PARALLELISM, FileSender.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public FileTransfer sendFile(String targetClientId, File file, int parallelism, long segmentSize) {
+        return new FileSender(this, messageApi, targetClientId, file, parallelism, segmentSize).start();
+    }
+
+    // Sends source to every target, reading it once, see BroadcastStream. A target falling more than
+    // BroadcastStream.DEFAULT_MAX_LAG bytes behind the others is dropped.
+    public BroadcastStream broadcast(Collection<String> targetClientIds, InputStream source) {
+        return broadcast(targetClientIds, source, BroadcastStream.DEFAULT_MAX_LAG);
+    }
+
+    public BroadcastStream broadcast(Collection<String> targetClientIds, InputStream source, long maxLag) {
+        Executor readExecutor = pumpExecutor != null ? pumpExecutor : PumpExecutor.shared();
+        return new BroadcastStream(this, targetClientIds, source, maxLag, readExecutor).start();
+    }
+
+    // destinationOf gets each offered transfer and returns the file to write it to, or null to refuse it
+    public void onReceiveFile(Function<FileTransfer, File> destinationOf) {
+        onReceiveFile(destinationOf, FileReceiver.DEFAULT_INACTIVITY_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    // a transfer which gets no data for inactivityTimeout fails and its file is deleted, 0 waits forever
+    public synchronized void onReceiveFile(Function<FileTransfer, File> destinationOf, long inactivityTimeout,
+                                           TimeUnit unit) {
+        offReceiveFile();
+        fileReceiver = new FileReceiver(messageApi, destinationOf, inactivityTimeout, unit);
+        fileReceiver.listen();
+    }
+
+    public synchronized void offReceiveFile() {
+        if (fileReceiver == null) return;
+        fileReceiver.stopListening();
+        fileReceiver = null;
+    }
+
+    // Pool of idle streams to targetClientId, created with the current pool settings on first use
+    public synchronized DuplexPool getDuplexPool(String targetClientId) {
+        DuplexPool pool = duplexPools.get(targetClientId);
+        if (pool == null || pool.isClosed()) {
+            pool = new DuplexPool(this, messageApi, targetClientId, poolMinIdle, poolMaxSize, poolIdleTimeout,
+                    TimeUnit.MILLISECONDS);
+            duplexPools.put(targetClientId, pool);
+        }
+        return pool;
+    }
+
+    // A stream from the pool to targetClientId, without a round trip unless the pool has no idle stream left.
+    // Give it back with releaseP2pStream once the exchange on it is over.
+    public CompletableFuture<Duplex> leaseP2pStream(String targetClientId) {
+        return getDuplexPool(targetClientId).lease();
+    }
+
+    public void releaseP2pStream(Duplex duplex) {
+        DuplexPool pool;
+        synchronized (this) {
+            pool = duplexPools.get(duplex.getTargetClientId());
+        }
+        if (pool != null) pool.release(duplex);
+        else duplex.destroy();
+    }
+
+    public synchronized void closeDuplexPool(String targetClientId) {
+        DuplexPool pool = duplexPools.remove(targetClientId);
+        if (pool != null) pool.close();
+    }
+
+    // Settings of the pools created from now on, see DuplexPool
+    public synchronized void setDuplexPoolSize(int minIdle, int maxSize) {
+        if (minIdle < 0 || maxSize < 1 || maxSize < minIdle) {
+            throw new IllegalArgumentException("pool size must satisfy 0 <= minIdle <= maxSize, 1 <= maxSize");
+        }
+        poolMinIdle = minIdle;
+        poolMaxSize = maxSize;
+    }
+
+    // Idle streams beyond minIdle are destroyed after timeout, 0 keeps them
+    public synchronized void setDuplexPoolIdleTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout can not be negative");
+        poolIdleTimeout = unit.toMillis(timeout);
+    }
+
+    // Offers compression when creating streams from now on: the peer picks the first registered codec it knows,
+    // streams to peers which know none of them (or don't support compression) are not compressed
+    public void setCompressStreams(boolean compressStreams) {
+        this.compressStreams = compressStreams;
+    }
+
+    public boolean isCompressStreams() {
+        return compressStreams;
+    }
+
+    // Makes codec known to negotiation, preferred over the codecs registered before it.
+    // DeflateChunkCodec is registered by default, a faster codec (e.g. LZ4) has to be registered on both peers.
+    public synchronized void registerChunkCodec(ChunkCodec codec) {
+        if (codec == null) throw new IllegalArgumentException("codec can not be null");
+
+        ChunkCodec registered = getChunkCodec(codec.getName());
+        if (registered != null) chunkCodecs.remove(registered);
+        chunkCodecs.add(0, codec);
+    }
+
+    public List<String> getChunkCodecNames() {
+        List<String> names = new ArrayList<>();
+        for (ChunkCodec codec : chunkCodecs) names.add(codec.getName());
+        return names;
+    }
+
+    private ChunkCodec getChunkCodec(String name) {
+        if (name == null) return null;
+        for (ChunkCodec codec : chunkCodecs) {
+            if (codec.getName().equals(name)) return codec;
+        }
+        return null;
+    }
+
+    // Executor running the input pumps of the duplexes created from now on, e.g. a virtual thread executor on Java 21+
+    public void setPumpExecutor(Executor pumpExecutor) {
+        this.pumpExecutor = pumpExecutor;
+    }
+
+    // Executor running the workers which write received chunks of the duplexes created from now on
+    public void setReceiveExecutor(Executor receiveExecutor) {
+        this.receiveExecutor = receiveExecutor;
+    }
+
+    // Duplexes created from now on survive disconnects of up to timeout, see Duplex.enableResume; 0 disables it
+    public void setResumeTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout can not be negative");
+        resumeTimeout = unit.toMillis(timeout);
+    }
+
+    private Duplex createDuplex(String targetClientId, String sourceStreamId, String targetStreamId) {
+        Duplex duplex = new Duplex(socket, messageApi, targetClientId, sourceStreamId, targetStreamId);
+        if (pumpExecutor != null) duplex.setPumpExecutor(pumpExecutor);
+        if (receiveExecutor != null) duplex.setReceiveExecutor(receiveExecutor);
+        if (resumeTimeout > 0) duplex.enableResume(resumeTimeout, TimeUnit.MILLISECONDS);
+        return duplex;
+    }
 }
@@ -0,0 +1,276 @@
+package io.gigasource.p2p_client.api.object.message;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+// Compact binary codec using the MessagePack wire format.
+// Decoded values use the same types a JSON payload would produce: Integer/Long, Double, String, byte[],
+// JSONArray, JSONObject and JSONObject.NULL.
+public class BinaryPayloadCodec implements PayloadCodec {
+    public static final String NAME = "msgpack";
+    public static final int MAX_DEPTH = 64; // nested arrays and maps a decoded payload may have
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object[] args, int argCount) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        writeArrayHeader(out, argCount);
+        for (int i = 0; i < argCount; i++) writeValue(out, args[i]);
+
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public Object[] decode(byte[] payload) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+
+        try {
+            int length = checkLength(in, readArrayHeader(in, in.get() & 0xff), 1);
+            Object[] args = new Object[length];
+            for (int i = 0; i < length; i++) args[i] = readValue(in, 1);
+
+            return args;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+                | NegativeArraySizeException | JSONException e) {
+            throw new IOException("Malformed " + NAME + " payload", e);
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            out.writeByte(0xc0);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? 0xc3 : 0xc2);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeInteger(out, ((Number) value).longValue());
+        } else if (value instanceof Float) {
+            out.writeByte(0xca);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Number) {
+            out.writeByte(0xcb);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof byte[]) {
+            writeBinary(out, (byte[]) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writeArrayHeader(out, array.length());
+            for (int i = 0; i < array.length(); i++) writeValue(out, array.opt(i));
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            writeArrayHeader(out, collection.size());
+            for (Object element : collection) writeValue(out, element);
+        } else if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            writeArrayHeader(out, length);
+            for (int i = 0; i < length; i++) writeValue(out, Array.get(value, i));
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writeMapHeader(out, object.length());
+            for (Iterator<?> keys = object.keys(); keys.hasNext(); ) {
+                String key = keys.next().toString();
+                writeString(out, key);
+                writeValue(out, object.opt(key));
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeMapHeader(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            throw new IOException(NAME + " codec can not encode " + value.getClass().getName());
+        }
+    }
+
+    private void writeInteger(DataOutputStream out, long value) throws IOException {
+        if (value >= 0 && value <= 0x7f) {
+            out.writeByte((int) value);
+        } else if (value >= -32 && value < 0) {
+            out.writeByte((int) value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            out.writeByte(0xd0);
+            out.writeByte((int) value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            out.writeByte(0xd1);
+            out.writeShort((int) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            out.writeByte(0xd2);
+            out.writeInt((int) value);
+        } else {
+            out.writeByte(0xd3);
+            out.writeLong(value);
+        }
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length <= 31) {
+            out.writeByte(0xa0 | bytes.length);
+        } else if (bytes.length <= 0xff) {
+            out.writeByte(0xd9);
+            out.writeByte(bytes.length);
+        } else if (bytes.length <= 0xffff) {
+            out.writeByte(0xda);
+            out.writeShort(bytes.length);
+        } else {
+            out.writeByte(0xdb);
+            out.writeInt(bytes.length);
+        }
+        out.write(bytes);
+    }
+
+    private void writeBinary(DataOutputStream out, byte[] value) throws IOException {
+        if (value.length <= 0xff) {
+            out.writeByte(0xc4);
+            out.writeByte(value.length);
+        } else if (value.length <= 0xffff) {
+            out.writeByte(0xc5);
+            out.writeShort(value.length);
+        } else {
+            out.writeByte(0xc6);
+            out.writeInt(value.length);
+        }
+        out.write(value);
+    }
+
+    private void writeArrayHeader(DataOutputStream out, int length) throws IOException {
+        if (length <= 15) {
+            out.writeByte(0x90 | length);
+        } else if (length <= 0xffff) {
+            out.writeByte(0xdc);
+            out.writeShort(length);
+        } else {
+            out.writeByte(0xdd);
+            out.writeInt(length);
+        }
+    }
+
+    private void writeMapHeader(DataOutputStream out, int size) throws IOException {
+        if (size <= 15) {
+            out.writeByte(0x80 | size);
+        } else if (size <= 0xffff) {
+            out.writeByte(0xde);
+            out.writeShort(size);
+        } else {
+            out.writeByte(0xdf);
+            out.writeInt(size);
+        }
+    }
+
+    // depth counts the arrays and maps the value is nested in, the payload's own array included
+    private Object readValue(ByteBuffer in, int depth) throws IOException, JSONException {
+        int type = in.get() & 0xff;
+
+        if (type <= 0x7f) return type;
+        if (type >= 0xe0) return (int) (byte) type;
+        if ((type & 0xe0) == 0xa0) return readString(in, type & 0x1f);
+        if ((type & 0xf0) == 0x90) return readArray(in, type & 0x0f, depth);
+        if ((type & 0xf0) == 0x80) return readMap(in, type & 0x0f, depth);
+
+        switch (type) {
+            case 0xc0: return JSONObject.NULL;
+            case 0xc2: return false;
+            case 0xc3: return true;
+            case 0xc4: return readBinary(in, in.get() & 0xff);
+            case 0xc5: return readBinary(in, in.getShort() & 0xffff);
+            case 0xc6: return readBinary(in, in.getInt());
+            case 0xca: return (double) in.getFloat();
+            case 0xcb: return in.getDouble();
+            case 0xcc: return in.get() & 0xff;
+            case 0xcd: return in.getShort() & 0xffff;
+            case 0xce: return narrow(in.getInt() & 0xffffffffL);
+            case 0xcf: return narrow(in.getLong());
+            case 0xd0: return (int) in.get();
+            case 0xd1: return (int) in.getShort();
+            case 0xd2: return in.getInt();
+            case 0xd3: return narrow(in.getLong());
+            case 0xd9: return readString(in, in.get() & 0xff);
+            case 0xda: return readString(in, in.getShort() & 0xffff);
+            case 0xdb: return readString(in, in.getInt());
+            case 0xdc: return readArray(in, in.getShort() & 0xffff, depth);
+            case 0xdd: return readArray(in, in.getInt(), depth);
+            case 0xde: return readMap(in, in.getShort() & 0xffff, depth);
+            case 0xdf: return readMap(in, in.getInt(), depth);
+            default: throw new IOException(NAME + " codec can not decode type 0x" + Integer.toHexString(type));
+        }
+    }
+
+    private int readArrayHeader(ByteBuffer in, int type) throws IOException {
+        if ((type & 0xf0) == 0x90) return type & 0x0f;
+        if (type == 0xdc) return in.getShort() & 0xffff;
+        if (type == 0xdd) return in.getInt();
+        throw new IOException(NAME + " payload must start with an array");
+    }
+
+    // lengths come from the wire, every element takes at least minBytes of what is left of the payload
+    private int checkLength(ByteBuffer in, int length, int minBytes) throws IOException {
+        if (length < 0 || length > in.remaining() / minBytes) {
+            throw new IOException("Malformed " + NAME + " payload, length " + length + " exceeds the "
+                    + in.remaining() + " remaining bytes");
+        }
+        return length;
+    }
+
+    private Object narrow(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+        return value;
+    }
+
+    private String readString(ByteBuffer in, int length) throws IOException {
+        checkLength(in, length, 1);
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private byte[] readBinary(ByteBuffer in, int length) throws IOException {
+        byte[] value = new byte[checkLength(in, length, 1)];
+        in.get(value);
+        return value;
+    }
+
+    // nesting comes from the wire too, without a limit a few bytes per level would overflow the stack
+    private void checkDepth(int depth) throws IOException {
+        if (depth >= MAX_DEPTH) {
+            throw new IOException("Malformed " + NAME + " payload, nested deeper than " + MAX_DEPTH + " levels");
+        }
+    }
+
+    private JSONArray readArray(ByteBuffer in, int length, int depth) throws IOException, JSONException {
+        checkDepth(depth);
+        checkLength(in, length, 1);
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < length; i++) array.put(readValue(in, depth + 1));
+        return array;
+    }
+
+    private JSONObject readMap(ByteBuffer in, int size, int depth) throws IOException, JSONException {
+        checkDepth(depth);
+        checkLength(in, size, 2);
+        JSONObject object = new JSONObject();
+        for (int i = 0; i < size; i++) object.put(readValue(in, depth + 1).toString(), readValue(in, depth + 1));
+        return object;
+    }
+}
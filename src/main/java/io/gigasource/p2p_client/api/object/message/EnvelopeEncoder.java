@@ -0,0 +1,71 @@
+package io.gigasource.p2p_client.api.object.message;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+// Builds the {targetClientId, event, args} payload of P2P_EMIT / P2P_EMIT_ACKNOWLEDGE.
+// The sender id and the args are written straight into the JSONArray, so no intermediate Object[] is created,
+// and args are added with put() so byte[] chunks are never wrapped into JSONArrays by org.json.
+// The payload itself can't be recycled: socket.io serializes it later on its own event thread.
+public final class EnvelopeEncoder {
+    public static final String TARGET_CLIENT_ID = "targetClientId";
+    public static final String TARGET_CLIENT_IDS = "targetClientIds";
+    public static final String EVENT = "event";
+    public static final String ARGS = "args";
+
+    private static final int ENVELOPE_CAPACITY = 4; // holds the 3 envelope keys without resizing
+
+    private EnvelopeEncoder() {
+    }
+
+    public static JSONObject encode(String senderClientId, String targetClientId, String event,
+                                    Object[] args, int argCount) throws JSONException {
+        return encode(targetClientId, event, encodeArgs(senderClientId, args, argCount));
+    }
+
+    // The same encodedArgs can be shared by envelopes to many targets: socket.io copies the tree when it
+    // extracts binary attachments and never modifies it.
+    public static JSONObject encode(String targetClientId, String event, JSONArray encodedArgs) throws JSONException {
+        JSONObject envelope = new JSONObject(new HashMap<String, Object>(ENVELOPE_CAPACITY));
+        envelope.put(TARGET_CLIENT_ID, targetClientId);
+        envelope.put(EVENT, event);
+        envelope.put(ARGS, encodedArgs);
+
+        return envelope;
+    }
+
+    // Payload of P2P_EMIT_MULTI: one frame which the server relays to every target
+    public static JSONObject encodeMulti(Collection<String> targetClientIds, String event,
+                                         JSONArray encodedArgs) throws JSONException {
+        JSONObject envelope = new JSONObject(new HashMap<String, Object>(ENVELOPE_CAPACITY));
+        envelope.put(TARGET_CLIENT_IDS, new JSONArray(targetClientIds));
+        envelope.put(EVENT, event);
+        envelope.put(ARGS, encodedArgs);
+
+        return envelope;
+    }
+
+    // Only the first argCount elements of args are written, which lets callers leave out a trailing Ack without copying.
+    public static JSONArray encodeArgs(String senderClientId, Object[] args, int argCount) {
+        JSONArray encodedArgs = new JSONArray();
+        encodedArgs.put(senderClientId);
+        for (int i = 0; i < argCount; i++) encodedArgs.put(args[i]);
+
+        return encodedArgs;
+    }
+
+    // Args of P2P_COMPACT_EMIT: the sender alias and event id agreed through EventDictionary replace
+    // the sender id and the event name
+    public static JSONArray encodeCompactArgs(int senderAlias, int eventId, Object[] args, int argCount) {
+        JSONArray encodedArgs = new JSONArray();
+        encodedArgs.put(senderAlias);
+        encodedArgs.put(eventId);
+        for (int i = 0; i < argCount; i++) encodedArgs.put(args[i]);
+
+        return encodedArgs;
+    }
+}
@@ -0,0 +1,129 @@
+package io.gigasource.p2p_client.api.object.message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Small integer ids for event names and sender ids, agreed between two peers.
+// A sender reserves an id for an event and defines it at the target (P2P_DEFINE_EVENT); the target answers with
+// the alias it uses for the sender. Once confirmed, messages carry [alias, eventId] instead of [senderClientId, event],
+// and the target resolves both with an int-keyed lookup and a list lookup instead of hashing the strings.
+// Until then, or when the target doesn't answer (e.g. the Node plugin), messages keep using the string form.
+// Aliases of peers which disconnected are forgotten and never handed out again, so a message still carrying one
+// can't be taken for another peer's.
+public class EventDictionary {
+    public static final int DEFAULT_MAX_EVENT_IDS = 4096; // per target, further events are sent by name
+
+    private int maxEventIds = DEFAULT_MAX_EVENT_IDS;
+    private Map<String, OutboundTable> outboundTables = new HashMap<>(); // targetClientId -> ids defined at that target
+    private Map<String, Integer> peerAliases = new HashMap<>(); // senderClientId -> alias
+    private Map<Integer, InboundTable> inboundTables = new HashMap<>(); // alias -> ids defined by that sender
+    private int nextAlias;
+
+    // Returns the [alias, eventId] the target knows event by, or null while it has to be sent by name
+    public synchronized int[] lookup(String targetClientId, String event) {
+        OutboundTable table = outboundTables.get(targetClientId);
+        if (table == null || table.alias < 0) return null;
+
+        Integer eventId = table.confirmedIds.get(event);
+        return eventId != null ? new int[]{table.alias, eventId} : null;
+    }
+
+    // Reserves an id for event if it has none yet and the table has room; returns -1 otherwise.
+    // The caller defines the id at the target and calls confirm() with the target's answer.
+    public synchronized int reserve(String targetClientId, String event) {
+        OutboundTable table = outboundTables.computeIfAbsent(targetClientId, k -> new OutboundTable());
+        if (table.reservedIds.containsKey(event) || table.reservedIds.size() >= maxEventIds) return -1;
+
+        int eventId = table.reservedIds.size();
+        table.reservedIds.put(event, eventId);
+        return eventId;
+    }
+
+    public synchronized void confirm(String targetClientId, String event, int eventId, int alias) {
+        OutboundTable table = outboundTables.get(targetClientId);
+        // the table may have been reset while the definition was on its way
+        if (table == null || !Integer.valueOf(eventId).equals(table.reservedIds.get(event))) return;
+        if (table.alias >= 0 && table.alias != alias) return;
+
+        table.alias = alias;
+        table.confirmedIds.put(event, eventId);
+    }
+
+    // Forgets every id defined at the target, e.g. because it reconnected and lost its dictionary
+    public synchronized void resetTarget(String targetClientId) {
+        outboundTables.remove(targetClientId);
+    }
+
+    // Forgets every id defined at any target, e.g. because we disconnected and the targets forgot our aliases
+    public synchronized void resetTargets() {
+        outboundTables.clear();
+    }
+
+    // Stores a definition sent by senderClientId and returns the alias the sender should use for itself,
+    // or -1 if eventId is outside [0, maxEventIds)
+    public synchronized int define(String senderClientId, String event, int eventId) {
+        if (eventId < 0 || eventId >= maxEventIds) return -1;
+
+        Integer alias = peerAliases.get(senderClientId);
+        if (alias == null) {
+            alias = nextAlias++;
+            peerAliases.put(senderClientId, alias);
+            inboundTables.put(alias, new InboundTable(senderClientId));
+        }
+
+        List<String> events = inboundTables.get(alias).events;
+        while (events.size() <= eventId) events.add(null);
+        events.set(eventId, event);
+        return alias;
+    }
+
+    // Forgets the alias and ids a sender defined, e.g. because it disconnected
+    public synchronized void forgetPeer(String senderClientId) {
+        Integer alias = peerAliases.remove(senderClientId);
+        if (alias != null) inboundTables.remove(alias);
+    }
+
+    // null if the alias is unknown
+    public synchronized String resolvePeer(int alias) {
+        InboundTable table = inboundTables.get(alias);
+        return table != null ? table.senderClientId : null;
+    }
+
+    // null if the sender never defined eventId
+    public synchronized String resolveEvent(int alias, int eventId) {
+        InboundTable table = inboundTables.get(alias);
+        if (table == null) return null;
+
+        return eventId >= 0 && eventId < table.events.size() ? table.events.get(eventId) : null;
+    }
+
+    public synchronized int getPeerCount() {
+        return inboundTables.size();
+    }
+
+    public synchronized int getMaxEventIds() {
+        return maxEventIds;
+    }
+
+    public synchronized void setMaxEventIds(int maxEventIds) {
+        if (maxEventIds < 0) throw new IllegalArgumentException("maxEventIds can not be negative");
+        this.maxEventIds = maxEventIds;
+    }
+
+    private static class OutboundTable {
+        private int alias = -1; // how the target knows us, -1 until the first definition is confirmed
+        private Map<String, Integer> reservedIds = new HashMap<>();
+        private Map<String, Integer> confirmedIds = new HashMap<>();
+    }
+
+    private static class InboundTable {
+        private final String senderClientId;
+        private List<String> events = new ArrayList<>(); // eventId -> event
+
+        private InboundTable(String senderClientId) {
+            this.senderClientId = senderClientId;
+        }
+    }
+}
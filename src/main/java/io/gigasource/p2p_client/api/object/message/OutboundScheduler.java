@@ -0,0 +1,615 @@
+package io.gigasource.p2p_client.api.object.message;
+
+import io.gigasource.p2p_client.exception.OutboundQueueFullException;
+import io.socket.client.Ack;
+import io.socket.client.Socket;
+import io.socket.thread.EventThread;
+import java9.util.concurrent.CompletableFuture;
+import java9.util.function.Consumer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Orders outgoing frames by lane before they reach the socket.io buffer.
+// Acknowledged frames count as in flight until their ack arrives; a lane stops sending once it reaches its
+// in-flight limit, so bulk data (stream chunks) can't fill the socket buffer in front of control messages.
+// The limit applies to each owner of a lane on its own (see ownedBy, frames without an owner share one limit),
+// and owners with frames ready take turns. A stream whose peer is slow to ack only holds back its own frames,
+// every owner can have a window of frames in flight.
+// Frames are held while the socket is disconnected instead of piling up in socket.io's own send buffer.
+// A frame whose ack doesn't arrive within the ack timeout frees its slot anyway (its ack is still called if it
+// arrives later), so a peer which never acks can't take the lane over for good.
+//
+// Pending frames (queued + in flight) are bounded by a high watermark: once reached the scheduler is not writable
+// until pending frames fall to the low watermark, and new frames are handled according to the OverflowPolicy.
+public class OutboundScheduler {
+    public enum Lane {
+        CONTROL, // add target / create stream / small RPC emits
+        BULK     // stream data
+    }
+
+    public enum Policy {
+        STRICT,  // a lower lane only sends when every higher lane is empty or at its limit
+        WEIGHTED // eligible lanes share the socket in proportion to their weights
+    }
+
+    public enum OverflowPolicy {
+        BLOCK,       // wait until writable again, at most the block timeout, then fail like FAIL_FAST
+                     // (never blocks the socket.io event thread, which delivers the acks)
+        FAIL_FAST,   // throw OutboundQueueFullException
+        DROP_OLDEST  // drop the oldest queued frame without ack, fail like FAIL_FAST if there is none
+    }
+
+    public static final int DEFAULT_BULK_MAX_IN_FLIGHT = 32; // per owner
+    public static final int DEFAULT_HIGH_WATERMARK = 4096;
+    public static final int DEFAULT_LOW_WATERMARK = 2048;
+    public static final long DEFAULT_ACK_TIMEOUT = 30000; // ms
+    public static final long DEFAULT_BLOCK_TIMEOUT = 30000; // ms
+
+    private Socket socket;
+    private List<LaneQueue> queues;
+    private Set<Frame> inFlightFrames = new LinkedHashSet<>(); // in the order they were sent
+    private int[] inFlight;
+    private int[] maxInFlight;
+    private int[] weights;
+    private int[] credits;
+    private Policy policy = Policy.STRICT;
+    private boolean draining;
+    private long nextFrameId;
+    private int pending; // queued + in flight
+    private int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private boolean writable = true;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private List<Consumer<Void>> drainCallbacks = new CopyOnWriteArrayList<>();
+    private long ackTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_ACK_TIMEOUT); // 0 waits for acks forever
+    private boolean ackTimeoutScheduled;
+    private long blockTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCK_TIMEOUT); // 0 blocks until writable
+
+    public OutboundScheduler(Socket socket) {
+        int laneCount = Lane.values().length;
+
+        this.socket = socket;
+        queues = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) queues.add(new LaneQueue());
+        inFlight = new int[laneCount];
+        maxInFlight = new int[laneCount];
+        Arrays.fill(maxInFlight, Integer.MAX_VALUE);
+        maxInFlight[Lane.BULK.ordinal()] = DEFAULT_BULK_MAX_IN_FLIGHT;
+        weights = new int[laneCount];
+        weights[Lane.CONTROL.ordinal()] = 4;
+        weights[Lane.BULK.ordinal()] = 1;
+        credits = weights.clone();
+
+        socket.on(Socket.EVENT_DISCONNECT, args -> {
+            int released = 0;
+            synchronized (this) {
+                // acks of frames sent before can't arrive anymore
+                for (Frame frame : inFlightFrames) freeSlotOf(frame);
+                released = inFlightFrames.size();
+                inFlightFrames.clear();
+            }
+            release(released);
+            drain();
+        });
+        socket.on(Socket.EVENT_CONNECT, args -> drain());
+    }
+
+    // args may end with an Ack, like Socket.emit
+    public void emit(Lane lane, String event, Object... args) {
+        emit(lane, null, event, args);
+    }
+
+    // onSent is called once the frame leaves the scheduler: handed to the socket, or dropped by DROP_OLDEST
+    public void emit(Lane lane, Runnable onSent, String event, Object... args) {
+        Frame dropped;
+
+        synchronized (this) {
+            dropped = admit();
+            queues.get(lane.ordinal()).add(new Frame(lane, event, args, onSent, nextFrameId++), false);
+        }
+        if (dropped != null && dropped.onSent != null) dropped.onSent.run(); // e.g. lets the outbox forget it
+        drain();
+    }
+
+    // Counts a message held back before it reaches the scheduler (see RateLimiter) as pending, applying the
+    // overflow policy now, on the caller's thread. The holder calls unreserve() right before emitting it.
+    public void reserve() {
+        Frame dropped;
+        synchronized (this) {
+            dropped = admit();
+        }
+        if (dropped != null && dropped.onSent != null) dropped.onSent.run();
+    }
+
+    public void unreserve() {
+        release(1);
+    }
+
+    // Queues a frame in front of everything waiting in its lane, ignoring the overflow policy.
+    // Used to resend frames whose ack was lost, which must go out before anything queued after them.
+    public void emitFirst(Lane lane, Runnable onSent, String event, Object... args) {
+        synchronized (this) {
+            queues.get(lane.ordinal()).add(new Frame(lane, event, args, onSent, nextFrameId++), true);
+            pending++;
+            if (pending >= highWatermark) writable = false;
+        }
+        drain();
+    }
+
+    public synchronized boolean isWritable() {
+        return writable;
+    }
+
+    public synchronized int getPendingFrames() {
+        return pending;
+    }
+
+    // Drops the queued frames of owner and frees the slots of its frames in flight, for a sender which won't wait
+    // for them anymore (e.g. a destroyed stream). Dropped frames are never sent, their acks are never called.
+    public void cancel(Object owner) {
+        int released = 0;
+
+        synchronized (this) {
+            for (LaneQueue queue : queues) released += queue.removeAll(owner);
+
+            for (Iterator<Frame> iterator = inFlightFrames.iterator(); iterator.hasNext(); ) {
+                Frame frame = iterator.next();
+                if (frame.owner != owner) continue;
+                iterator.remove();
+                freeSlotOf(frame);
+                released++;
+            }
+        }
+
+        release(released);
+        drain();
+    }
+
+    // Tags the frame of an ack with its owner, e.g. the stream sending it: the owner gets its own share of the
+    // lane's in-flight limit, and can drop its frames with cancel
+    public static Ack ownedBy(Object owner, Ack ack) {
+        return new OwnedAck(owner, ack);
+    }
+
+    public synchronized long getAckTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(ackTimeout);
+    }
+
+    // 0 keeps the slot of a frame until its ack arrives or the socket disconnects
+    public synchronized void setAckTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout must not be negative");
+        ackTimeout = unit.toNanos(timeout);
+    }
+
+    // callback is called every time the scheduler becomes writable again
+    public void onDrain(Consumer<Void> callback) {
+        drainCallbacks.add(callback);
+    }
+
+    public void offDrain(Consumer<Void> callback) {
+        drainCallbacks.remove(callback);
+    }
+
+    public synchronized void setWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark <= lowWatermark) {
+            throw new IllegalArgumentException("watermarks must satisfy 0 <= lowWatermark < highWatermark");
+        }
+
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        if (pending >= highWatermark) writable = false;
+    }
+
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public synchronized void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        notifyAll();
+    }
+
+    public synchronized int getQueueDepth(Lane lane) {
+        return queues.get(lane.ordinal()).size;
+    }
+
+    public synchronized int getInFlight(Lane lane) {
+        return inFlight[lane.ordinal()];
+    }
+
+    // frames of one owner which may wait for their ack at the same time
+    public synchronized int getMaxInFlight(Lane lane) {
+        return maxInFlight[lane.ordinal()];
+    }
+
+    public void setMaxInFlight(Lane lane, int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1");
+
+        synchronized (this) {
+            this.maxInFlight[lane.ordinal()] = maxInFlight;
+        }
+        drain();
+    }
+
+    public synchronized long getBlockTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(blockTimeout);
+    }
+
+    // how long BLOCK waits for the queue to drain before failing, 0 waits as long as it takes
+    public synchronized void setBlockTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout must not be negative");
+        blockTimeout = unit.toNanos(timeout);
+    }
+
+    // Applies the overflow policy to one more frame and counts it as pending, returns the frame dropped for it if any.
+    // The rate limiter's thread only emits messages which were admitted by reserve() when they were submitted.
+    private Frame admit() {
+        Frame dropped = null;
+
+        if (!writable && !RateLimiter.isTimerThread()) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    awaitWritable();
+                    break;
+                case FAIL_FAST:
+                    throw new OutboundQueueFullException("Outbound queue is full, " + pending + " frames pending");
+                case DROP_OLDEST:
+                    dropped = pollOldestWithoutAck();
+                    if (dropped == null) {
+                        throw new OutboundQueueFullException("Outbound queue is full and has no frame to drop");
+                    }
+                    break;
+            }
+        }
+
+        if (dropped == null) pending++;
+        if (pending >= highWatermark) writable = false;
+        return dropped;
+    }
+
+    private void awaitWritable() {
+        if (EventThread.isCurrent()) return; // acks run on this thread, waiting here would never end
+
+        long deadline = System.nanoTime() + blockTimeout;
+        try {
+            while (!writable && overflowPolicy == OverflowPolicy.BLOCK) {
+                if (blockTimeout == 0) {
+                    wait();
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new OutboundQueueFullException("Outbound queue is still full after "
+                            + TimeUnit.NANOSECONDS.toMillis(blockTimeout) + " ms, " + pending + " frames pending");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OutboundQueueFullException("Interrupted while waiting for the outbound queue to drain");
+        }
+    }
+
+    private Frame pollOldestWithoutAck() {
+        Frame oldest = null;
+        LaneQueue oldestQueue = null;
+
+        for (LaneQueue queue : queues) {
+            for (Flow flow : queue.ready) {
+                for (Frame frame : flow.frames) {
+                    if (frame.ack != null) continue;
+                    if (oldest == null || frame.id < oldest.id) {
+                        oldest = frame;
+                        oldestQueue = queue;
+                    }
+                    break; // frames are in order within a flow
+                }
+            }
+        }
+
+        if (oldestQueue != null) oldestQueue.remove(oldest);
+        return oldest;
+    }
+
+    private void release(int frames) {
+        if (frames == 0) return;
+
+        boolean becameWritable;
+        synchronized (this) {
+            pending -= frames;
+            becameWritable = !writable && pending <= lowWatermark;
+            if (becameWritable) {
+                writable = true;
+                notifyAll();
+            }
+        }
+
+        if (becameWritable) {
+            for (Consumer<Void> callback : drainCallbacks) callback.accept(null);
+        }
+    }
+
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public synchronized void setWeight(Lane lane, int weight) {
+        if (weight < 1) throw new IllegalArgumentException("weight must be at least 1");
+
+        weights[lane.ordinal()] = weight;
+        credits[lane.ordinal()] = Math.min(credits[lane.ordinal()], weight);
+    }
+
+    // Sends every frame the lane limits allow. Only one thread drains at a time, which keeps each lane in order;
+    // frames queued meanwhile (also re-entrantly from an ack) are picked up by the draining thread.
+    private void drain() {
+        synchronized (this) {
+            if (draining) return;
+            draining = true;
+        }
+
+        try {
+            while (true) {
+                Frame frame;
+
+                synchronized (this) {
+                    Lane lane = policy == Policy.STRICT ? nextStrictLane() : nextWeightedLane();
+                    if (lane == null) {
+                        draining = false;
+                        return;
+                    }
+
+                    LaneQueue queue = queues.get(lane.ordinal());
+                    frame = queue.poll(maxInFlight[lane.ordinal()]);
+                    if (frame.ack != null) {
+                        inFlight[lane.ordinal()]++;
+                        frame.flow.inFlight++;
+                        frame.inFlight = true;
+                        frame.sentAt = System.nanoTime();
+                        inFlightFrames.add(frame);
+                        scheduleAckTimeout(ackTimeout);
+                    } else {
+                        queue.forgetIfIdle(frame.flow);
+                    }
+                }
+
+                send(frame);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                draining = false;
+            }
+            throw e;
+        }
+    }
+
+    private Lane nextStrictLane() {
+        for (Lane lane : Lane.values()) {
+            if (isEligible(lane)) return lane;
+        }
+        return null;
+    }
+
+    private Lane nextWeightedLane() {
+        for (int round = 0; round < 2; round++) {
+            boolean anyEligible = false;
+
+            for (Lane lane : Lane.values()) {
+                if (!isEligible(lane)) continue;
+
+                anyEligible = true;
+                if (credits[lane.ordinal()] > 0) {
+                    credits[lane.ordinal()]--;
+                    return lane;
+                }
+            }
+
+            if (!anyEligible) return null;
+            credits = weights.clone(); // every eligible lane used up its share, start a new round
+        }
+        return null;
+    }
+
+    private boolean isEligible(Lane lane) {
+        return socket.connected() && queues.get(lane.ordinal()).nextFlow(maxInFlight[lane.ordinal()]) != null;
+    }
+
+    private void send(Frame frame) {
+        if (frame.ack == null) {
+            socket.emit(frame.event, frame.args);
+            if (frame.onSent != null) frame.onSent.run();
+            release(1);
+            return;
+        }
+
+        Object[] args = frame.args.clone();
+        frame.args = null; // in flight until acked, but the payload is not needed anymore
+        args[args.length - 1] = (Ack) ackArgs -> {
+            if (freeSlot(frame)) release(1); // otherwise already released on timeout, cancel or disconnect
+            frame.ack.call(ackArgs);
+            drain();
+        };
+        socket.emit(frame.event, args);
+        if (frame.onSent != null) frame.onSent.run();
+    }
+
+    private synchronized boolean freeSlot(Frame frame) {
+        if (!frame.inFlight) return false;
+
+        inFlightFrames.remove(frame);
+        freeSlotOf(frame);
+        return true;
+    }
+
+    // the caller removes frame from inFlightFrames
+    private void freeSlotOf(Frame frame) {
+        frame.inFlight = false;
+        inFlight[frame.lane.ordinal()]--;
+        frame.flow.inFlight--;
+        queues.get(frame.lane.ordinal()).forgetIfIdle(frame.flow);
+    }
+
+    // One timer at a time, due when the oldest frame in flight times out
+    private void scheduleAckTimeout(long delay) {
+        if (ackTimeoutScheduled || ackTimeout == 0) return;
+
+        ackTimeoutScheduled = true;
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(this::expireFrames);
+    }
+
+    private void expireFrames() {
+        int released = 0;
+
+        synchronized (this) {
+            ackTimeoutScheduled = false;
+            long now = System.nanoTime();
+
+            for (Iterator<Frame> iterator = inFlightFrames.iterator(); iterator.hasNext(); ) {
+                Frame frame = iterator.next();
+                long remaining = frame.sentAt + ackTimeout - now;
+                if (remaining > 0) {
+                    scheduleAckTimeout(remaining);
+                    break;
+                }
+
+                iterator.remove();
+                freeSlotOf(frame);
+                released++;
+            }
+        }
+
+        release(released);
+        drain();
+    }
+
+    // Frames of one lane, queued per owner. Owners with a frame they may send take turns, one frame each.
+    private static class LaneQueue {
+        private final Map<Object, Flow> flows = new HashMap<>(); // owner -> its frames, while queued or in flight
+        private final Deque<Flow> ready = new ArrayDeque<>(); // flows with queued frames, next turn first
+        private int size;
+
+        void add(Frame frame, boolean first) {
+            Flow flow = flows.get(frame.owner);
+            if (flow == null) {
+                flow = new Flow(frame.owner);
+                flows.put(frame.owner, flow);
+            }
+            if (flow.frames.isEmpty()) ready.add(flow);
+
+            if (first) {
+                flow.frames.addFirst(frame);
+                ready.remove(flow);
+                ready.addFirst(flow);
+            } else {
+                flow.frames.add(frame);
+            }
+            frame.flow = flow;
+            size++;
+        }
+
+        // The first flow in turn whose next frame needs no ack or fits in its in-flight limit
+        Flow nextFlow(int maxInFlight) {
+            for (Flow flow : ready) {
+                if (flow.frames.peek().ack == null || flow.inFlight < maxInFlight) return flow;
+            }
+            return null;
+        }
+
+        Frame poll(int maxInFlight) {
+            Flow flow = nextFlow(maxInFlight);
+            ready.remove(flow);
+            Frame frame = flow.frames.poll();
+            if (!flow.frames.isEmpty()) ready.add(flow); // its next frame waits for the other flows' turns
+            size--;
+            return frame;
+        }
+
+        void remove(Frame frame) {
+            frame.flow.frames.remove(frame);
+            if (frame.flow.frames.isEmpty()) ready.remove(frame.flow);
+            size--;
+            forgetIfIdle(frame.flow);
+        }
+
+        // Returns how many queued frames were removed
+        int removeAll(Object owner) {
+            Flow flow = flows.get(owner);
+            if (flow == null) return 0;
+
+            int removed = flow.frames.size();
+            flow.frames.clear();
+            ready.remove(flow);
+            size -= removed;
+            forgetIfIdle(flow);
+            return removed;
+        }
+
+        void forgetIfIdle(Flow flow) {
+            if (flow.frames.isEmpty() && flow.inFlight == 0 && flows.get(flow.owner) == flow) flows.remove(flow.owner);
+        }
+    }
+
+    private static class Flow {
+        private final Object owner;
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private int inFlight;
+
+        Flow(Object owner) {
+            this.owner = owner;
+        }
+    }
+
+    private static class Frame {
+        private Lane lane;
+        private String event;
+        private Object[] args;
+        private Ack ack;
+        private Runnable onSent;
+        private long id;
+        private Object owner;
+        private Flow flow;
+        private boolean inFlight; // guarded by the scheduler
+        private long sentAt;
+
+        Frame(Lane lane, String event, Object[] args, Runnable onSent, long id) {
+            this.id = id;
+            this.onSent = onSent;
+            this.lane = lane;
+            this.event = event;
+            this.args = args;
+            this.ack = args.length > 0 && args[args.length - 1] instanceof Ack ? (Ack) args[args.length - 1] : null;
+            if (ack instanceof OwnedAck) owner = ((OwnedAck) ack).owner;
+        }
+    }
+
+    private static class OwnedAck implements Ack {
+        private Object owner;
+        private Ack ack;
+
+        OwnedAck(Object owner, Ack ack) {
+            this.owner = owner;
+            this.ack = ack;
+        }
+
+        @Override
+        public void call(Object... args) {
+            ack.call(args);
+        }
+    }
+}
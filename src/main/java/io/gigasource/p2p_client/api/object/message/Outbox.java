@@ -0,0 +1,269 @@
+package io.gigasource.p2p_client.api.object.message;
+
+import io.gigasource.p2p_client.exception.OutboundQueueFullException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Journal of outgoing messages in a fixed-size memory-mapped file, so unacknowledged messages survive
+// disconnects and restarts. Appending is a copy into the mapping; the OS writes pages back in the background
+// (call flush() to force them to disk). Acknowledged records are skipped at the head of the journal,
+// and live records are moved to the front when an append doesn't fit anymore: they are written to a new file
+// (<file>.compact), forced to disk, which then replaces the journal. A crash meanwhile leaves the old journal whole.
+//
+// File layout: [magic int][head int][next id long] then records [length int][id long][flags byte][payload],
+// terminated by a zero length. The payload is [targetClientId, event, args...] encoded with BinaryPayloadCodec.
+public class Outbox implements Closeable {
+    private static final int MAGIC = 0x50324f42; // "P2OB"
+    private static final int HEADER_SIZE = 16;
+    private static final int HEAD_OFFSET = 4;
+    private static final int NEXT_ID_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 13;
+    private static final byte FLAG_DONE = 1;
+    private static final byte FLAG_EXPECTS_ACK = 2;
+
+    private File path;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private PayloadCodec codec = new BinaryPayloadCodec();
+    private Map<Long, Integer> liveRecords = new LinkedHashMap<>(); // id -> record offset, in append order
+    private int head;
+    private int tail;
+    private long nextId;
+
+    public Outbox(File path, int capacity) throws IOException {
+        if (capacity < HEADER_SIZE + RECORD_HEADER_SIZE + 4) throw new IllegalArgumentException("capacity is too small");
+
+        this.path = path;
+        file = new RandomAccessFile(path, "rw");
+        int mappedSize = (int) Math.max(capacity, Math.min(file.length(), Integer.MAX_VALUE));
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+
+        if (buffer.getInt(0) == MAGIC) recover();
+        else initialize();
+    }
+
+    // Appends a message and returns its id; fails with OutboundQueueFullException if the journal is full
+    public synchronized long append(String targetClientId, String event, Object[] args, int argCount,
+                                    boolean expectsAck) throws IOException {
+        Object[] record = new Object[argCount + 2];
+        record[0] = targetClientId;
+        record[1] = event;
+        System.arraycopy(args, 0, record, 2, argCount);
+        byte[] payload = codec.encode(record, record.length);
+
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        // only worth a new file if it makes room
+        if (tail + recordSize + 4 > buffer.capacity() && HEADER_SIZE + liveBytes() + recordSize + 4 <= buffer.capacity()) {
+            compact();
+        }
+        if (tail + recordSize + 4 > buffer.capacity()) {
+            throw new OutboundQueueFullException("Outbox is full, " + liveRecords.size() + " messages are not acknowledged");
+        }
+
+        long id = nextId++;
+        buffer.putLong(tail + 4, id);
+        buffer.put(tail + 12, expectsAck ? FLAG_EXPECTS_ACK : 0);
+        writeBytes(tail + RECORD_HEADER_SIZE, payload);
+        buffer.putInt(tail + recordSize, 0); // terminator, stale records behind it must never be read back
+        buffer.putInt(tail, payload.length);
+        buffer.putLong(NEXT_ID_OFFSET, nextId);
+
+        liveRecords.put(id, tail);
+        tail += recordSize;
+        return id;
+    }
+
+    // Marks a message as delivered so its space can be reused
+    public synchronized void acknowledge(long id) {
+        Integer offset = liveRecords.remove(id);
+        if (offset == null) return;
+
+        buffer.put(offset + 12, (byte) (buffer.get(offset + 12) | FLAG_DONE));
+
+        if (liveRecords.isEmpty()) {
+            // nothing left, restart from the front
+            buffer.putInt(HEADER_SIZE, 0);
+            head = tail = HEADER_SIZE;
+        } else {
+            while (head < tail && (buffer.get(head + 12) & FLAG_DONE) != 0) head += RECORD_HEADER_SIZE + buffer.getInt(head);
+        }
+        buffer.putInt(HEAD_OFFSET, head);
+    }
+
+    // Messages which are not acknowledged yet, oldest first
+    public synchronized List<Entry> pendingEntries() throws IOException {
+        List<Entry> entries = new ArrayList<>(liveRecords.size());
+
+        for (Map.Entry<Long, Integer> liveRecord : liveRecords.entrySet()) {
+            int offset = liveRecord.getValue();
+            byte[] payload = readBytes(offset + RECORD_HEADER_SIZE, buffer.getInt(offset));
+            Object[] record = codec.decode(payload);
+
+            entries.add(new Entry(liveRecord.getKey(), (String) record[0], (String) record[1],
+                    Arrays.copyOfRange(record, 2, record.length), (buffer.get(offset + 12) & FLAG_EXPECTS_ACK) != 0));
+        }
+
+        return entries;
+    }
+
+    public synchronized boolean isPending(long id) {
+        return liveRecords.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return liveRecords.size();
+    }
+
+    public synchronized int usedBytes() {
+        return tail - head;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private void initialize() {
+        buffer.putInt(HEADER_SIZE, 0);
+        buffer.putInt(HEAD_OFFSET, HEADER_SIZE);
+        buffer.putLong(NEXT_ID_OFFSET, 0);
+        buffer.putInt(0, MAGIC);
+        head = tail = HEADER_SIZE;
+    }
+
+    private void recover() {
+        head = buffer.getInt(HEAD_OFFSET);
+        nextId = buffer.getLong(NEXT_ID_OFFSET);
+
+        int offset = head;
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + RECORD_HEADER_SIZE + length > buffer.capacity()) break;
+
+            if ((buffer.get(offset + 12) & FLAG_DONE) == 0) liveRecords.put(buffer.getLong(offset + 4), offset);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        tail = offset;
+    }
+
+    private int liveBytes() {
+        int bytes = 0;
+        for (int offset : liveRecords.values()) bytes += RECORD_HEADER_SIZE + buffer.getInt(offset);
+        return bytes;
+    }
+
+    // Moves live records to the front of a new journal, dropping the acknowledged ones in between
+    private void compact() throws IOException {
+        File compactedPath = new File(path.getPath() + ".compact");
+        RandomAccessFile compactedFile = new RandomAccessFile(compactedPath, "rw");
+        MappedByteBuffer compacted;
+        Map<Long, Integer> movedRecords = new LinkedHashMap<>();
+        int writeOffset = HEADER_SIZE;
+
+        try {
+            compactedFile.setLength(0); // left over by a crash in the middle of an earlier compaction
+            compacted = compactedFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, buffer.capacity());
+
+            for (Map.Entry<Long, Integer> liveRecord : liveRecords.entrySet()) {
+                int offset = liveRecord.getValue();
+                int recordSize = RECORD_HEADER_SIZE + buffer.getInt(offset);
+
+                ByteBuffer view = compacted.duplicate();
+                view.position(writeOffset);
+                view.put(readBytes(offset, recordSize));
+                movedRecords.put(liveRecord.getKey(), writeOffset);
+                writeOffset += recordSize;
+            }
+
+            compacted.putInt(writeOffset, 0);
+            compacted.putInt(HEAD_OFFSET, HEADER_SIZE);
+            compacted.putLong(NEXT_ID_OFFSET, nextId);
+            compacted.putInt(0, MAGIC);
+            compacted.force();
+            Files.move(compactedPath.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            compactedFile.close();
+            throw e;
+        }
+
+        file.close();
+        file = compactedFile;
+        buffer = compacted;
+        liveRecords = movedRecords;
+        head = HEADER_SIZE;
+        tail = writeOffset;
+    }
+
+    private void writeBytes(int offset, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    private byte[] readBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    public static class Entry {
+        private long id;
+        private String targetClientId;
+        private String event;
+        private Object[] args;
+        private boolean expectsAck;
+
+        Entry(long id, String targetClientId, String event, Object[] args, boolean expectsAck) {
+            this.id = id;
+            this.targetClientId = targetClientId;
+            this.event = event;
+            this.args = args;
+            this.expectsAck = expectsAck;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getTargetClientId() {
+            return targetClientId;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public Object[] getArgs() {
+            return args;
+        }
+
+        public boolean expectsAck() {
+            return expectsAck;
+        }
+    }
+}
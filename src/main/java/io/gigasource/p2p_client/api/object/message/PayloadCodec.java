@@ -0,0 +1,18 @@
+package io.gigasource.p2p_client.api.object.message;
+
+import java.io.IOException;
+
+// Encodes emitTo args into a single binary attachment. Codecs are registered on Message and negotiated per target,
+// a target without a negotiated codec keeps receiving the args as JSON.
+// Encoded emits travel as SocketEvent.P2P_CODEC_EMIT with args [sender, event, codec name, encoded bytes, (ack)].
+public interface PayloadCodec {
+    String JSON = "json";
+
+    // name exchanged during negotiation, must be the same on both peers
+    String getName();
+
+    // encodes the first argCount elements of args
+    byte[] encode(Object[] args, int argCount) throws IOException;
+
+    Object[] decode(byte[] payload) throws IOException;
+}
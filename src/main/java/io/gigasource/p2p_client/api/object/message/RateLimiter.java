@@ -0,0 +1,301 @@
+package io.gigasource.p2p_client.api.object.message;
+
+import io.socket.client.Ack;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Token-bucket shaping of outgoing messages, globally and per target, in messages/s and bytes/s.
+// A send within the limits goes out on the caller thread; otherwise it is queued behind earlier sends to the same
+// target (keeping their order) and released by a single shared timer thread once every bucket has enough tokens.
+// Buckets hold one second worth of tokens, a message bigger than that is let through once the bucket is full.
+// The limiter stays enabled while sends are queued, even once every limit is removed: later sends queue behind
+// them until they went out, so a cleared or raised limit can't let new messages overtake waiting ones.
+// Queued sends count as pending frames of the scheduler from the moment they are queued: its overflow policy applies
+// to them on the submitting thread, and the timer thread never waits for the scheduler or is refused by it.
+public class RateLimiter {
+    public static final double UNLIMITED = 0;
+
+    private OutboundScheduler scheduler;
+    private TokenBucket globalMessages;
+    private TokenBucket globalBytes;
+    private Map<String, TargetState> targets = new HashMap<>(); // limited targets and targets with queued sends
+    private volatile boolean enabled;
+    private ScheduledExecutorService timer;
+
+    public RateLimiter(OutboundScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // true on the thread sending queued messages
+    static boolean isTimerThread() {
+        return Thread.currentThread() instanceof TimerThread;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // a rate <= 0 (UNLIMITED) removes that limit
+    public synchronized void setGlobalLimit(double messagesPerSecond, double bytesPerSecond) {
+        globalMessages = updateBucket(globalMessages, messagesPerSecond, 1);
+        globalBytes = updateBucket(globalBytes, bytesPerSecond, 0);
+        onLimitsChanged();
+    }
+
+    public synchronized void setTargetLimit(String targetClientId, double messagesPerSecond, double bytesPerSecond) {
+        TargetState state = stateOf(targetClientId);
+
+        state.messages = updateBucket(state.messages, messagesPerSecond, 1);
+        state.bytes = updateBucket(state.bytes, bytesPerSecond, 0);
+
+        forgetIfIdle(targetClientId, state);
+        onLimitsChanged();
+    }
+
+    public void removeTargetLimit(String targetClientId) {
+        setTargetLimit(targetClientId, UNLIMITED, UNLIMITED);
+    }
+
+    // args may end with an Ack, which is not counted
+    public void submit(String targetClientId, Object[] args, Runnable send) {
+        boolean allowed;
+        synchronized (this) {
+            TargetState state = stateOf(targetClientId);
+            double cost = needsByteCount(state) ? estimateBytes(args) : 0;
+
+            allowed = state.queue.isEmpty() && !state.draining && tryAcquire(state, cost);
+            if (allowed) forgetIfIdle(targetClientId, state);
+        }
+        if (allowed) {
+            send.run();
+            return;
+        }
+
+        // may wait for the scheduler to drain (BLOCK), so not while holding the lock
+        scheduler.reserve();
+        synchronized (this) {
+            TargetState state = stateOf(targetClientId);
+            state.queue.add(new PendingSend(needsByteCount(state) ? estimateBytes(args) : 0, send));
+            schedule(targetClientId, state);
+        }
+    }
+
+    public synchronized int getQueuedMessages(String targetClientId) {
+        TargetState state = targets.get(targetClientId);
+        return state != null ? state.queue.size() : 0;
+    }
+
+    private void drain(String targetClientId) {
+        while (true) {
+            PendingSend pendingSend;
+
+            synchronized (this) {
+                TargetState state = targets.get(targetClientId);
+                if (state == null) return;
+
+                state.scheduledDrain = null;
+                state.draining = false;
+                pendingSend = state.queue.peek();
+                if (pendingSend == null) {
+                    forgetIfIdle(targetClientId, state);
+                    return;
+                }
+
+                if (!tryAcquire(state, pendingSend.cost)) {
+                    schedule(targetClientId, state);
+                    return;
+                }
+
+                state.queue.poll();
+                state.draining = true; // sends submitted meanwhile queue behind this one
+            }
+
+            scheduler.unreserve(); // counted again as the send queues its frame
+            try {
+                pendingSend.send.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // don't kill the shared timer thread
+            }
+        }
+    }
+
+    private void schedule(String targetClientId, TargetState state) {
+        if (state.scheduledDrain != null) return;
+
+        long now = System.nanoTime();
+        long delay = 0;
+        for (TokenBucket bucket : bucketsOf(state)) {
+            bucket.refill(now);
+            delay = Math.max(delay, bucket.nanosUntil(bucket == globalBytes || bucket == state.bytes
+                    ? state.queue.peek().cost : 1));
+        }
+
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(TimerThread::new);
+        }
+
+        state.scheduledDrain = timer.schedule(() -> drain(targetClientId), delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void onLimitsChanged() {
+        updateEnabled();
+
+        // queued sends may be allowed earlier (or only later) now, re-evaluate them
+        for (Map.Entry<String, TargetState> entry : targets.entrySet()) {
+            TargetState state = entry.getValue();
+            if (state.queue.isEmpty()) continue;
+
+            if (state.scheduledDrain != null) {
+                state.scheduledDrain.cancel(false);
+                state.scheduledDrain = null;
+            }
+            schedule(entry.getKey(), state);
+        }
+    }
+
+    private void forgetIfIdle(String targetClientId, TargetState state) {
+        if (state.isLimited() || !state.queue.isEmpty() || state.draining) return;
+
+        targets.remove(targetClientId);
+        updateEnabled();
+    }
+
+    private void updateEnabled() {
+        enabled = globalMessages != null || globalBytes != null || !targets.isEmpty();
+    }
+
+    private boolean tryAcquire(TargetState state, double bytes) {
+        long now = System.nanoTime();
+        List<TokenBucket> buckets = bucketsOf(state);
+
+        for (TokenBucket bucket : buckets) {
+            bucket.refill(now);
+            if (!bucket.canTake(bucket == globalBytes || bucket == state.bytes ? bytes : 1)) return false;
+        }
+        for (TokenBucket bucket : buckets) bucket.take(bucket == globalBytes || bucket == state.bytes ? bytes : 1);
+
+        return true;
+    }
+
+    private List<TokenBucket> bucketsOf(TargetState state) {
+        List<TokenBucket> buckets = new ArrayList<>(4);
+        if (globalMessages != null) buckets.add(globalMessages);
+        if (globalBytes != null) buckets.add(globalBytes);
+        if (state.messages != null) buckets.add(state.messages);
+        if (state.bytes != null) buckets.add(state.bytes);
+        return buckets;
+    }
+
+    private boolean needsByteCount(TargetState state) {
+        return globalBytes != null || state.bytes != null;
+    }
+
+    private TargetState stateOf(String targetClientId) {
+        TargetState state = targets.get(targetClientId);
+        if (state == null) {
+            state = new TargetState();
+            targets.put(targetClientId, state);
+        }
+        return state;
+    }
+
+    private static TokenBucket updateBucket(TokenBucket bucket, double rate, double minCapacity) {
+        if (rate <= 0) return null;
+        if (bucket == null) return new TokenBucket(rate, minCapacity);
+
+        bucket.setRate(rate, minCapacity);
+        return bucket;
+    }
+
+    // Rough size of the args on the wire, exact enough for shaping without serializing them twice
+    static long estimateBytes(Object[] args) {
+        long bytes = 0;
+
+        for (Object arg : args) {
+            if (arg instanceof byte[]) bytes += ((byte[]) arg).length;
+            else if (arg instanceof String) bytes += ((String) arg).length() + 2;
+            else if (arg instanceof JSONObject || arg instanceof JSONArray) bytes += arg.toString().length();
+            else if (arg instanceof Ack) continue;
+            else bytes += String.valueOf(arg).length();
+        }
+
+        return bytes;
+    }
+
+    private static class TargetState {
+        private TokenBucket messages;
+        private TokenBucket bytes;
+        private Deque<PendingSend> queue = new ArrayDeque<>();
+        private ScheduledFuture<?> scheduledDrain;
+        private boolean draining; // a polled send is running on the timer thread
+
+        boolean isLimited() {
+            return messages != null || bytes != null;
+        }
+    }
+
+    private static class TimerThread extends Thread {
+        TimerThread(Runnable runnable) {
+            super(runnable, "p2p-rate-limiter");
+            setDaemon(true);
+        }
+    }
+
+    private static class PendingSend {
+        private double cost;
+        private Runnable send;
+
+        PendingSend(double cost, Runnable send) {
+            this.cost = cost;
+            this.send = send;
+        }
+    }
+
+    private static class TokenBucket {
+        private double rate; // tokens per second
+        private double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double rate, double minCapacity) {
+            setRate(rate, minCapacity);
+            tokens = capacity;
+            lastRefill = System.nanoTime();
+        }
+
+        void setRate(double rate, double minCapacity) {
+            this.rate = rate;
+            capacity = Math.max(rate, minCapacity);
+            tokens = Math.min(tokens, capacity);
+        }
+
+        void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        }
+
+        boolean canTake(double cost) {
+            return tokens >= Math.min(cost, capacity);
+        }
+
+        void take(double cost) {
+            tokens -= cost; // may go negative for messages bigger than the capacity
+        }
+
+        long nanosUntil(double cost) {
+            double missing = Math.min(cost, capacity) - tokens;
+            return missing <= 0 ? 0 : (long) Math.ceil(missing / rate * 1e9);
+        }
+    }
+}
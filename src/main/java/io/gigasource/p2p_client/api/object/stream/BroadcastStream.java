@@ -0,0 +1,399 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.exception.P2pStreamException;
+import java9.util.concurrent.CompletableFuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+// Sends one source to many targets: the source is read once into shared chunks, and every target's duplex
+// sends them within its own window (Duplex.sendChunk) and its own bulk slots of the OutboundScheduler, so chunks
+// waiting for a slow target's acks never hold a fast target's chunks back. A chunk counts the targets which did
+// not ack it yet and is kept until the last of them did, then its array goes back to the chunk pool.
+//
+// At most maxLag bytes are kept, so reading stops once the slowest target is maxLag behind. If another target
+// has sent everything read so far by then, the slowest ones are holding it back: the targets still missing
+// the oldest chunk are dropped, their duplexes destroyed. If every target still has chunks to send, they are all
+// limited by their networks and reading just waits.
+//
+// Each target gets a stream through its onAddP2pStream callback. Once it acked the whole source the stream is
+// destroyed, which the target sees as the end of the data (Duplex.onDestroy).
+public class BroadcastStream {
+    public static final long DEFAULT_MAX_LAG = 8 * 1024 * 1024;
+    private static final int CHUNKS_PER_READ_TURN = 16;
+
+    private final Stream streamApi;
+    private final Set<String> targetClientIds;
+    private final InputStream source;
+    private final long maxLag;
+    private final Executor readExecutor;
+    private final ChunkPool chunkPool = ChunkPool.shared();
+    private final int chunkSize = ChunkSizer.DEFAULT_CHUNK_SIZE;
+    private final Map<String, Target> targets = new LinkedHashMap<>(); // the ones still receiving, guarded by this
+    private final Set<String> delivered = new LinkedHashSet<>(); // guarded by this
+    private final Map<String, Throwable> dropped = new LinkedHashMap<>(); // guarded by this
+    private final List<SharedChunk> chunks = new ArrayList<>(); // from firstIndex on, guarded by this
+    private long firstIndex;
+    private long readIndex; // of the next chunk read
+    private long bufferedBytes;
+    private long bytesRead;
+    private boolean readScheduled;
+    private boolean sourceEnded;
+    private final CompletableFuture<BroadcastStream> completion = new CompletableFuture<>();
+
+    // readExecutor runs the reads of source, e.g. PumpExecutor.shared()
+    public BroadcastStream(Stream streamApi, Collection<String> targetClientIds, InputStream source, long maxLag,
+                           Executor readExecutor) {
+        if (maxLag < 1) throw new IllegalArgumentException("maxLag must be positive");
+
+        this.streamApi = streamApi;
+        this.targetClientIds = new LinkedHashSet<>(targetClientIds);
+        this.source = source;
+        this.maxLag = maxLag;
+        this.readExecutor = readExecutor;
+    }
+
+    public BroadcastStream start() {
+        List<Target> created = new ArrayList<>();
+        synchronized (this) {
+            for (String targetClientId : targetClientIds) {
+                Target target = new Target(targetClientId);
+                targets.put(targetClientId, target);
+                created.add(target);
+            }
+        }
+
+        for (Target target : created) {
+            streamApi.addP2pStreamAsync(target.clientId).whenComplete((duplex, error) -> {
+                if (error != null) drop(target, error);
+                else attach(target, duplex);
+            });
+        }
+        checkDone();
+        scheduleRead();
+        return this;
+    }
+
+    // Drops every target which did not receive everything yet
+    public void cancel() {
+        List<Target> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(targets.values());
+        }
+        for (Target target : remaining) drop(target, new P2pStreamException("Broadcast was cancelled"));
+    }
+
+    private void attach(Target target, Duplex duplex) {
+        boolean live;
+        synchronized (this) {
+            live = targets.get(target.clientId) == target;
+            if (live) target.duplex = duplex;
+        }
+        if (!live) {
+            duplex.destroy();
+            return;
+        }
+
+        // also called when a finished target's duplex is destroyed, drop ignores it then
+        duplex.onDestroy(v -> drop(target, new P2pStreamException("Stream to " + target.clientId + " was destroyed")));
+        if (duplex.isDestroyed()) {
+            drop(target, new P2pStreamException("Stream to " + target.clientId + " was destroyed"));
+            return;
+        }
+        send(target);
+        finishIfDone(target);
+    }
+
+    // Sends the target's next chunks as far as its window allows
+    private void send(Target target) {
+        // the target's sendChunk calls have to follow each other in chunk order
+        synchronized (target) {
+            List<SharedChunk> toSend = new ArrayList<>();
+            long first;
+            Duplex duplex;
+
+            synchronized (this) {
+                duplex = target.duplex;
+                if (targets.get(target.clientId) != target || duplex == null) return;
+
+                first = target.nextToSend;
+                int windowSize = duplex.getWindowSize();
+                while (target.inFlight.size() < windowSize && target.nextToSend < readIndex) {
+                    target.inFlight.add(target.nextToSend);
+                    toSend.add(chunkAt(target.nextToSend++));
+                }
+            }
+
+            for (int i = 0; i < toSend.size() && !duplex.isDestroyed(); i++) {
+                long index = first + i;
+                duplex.sendChunk(toSend.get(i).data, false, () -> acked(target, index));
+            }
+        }
+    }
+
+    private void acked(Target target, long index) {
+        synchronized (this) {
+            if (targets.get(target.clientId) != target || !target.inFlight.remove(index)) return;
+            chunkAt(index).refs--;
+            trim();
+        }
+
+        if (!finishIfDone(target)) send(target);
+        scheduleRead();
+    }
+
+    // Returns true if the target acked the whole source; its duplex is destroyed then
+    private boolean finishIfDone(Target target) {
+        synchronized (this) {
+            if (targets.get(target.clientId) != target || !sourceEnded || target.duplex == null
+                    || !target.inFlight.isEmpty() || target.nextToSend < readIndex) {
+                return false;
+            }
+            targets.remove(target.clientId);
+            delivered.add(target.clientId);
+        }
+
+        target.duplex.destroy();
+        checkDone();
+        return true;
+    }
+
+    private void drop(Target target, Throwable cause) {
+        Duplex duplex;
+        synchronized (this) {
+            if (targets.get(target.clientId) != target) return; // finished or dropped already
+            targets.remove(target.clientId);
+            dropped.put(target.clientId, cause);
+
+            for (long index : target.inFlight) {
+                SharedChunk chunk = chunkAt(index);
+                chunk.refs--;
+                chunk.reusable = false; // the destroyed duplex may still hand it to socket.io
+            }
+            for (long index = target.nextToSend; index < readIndex; index++) chunkAt(index).refs--;
+            target.inFlight.clear();
+            trim();
+            duplex = target.duplex;
+        }
+
+        if (duplex != null) duplex.destroy();
+        checkDone();
+        scheduleRead();
+    }
+
+    // Chunks every target acked go back to the pool
+    private void trim() {
+        while (!chunks.isEmpty() && chunks.get(0).refs <= 0) {
+            SharedChunk chunk = chunks.remove(0);
+            firstIndex++;
+            bufferedBytes -= chunk.data.length;
+            if (chunk.reusable && chunk.data.length == chunkSize) chunkPool.release(chunk.data);
+        }
+    }
+
+    private SharedChunk chunkAt(long index) {
+        return chunks.get((int) (index - firstIndex));
+    }
+
+    private void scheduleRead() {
+        List<Target> laggards;
+        synchronized (this) {
+            if (readScheduled || sourceEnded || completion.isDone()) return;
+
+            if (bufferedBytes < maxLag) {
+                readScheduled = true;
+                laggards = null;
+            } else {
+                laggards = findLaggards();
+                if (laggards.isEmpty()) return; // every target is busy sending, the next ack tries again
+            }
+        }
+
+        if (laggards == null) {
+            readExecutor.execute(this::read);
+            return;
+        }
+        for (Target target : laggards) {
+            drop(target, new P2pStreamException(target.clientId + " fell more than " + maxLag + " bytes behind"));
+        }
+    }
+
+    // The targets missing the oldest chunk, if another target waits for the next one to be read
+    private List<Target> findLaggards() {
+        List<Target> laggards = new ArrayList<>();
+        boolean starved = false;
+
+        for (Target target : targets.values()) {
+            long firstUnacked = target.inFlight.isEmpty() ? target.nextToSend : target.inFlight.peekFirst();
+            if (firstUnacked == firstIndex) laggards.add(target);
+            else if (target.duplex != null && target.nextToSend == readIndex) starved = true;
+        }
+        if (!starved) laggards.clear();
+        return laggards;
+    }
+
+    private void read() {
+        try {
+            for (int i = 0; i < CHUNKS_PER_READ_TURN; i++) {
+                synchronized (this) {
+                    if (bufferedBytes >= maxLag || completion.isDone()) break;
+                }
+
+                byte[] chunk = chunkPool.acquire(chunkSize);
+                int readLength;
+                try {
+                    readLength = source.read(chunk);
+                } catch (IOException e) {
+                    chunkPool.release(chunk);
+                    throw e;
+                }
+
+                if (readLength == -1) {
+                    chunkPool.release(chunk);
+                    endOfSource();
+                    return;
+                }
+                if (readLength == 0) {
+                    chunkPool.release(chunk);
+                    continue;
+                }
+                if (readLength < chunk.length) {
+                    // socket.io sends whole arrays, a short read gets an array of its own
+                    byte[] shortChunk = Arrays.copyOf(chunk, readLength);
+                    chunkPool.release(chunk);
+                    chunk = shortChunk;
+                }
+
+                List<Target> receivers;
+                synchronized (this) {
+                    chunks.add(new SharedChunk(chunk, targets.size()));
+                    readIndex++;
+                    bufferedBytes += readLength;
+                    bytesRead += readLength;
+                    trim(); // nobody left to send it to
+                    receivers = new ArrayList<>(targets.values());
+                }
+                for (Target target : receivers) send(target);
+            }
+        } catch (IOException e) {
+            fail(new P2pStreamException("Can not read broadcast source: " + e.getMessage()));
+            return;
+        }
+
+        synchronized (this) {
+            readScheduled = false;
+        }
+        scheduleRead(); // turn used up, or laggards to drop
+    }
+
+    private void endOfSource() {
+        List<Target> receivers;
+        synchronized (this) {
+            sourceEnded = true;
+            readScheduled = false;
+            receivers = new ArrayList<>(targets.values());
+        }
+        closeSource();
+        for (Target target : receivers) finishIfDone(target);
+        checkDone();
+    }
+
+    private void fail(P2pStreamException cause) {
+        synchronized (this) {
+            sourceEnded = true;
+            readScheduled = false;
+        }
+        completion.completeExceptionally(cause);
+        closeSource();
+        cancel();
+    }
+
+    // Done once no target is left to receive, whether it got everything or was dropped
+    private void checkDone() {
+        synchronized (this) {
+            if (!targets.isEmpty() || completion.isDone()) return;
+            sourceEnded = true; // nobody left to read for
+        }
+        closeSource();
+        completion.complete(this);
+    }
+
+    private void closeSource() {
+        try {
+            source.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // completes with this broadcast once every target received the whole source or was dropped,
+    // fails with P2pStreamException if the source can't be read
+    public CompletableFuture<BroadcastStream> getCompletion() {
+        return completion;
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    public Set<String> getTargetClientIds() {
+        return targetClientIds;
+    }
+
+    // targets which acked the whole source
+    public synchronized List<String> getDelivered() {
+        return new ArrayList<>(delivered);
+    }
+
+    // targets which were dropped, with the reason: their stream failed, or they fell more than maxLag behind
+    public synchronized Map<String, Throwable> getDropped() {
+        return new LinkedHashMap<>(dropped);
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    // bytes read and not yet acked by every target, at most about maxLag
+    public synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    private static class Target {
+        private final String clientId;
+        private Duplex duplex; // null until the stream is created
+        private long nextToSend; // chunk index
+        private final Deque<Long> inFlight = new ArrayDeque<>(); // chunk indexes sent and not acked, in order
+
+        Target(String clientId) {
+            this.clientId = clientId;
+        }
+    }
+
+    private static class SharedChunk {
+        private final byte[] data;
+        private int refs; // targets which did not ack it yet
+        private boolean reusable = true;
+
+        SharedChunk(byte[] data, int refs) {
+            this.data = data;
+            this.refs = refs;
+        }
+    }
+}
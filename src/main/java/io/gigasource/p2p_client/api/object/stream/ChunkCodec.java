@@ -0,0 +1,27 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.io.IOException;
+
+// Compresses the chunks of a Duplex. Codecs are registered on Stream and negotiated when a stream is created,
+// DeflateChunkCodec is the baseline every client knows. Each chunk is compressed on its own, so any chunk can be
+// sent again after a resume or sent uncompressed in between.
+//
+// A duplex compresses on its pump and decompresses on the socket.io event thread, each with an instance of its own
+// from newInstance(), so implementations may keep a Deflater or scratch buffers between chunks.
+public interface ChunkCodec {
+    // name exchanged during negotiation, must be the same on both peers
+    String getName();
+
+    ChunkCodec newInstance();
+
+    // Compresses src[0..length) into dst from dstOffset on and returns the compressed length,
+    // or -1 if it does not fit, i.e. the chunk is not worth compressing
+    int compress(byte[] src, int length, byte[] dst, int dstOffset);
+
+    // Decompresses src[srcOffset..srcOffset + length) into dst, which has exactly the original length
+    void decompress(byte[] src, int srcOffset, int length, byte[] dst) throws IOException;
+
+    // releases native resources of an instance, called when its duplex is destroyed
+    default void close() {
+    }
+}
@@ -0,0 +1,115 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Compression of one Duplex with the codec negotiated for it. A compressed chunk is sent with FLAG_COMPRESSED
+// in its header and starts with its original length (4 bytes, big endian).
+//
+// Compressing happens into a scratch array reused for every chunk; only the result is copied into an array
+// of its exact length, as socket.io sends whole arrays. A chunk has to shrink by at least 1/MIN_SAVING
+// to be sent compressed. After MISSES_BEFORE_BACKOFF chunks in a row which don't, the data is taken to be
+// incompressible (media, archives, encrypted data) and chunks are sent as they are for a while: 16 chunks,
+// doubling up to 1024 as long as the next probe misses too.
+//
+// The original length of a received chunk is what gets allocated before decompressing it, so a length above
+// MAX_CHUNK_LENGTH is refused. Chunks longer than that, which only a fixed chunk size above it makes, are sent
+// as they are.
+class ChunkCompressor {
+    static final int FLAG_COMPRESSED = 1;
+    static final int MAX_CHUNK_LENGTH = ChunkSizer.DEFAULT_MAX_CHUNK_SIZE;
+    private static final int LENGTH_PREFIX = 4;
+    private static final int MIN_SAVING = 8;
+    private static final int MISSES_BEFORE_BACKOFF = 2;
+    private static final int MIN_BACKOFF_CHUNKS = 16;
+    private static final int MAX_BACKOFF_CHUNKS = 1024;
+
+    private final String name;
+    private final ChunkCodec compressor; // guarded by itself
+    private final ChunkCodec decompressor; // guarded by itself, used on the socket.io event thread
+    private volatile boolean closed;
+    private byte[] scratch = new byte[0];
+    private int misses;
+    private int backoffChunks = MIN_BACKOFF_CHUNKS;
+    private int chunksToSkip;
+    private long bytesIn; // before and after compression, of every chunk sent
+    private long bytesOut;
+
+    ChunkCompressor(ChunkCodec codec) {
+        name = codec.getName();
+        compressor = codec.newInstance();
+        decompressor = codec.newInstance();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // Returns the chunk to send with FLAG_COMPRESSED, or null to send chunk[0..length) as it is
+    byte[] compress(byte[] chunk, int length) {
+        synchronized (compressor) {
+            byte[] compressed = chunksToSkip > 0 || closed || length > MAX_CHUNK_LENGTH
+                    ? null : tryCompress(chunk, length);
+            if (chunksToSkip > 0) chunksToSkip--;
+
+            bytesIn += length;
+            bytesOut += compressed != null ? compressed.length : length;
+            return compressed;
+        }
+    }
+
+    private byte[] tryCompress(byte[] chunk, int length) {
+        int limit = LENGTH_PREFIX + length - length / MIN_SAVING;
+        if (scratch.length < limit) scratch = new byte[limit];
+
+        int compressedLength = compressor.compress(chunk, length, scratch, LENGTH_PREFIX);
+        if (compressedLength < 0 || LENGTH_PREFIX + compressedLength >= limit) {
+            if (++misses >= MISSES_BEFORE_BACKOFF) {
+                chunksToSkip = backoffChunks;
+                backoffChunks = Math.min(2 * backoffChunks, MAX_BACKOFF_CHUNKS);
+                misses = 0;
+            }
+            return null;
+        }
+
+        misses = 0;
+        backoffChunks = MIN_BACKOFF_CHUNKS;
+        for (int i = 0; i < LENGTH_PREFIX; i++) scratch[i] = (byte) (length >>> (24 - 8 * i));
+        return Arrays.copyOf(scratch, LENGTH_PREFIX + compressedLength);
+    }
+
+    byte[] decompress(byte[] payload) throws IOException {
+        if (payload.length < LENGTH_PREFIX) throw new IOException("Compressed chunk is too short");
+
+        int length = 0;
+        for (int i = 0; i < LENGTH_PREFIX; i++) length = (length << 8) | (payload[i] & 0xff);
+        if (length < 0 || length > MAX_CHUNK_LENGTH) {
+            throw new IOException("Compressed chunk has an invalid length " + length);
+        }
+
+        byte[] chunk = new byte[length];
+        synchronized (decompressor) {
+            if (closed) throw new IOException("Duplex was destroyed");
+            decompressor.decompress(payload, LENGTH_PREFIX, payload.length - LENGTH_PREFIX, chunk);
+        }
+        return chunk;
+    }
+
+    // bytes sent per byte of data, 1 until something was sent
+    double getRatio() {
+        synchronized (compressor) {
+            return bytesIn == 0 ? 1 : (double) bytesOut / bytesIn;
+        }
+    }
+
+    void close() {
+        synchronized (compressor) {
+            if (closed) return;
+            closed = true;
+            compressor.close();
+        }
+        synchronized (decompressor) {
+            decompressor.close();
+        }
+    }
+}
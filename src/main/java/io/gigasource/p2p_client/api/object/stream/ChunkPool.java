@@ -0,0 +1,79 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Reusable chunk arrays for the Duplex send path. A chunk is taken before InputStream.read and given back
+// when its ack arrives, i.e. once socket.io has written it out, so steady streaming allocates no chunk memory.
+// Arrays are kept per exact length because socket.io sends whole arrays as binary attachments;
+// idle arrays are bounded by maxPooledBytes, beyond it given back arrays are left to the GC.
+//
+// Chunks must be byte[] for socket.io, so the pool has no direct buffer mode: a direct ByteBuffer
+// would have to be copied into a heap array before every emit.
+public class ChunkPool {
+    public static final int DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    private static ChunkPool shared;
+
+    private int maxPooledBytes;
+    private int pooledBytes;
+    private long allocations;
+    private Map<Integer, Deque<byte[]>> freeChunks = new HashMap<>(); // length -> idle arrays
+
+    public ChunkPool(int maxPooledBytes) {
+        if (maxPooledBytes < 0) throw new IllegalArgumentException("maxPooledBytes can not be negative");
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    // pool used by every Duplex which wasn't given its own
+    public static synchronized ChunkPool shared() {
+        if (shared == null) shared = new ChunkPool(DEFAULT_MAX_POOLED_BYTES);
+        return shared;
+    }
+
+    public synchronized byte[] acquire(int length) {
+        Deque<byte[]> chunks = freeChunks.get(length);
+        byte[] chunk = chunks != null ? chunks.poll() : null;
+
+        if (chunk != null) {
+            pooledBytes -= length;
+            return chunk;
+        }
+
+        allocations++;
+        return new byte[length];
+    }
+
+    // The caller must not touch chunk anymore
+    public synchronized void release(byte[] chunk) {
+        if (pooledBytes + chunk.length > maxPooledBytes) return;
+
+        freeChunks.computeIfAbsent(chunk.length, k -> new ArrayDeque<>()).push(chunk);
+        pooledBytes += chunk.length;
+    }
+
+    // number of arrays acquire() had to allocate
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    public synchronized int getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public synchronized int getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public synchronized void setMaxPooledBytes(int maxPooledBytes) {
+        if (maxPooledBytes < 0) throw new IllegalArgumentException("maxPooledBytes can not be negative");
+
+        this.maxPooledBytes = maxPooledBytes;
+        if (pooledBytes > maxPooledBytes) {
+            freeChunks.clear();
+            pooledBytes = 0;
+        }
+    }
+}
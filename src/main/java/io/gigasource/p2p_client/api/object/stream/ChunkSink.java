@@ -0,0 +1,71 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// What the Duplex receive worker writes chunks to, next to its output streams
+interface ChunkSink {
+    int MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+
+    void write(byte[] chunk) throws IOException;
+
+    // Called once the sink is removed or the duplex destroyed; the channel itself is left open, like output streams
+    void finish() throws IOException;
+
+    static ChunkSink of(WritableByteChannel channel) throws IOException {
+        if (channel instanceof FileChannel) return new MappedFileSink((FileChannel) channel);
+
+        return new ChunkSink() {
+            @Override
+            public void write(byte[] chunk) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+
+            @Override
+            public void finish() {
+            }
+        };
+    }
+
+    // Copies chunks straight into the page cache through a mapping of the file, from the channel's position on.
+    // A mapped region extends the file to its end, finish() cuts the file back to the data actually written.
+    class MappedFileSink implements ChunkSink {
+        private FileChannel channel;
+        private long position; // end of the data written
+        private long initialSize;
+        private MappedByteBuffer region;
+
+        MappedFileSink(FileChannel channel) throws IOException {
+            this.channel = channel;
+            position = channel.position();
+            initialSize = channel.size();
+        }
+
+        @Override
+        public void write(byte[] chunk) throws IOException {
+            int offset = 0;
+
+            while (offset < chunk.length) {
+                if (region == null || !region.hasRemaining()) {
+                    region = channel.map(FileChannel.MapMode.READ_WRITE, position, MAPPED_REGION_SIZE);
+                }
+
+                int length = Math.min(chunk.length - offset, region.remaining());
+                region.put(chunk, offset, length);
+                offset += length;
+                position += length;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            region = null;
+            channel.truncate(Math.max(position, initialSize));
+            channel.position(position);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.util.concurrent.TimeUnit;
+
+// Picks the Duplex chunk size from the measured ack round trip time and throughput, and keeps the send stats.
+// Every interval of acked chunks the size is halved if chunks take longer than maxChunkRtt to be acked or
+// the last increase made throughput drop, and doubled while round trips stay short and throughput doesn't drop.
+// A size which made throughput drop is not tried again for a few intervals. Not thread safe, Duplex guards it.
+class ChunkSizer {
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    static final int DEFAULT_MIN_CHUNK_SIZE = 4 * 1024;
+    static final int DEFAULT_MAX_CHUNK_SIZE = 256 * 1024;
+    static final long DEFAULT_MAX_CHUNK_RTT = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final int HOLD_INTERVALS = 8;
+
+    private boolean adaptive;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int minChunkSize = DEFAULT_MIN_CHUNK_SIZE;
+    private int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+    private long maxChunkRtt = DEFAULT_MAX_CHUNK_RTT; // ns
+
+    private long bytesAcked;
+    private long chunksAcked;
+    private long smoothedRtt; // ns
+    private double throughput; // bytes/s of the last complete interval
+    private long intervalStart;
+    private long intervalBytes;
+    private int intervalChunks;
+    private int lastChange; // -1, 0 or 1
+    private int failedChunkSize;
+    private int holdIntervals;
+
+    void onAck(int chunkLength, long rtt, long now, int intervalLength) {
+        bytesAcked += chunkLength;
+        chunksAcked++;
+        smoothedRtt = smoothedRtt == 0 ? rtt : smoothedRtt - smoothedRtt / 8 + rtt / 8;
+
+        if (intervalStart == 0) intervalStart = now - rtt;
+        intervalBytes += chunkLength;
+        if (++intervalChunks < intervalLength || now <= intervalStart) return;
+
+        double lastThroughput = throughput;
+        throughput = intervalBytes * 1e9 / (now - intervalStart);
+        intervalStart = now;
+        intervalBytes = 0;
+        intervalChunks = 0;
+
+        if (adaptive) adapt(lastThroughput);
+    }
+
+    private void adapt(double lastThroughput) {
+        int size = chunkSize;
+        if (holdIntervals > 0 && --holdIntervals == 0) failedChunkSize = 0;
+
+        if (smoothedRtt > maxChunkRtt) {
+            size = Math.max(minChunkSize, chunkSize / 2);
+        } else if (lastChange > 0 && throughput < lastThroughput * 0.9) {
+            failedChunkSize = chunkSize;
+            holdIntervals = HOLD_INTERVALS;
+            size = Math.max(minChunkSize, chunkSize / 2);
+        } else if (smoothedRtt < maxChunkRtt / 2 && throughput >= lastThroughput * 0.95) {
+            int doubled = Math.min(maxChunkSize, chunkSize * 2);
+            if (doubled != failedChunkSize) size = doubled;
+        }
+
+        lastChange = Integer.signum(size - chunkSize);
+        chunkSize = size;
+    }
+
+    void enableAdaptive(int minChunkSize, int maxChunkSize) {
+        if (minChunkSize < 1 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("chunk size bounds must satisfy 0 < minChunkSize <= maxChunkSize");
+        }
+
+        adaptive = true;
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, chunkSize));
+        failedChunkSize = 0;
+        lastChange = 0;
+    }
+
+    void disableAdaptive() {
+        adaptive = false;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+        this.chunkSize = adaptive ? Math.max(minChunkSize, Math.min(maxChunkSize, chunkSize)) : chunkSize;
+    }
+
+    void setMaxChunkRtt(long maxChunkRtt) {
+        if (maxChunkRtt <= 0) throw new IllegalArgumentException("maxChunkRtt must be positive");
+        this.maxChunkRtt = maxChunkRtt;
+    }
+
+    DuplexStats snapshot(int inFlightBytes, int inFlightChunks) {
+        return new DuplexStats(chunkSize, adaptive, bytesAcked, chunksAcked, inFlightBytes, inFlightChunks,
+                smoothedRtt, (long) throughput);
+    }
+}
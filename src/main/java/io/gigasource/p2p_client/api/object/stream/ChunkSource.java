@@ -0,0 +1,99 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+// What the Duplex input pump reads chunks from
+interface ChunkSource extends Closeable {
+    // Mapped regions are a multiple of every power of two chunk size, so only the last chunk of a file is short
+    int MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+
+    // Like InputStream.read: fills chunk from its start and returns the length read, or -1 at the end
+    int read(byte[] chunk) throws IOException;
+
+    static ChunkSource of(InputStream inputStream) {
+        return new ChunkSource() {
+            @Override
+            public int read(byte[] chunk) throws IOException {
+                return inputStream.read(chunk);
+            }
+
+            @Override
+            public void close() throws IOException {
+                inputStream.close();
+            }
+        };
+    }
+
+    static ChunkSource of(ReadableByteChannel channel) throws IOException {
+        if (channel instanceof FileChannel) return new MappedFileSource((FileChannel) channel);
+
+        return new ChunkSource() {
+            @Override
+            public int read(byte[] chunk) throws IOException {
+                return channel.read(ByteBuffer.wrap(chunk));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    // length bytes of channel from position on; the channel's own position is left alone and it is not closed,
+    // so several sources can read parts of the same file at once
+    static ChunkSource of(FileChannel channel, long position, long length) {
+        return new MappedFileSource(channel, position, position + length, false);
+    }
+
+    // Copies chunks straight out of the page cache through a read-only mapping of the file, instead of
+    // FileChannel.read copying into a temporary direct buffer and then into the chunk.
+    // Reads from the channel's position to the end of the file, even if it grows meanwhile.
+    class MappedFileSource implements ChunkSource {
+        private FileChannel channel;
+        private long position;
+        private long end;
+        private boolean ownsChannel; // moves the channel's position along and closes it
+        private MappedByteBuffer region;
+
+        MappedFileSource(FileChannel channel) throws IOException {
+            this(channel, channel.position(), Long.MAX_VALUE, true);
+        }
+
+        MappedFileSource(FileChannel channel, long position, long end, boolean ownsChannel) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+            this.ownsChannel = ownsChannel;
+        }
+
+        @Override
+        public int read(byte[] chunk) throws IOException {
+            if (region == null || !region.hasRemaining()) {
+                long size = Math.min(channel.size(), end);
+                if (position >= size) return -1;
+
+                long length = Math.min(MAPPED_REGION_SIZE, size - position);
+                region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                position += length;
+                if (ownsChannel) channel.position(position);
+            }
+
+            int length = Math.min(chunk.length, region.remaining());
+            region.get(chunk, 0, length);
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            region = null;
+            if (ownsChannel) channel.close();
+        }
+    }
+}
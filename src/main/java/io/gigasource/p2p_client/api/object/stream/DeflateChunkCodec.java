@@ -0,0 +1,70 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw deflate (no zlib header or checksum, socket.io and the ack already guard the chunk), one stream per chunk.
+// The Deflater and Inflater are reset and reused for every chunk instead of being created each time.
+public class DeflateChunkCodec implements ChunkCodec {
+    public static final String NAME = "deflate";
+
+    private final int level;
+    private Deflater deflater; // created on first use, an instance only compresses or only decompresses
+    private Inflater inflater;
+
+    public DeflateChunkCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    // level 1 (fastest) to 9 (smallest), see Deflater
+    public DeflateChunkCodec(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public ChunkCodec newInstance() {
+        return new DeflateChunkCodec(level);
+    }
+
+    @Override
+    public int compress(byte[] src, int length, byte[] dst, int dstOffset) {
+        if (deflater == null) deflater = new Deflater(level, true);
+        else deflater.reset();
+
+        deflater.setInput(src, 0, length);
+        deflater.finish();
+        int compressedLength = deflater.deflate(dst, dstOffset, dst.length - dstOffset);
+        return deflater.finished() ? compressedLength : -1;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst) throws IOException {
+        if (inflater == null) inflater = new Inflater(true);
+        else inflater.reset();
+
+        inflater.setInput(src, srcOffset, length);
+        try {
+            if (inflater.inflate(dst) != dst.length) {
+                throw new IOException("Malformed " + NAME + " chunk, expected " + dst.length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed " + NAME + " chunk", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+}
@@ -1,28 +1,87 @@
 package io.gigasource.p2p_client.api.object.stream;
 
 import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.Lane;
 import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.P2pStreamException;
 import io.socket.client.Ack;
 import io.socket.client.Socket;
 import io.socket.emitter.Emitter;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import java9.util.concurrent.CompletableFuture;
 import java9.util.function.Consumer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class Duplex {
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+    static final String RESEND = "resend"; // ack reply to a chunk received after a gap
+    public static final int DEFAULT_MAX_RECEIVE_QUEUE_BYTES = 1024 * 1024;
+    public static final int MAX_EARLY_DATA = 64 * 1024; // sent along with the create request, see Stream.openP2pStream
+    private static final int CHUNKS_PER_PUMP_TURN = 16; // then the pump yields its thread to other streams
+
     private Socket socket;
     private Message messageApi;
     private List<OutputStream> outputStreams;
-    private InputStream inputStream;
-    private int emitChunkSize = 1024 * 16;
-    private Thread inputScanThread;
+    private Map<WritableByteChannel, ChunkSink> sinks;
+    private volatile ChunkSource source;
+    private ChunkSizer chunkSizer = new ChunkSizer(); // guarded by inputReadThreadLock
+    private Executor pumpExecutor = PumpExecutor.shared();
+    private boolean pumpScheduled; // at most one pump task runs or is queued, guarded by inputReadThreadLock
+    private boolean pumpWaitingForWindow; // the pump stopped because the window is full, the next ack resumes it
+    private ChunkPool chunkPool = ChunkPool.shared();
+    private byte[] unsentChunk; // read but not sent yet for lack of window, only touched by the pump task
+    private boolean unsentChunkPooled;
+    private int unsentChunkFlags;
+    private int unsentChunkLength; // before compression
+    private volatile ChunkCompressor compression; // null = chunks are sent as they are
+    private StreamMultiplexer multiplexer;
+    private volatile boolean multiplexed = true; // false for peers which only know the per-stream chunk event
+    private long sendStreamKey; // header key of the chunks we send, the peer receives them under it
+    private long receiveStreamKey;
     private final Object inputReadThreadLock = new Object();
-    private boolean destroyed;
+    private int windowSize = DEFAULT_WINDOW_SIZE; // max number of chunks waiting for ack, 1 = stop-and-wait
+    private int maxInFlightBytes = DEFAULT_WINDOW_SIZE * ChunkSizer.DEFAULT_CHUNK_SIZE; // memory budget of chunks waiting for ack
+    private long nextSequenceNumber;
+    private Map<Long, InFlightChunk> inFlightChunks; // in sequence number order, guarded by inputReadThreadLock
+    private int inFlightBytes;
+    private volatile long resumeTimeout; // ns a disconnected stream waits to be resumed, 0 = destroyed right away
+    private boolean suspended; // waiting to be resumed, the pump is paused; guarded by inputReadThreadLock
+    private int suspensionCount; // tells the resume timeout of an earlier suspension apart
+    private boolean opening; // the peer did not ack the stream yet, chunks are held back; guarded by inputReadThreadLock
+    private boolean earlyDataInFlight; // as chunk 0, acked along with the stream
+    private volatile CompletableFuture<Duplex> openFuture;
+    private volatile int nextReceiveSequenceNumber; // only written on the socket.io event thread
+    private volatile long receivedOffset; // bytes received in order, the data continues from here after a resume
+    private Executor receiveExecutor = PumpExecutor.sharedReceive();
+    private Deque<byte[]> receiveQueue; // chunks waiting to be written to outputStreams, guarded by itself
+    private Deque<Ack> heldAcks; // acks held back while the receive queue is over its budget, guarded by receiveQueue
+    private int receiveQueueBytes;
+    private int maxReceiveQueueBytes = DEFAULT_MAX_RECEIVE_QUEUE_BYTES;
+    private boolean receiveDrainScheduled;
+    private final Object outputLock = new Object(); // held while writing to or flushing outputStreams
+    private volatile DuplexPublisher publisher; // receives the data instead of outputStreams while subscribed
+    private volatile DuplexSubscriber outboundSubscriber;
+    private volatile boolean destroyed;
     private List<Consumer<Void>> destroyCallbacks;
 
     private String targetClientId;
@@ -30,41 +89,193 @@ public class Duplex {
     private String targetStreamId;
 
     public Duplex(Socket socket, Message messageApi, String targetClientId, String sourceStreamId, String targetStreamId) {
-        outputStreams = new ArrayList<>();
+        outputStreams = new CopyOnWriteArrayList<>();
+        sinks = new ConcurrentHashMap<>();
+        inFlightChunks = new LinkedHashMap<>(); // resent in this order after a resume
+        receiveQueue = new ArrayDeque<>();
+        heldAcks = new ArrayDeque<>();
 
         this.socket = socket;
         this.messageApi = messageApi;
         this.targetClientId = targetClientId;
         this.sourceStreamId = sourceStreamId;
         this.targetStreamId = targetStreamId;
-        this.destroyCallbacks = new ArrayList<>();
+        this.destroyCallbacks = new CopyOnWriteArrayList<>(); // added to from any thread
+        multiplexer = messageApi.getStreamMultiplexer();
+        sendStreamKey = StreamMultiplexer.streamKeyOf(sourceStreamId);
+        receiveStreamKey = StreamMultiplexer.streamKeyOf(targetStreamId);
+        openFuture = CompletableFuture.completedFuture(this);
 
         addSocketListeners();
     }
 
-    private Emitter.Listener onReceiveStreamData = args -> {
-        byte[] chunk = (byte[]) args[0];
-        Ack ackFn = (Ack) args[1];
+    // Called by the StreamMultiplexer on the socket.io event thread, so it only queues the chunk; a receive worker
+    // writes it to outputStreams. The chunk is acked right away unless the queue is over its budget, then the ack
+    // waits until the worker catches up, which stops the sender once its window is used up.
+    // sequenceNumber and flags come from the chunk's header, a compressed chunk is decompressed here first.
+    void receiveChunk(int sequenceNumber, int flags, byte[] chunk, Ack ackFn) {
+        boolean scheduleDrain;
+
+        // after a resume the peer sends its unacked chunks again, some of them may have arrived already.
+        // A gap means an earlier chunk was lost with the connection: this one is dropped and resent after it.
+        // It is acked all the same, the reply tells the peer to keep it, and the frame gives its bulk slot back.
+        int gap = sequenceNumber - nextReceiveSequenceNumber;
+        if (gap < 0) {
+            ackUnlessOverBudget(ackFn);
+            return;
+        }
+        if (gap > 0) {
+            ackFn.call(RESEND);
+            return;
+        }
+
+        if ((flags & ChunkCompressor.FLAG_COMPRESSED) != 0) {
+            chunk = decompress(chunk);
+            if (chunk == null) {
+                ackFn.call("Chunk " + sequenceNumber + " could not be decompressed"); // the stream is destroyed
+                return;
+            }
+        }
+        nextReceiveSequenceNumber = sequenceNumber + 1;
+        receivedOffset += chunk.length;
+
+        DuplexPublisher currentPublisher = publisher;
+        if (currentPublisher != null) {
+            currentPublisher.offer(chunk, ackFn); // acked once passed to the subscriber
+            return;
+        }
+
+        synchronized (receiveQueue) {
+            receiveQueue.add(chunk);
+            receiveQueueBytes += chunk.length;
+            if (receiveQueueBytes > maxReceiveQueueBytes) {
+                heldAcks.add(ackFn);
+                ackFn = null;
+            }
+
+            scheduleDrain = !receiveDrainScheduled;
+            receiveDrainScheduled = true;
+        }
+
+        if (ackFn != null) ackFn.call();
+        if (scheduleDrain) receiveExecutor.execute(this::drainReceiveQueue);
+    }
+
+    // Returns null and destroys the stream if the chunk can't be decompressed, the data after it would be useless
+    private byte[] decompress(byte[] payload) {
+        ChunkCompressor currentCompression = compression;
 
         try {
-            for (OutputStream outputStream : outputStreams) {
-                outputStream.write(chunk);
-                outputStream.flush();
+            if (currentCompression == null) throw new IOException("no compression was negotiated");
+            return currentCompression.decompress(payload);
+        } catch (IOException e) {
+            if (!destroyed) {
+                System.err.println("Could not decompress a chunk from " + targetClientId + ", destroying the duplex: "
+                        + e.getMessage());
+                destroy();
             }
+            return null;
+        }
+    }
+
+    // Peers which don't multiplex (the Node plugin, older clients) send the chunks of a stream on an event of its own,
+    // without a header: they arrive in order and uncompressed. args: chunk, ack
+    private Emitter.Listener onLegacyChunk = args -> {
+        Ack ackFn = args.length > 0 && args[args.length - 1] instanceof Ack ? (Ack) args[args.length - 1] : null;
+        if (ackFn == null) return; // a chunk always comes with its ack
+        if (!(args[0] instanceof byte[])) {
+            ackFn.call("Chunk of stream " + sourceStreamId + " is not binary");
+            return;
+        }
+        receiveChunk(nextReceiveSequenceNumber, 0, (byte[]) args[0], ackFn);
+    };
+
+    private static String legacyChunkEvent(String streamId) {
+        return SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + streamId;
+    }
+
+    // Data the peer sent along with its create request (see Stream.openP2pStream), received as the first chunk.
+    // The ack of the create request acknowledges it.
+    public void receiveEarlyData(byte[] data) {
+        receiveChunk(nextReceiveSequenceNumber, 0, data, args -> {
+        });
+    }
+
+    private void ackUnlessOverBudget(Ack ackFn) {
+        synchronized (receiveQueue) {
+            if (receiveQueueBytes > maxReceiveQueueBytes) {
+                heldAcks.add(ackFn);
+                return;
+            }
+        }
+        ackFn.call();
+    }
+
+    // Writes queued chunks in order and flushes once the queue is empty instead of after every chunk
+    private void drainReceiveQueue() {
+        while (true) {
+            byte[] chunk;
+            // polled under outputLock, so destroy() can't write later chunks before this one
+            synchronized (outputLock) {
+                synchronized (receiveQueue) {
+                    chunk = receiveQueue.poll();
+                    if (chunk == null) {
+                        receiveDrainScheduled = false;
+                        break;
+                    }
+                }
+                writeToOutputStreams(chunk);
+            }
+            releaseReceiveQueueBytes(chunk.length);
+        }
+
+        synchronized (outputLock) {
+            flushOutputStreams();
+        }
+    }
+
+    private void writeToOutputStreams(byte[] chunk) {
+        try {
+            for (OutputStream outputStream : outputStreams) outputStream.write(chunk);
+            for (ChunkSink sink : sinks.values()) sink.write(chunk);
         } catch (IOException e) {
             System.err.println("Encounter error while writing to one of outputStreams");
             e.printStackTrace();
         }
+    }
 
-        ackFn.call();
-    };
+    private void flushOutputStreams() {
+        try {
+            for (OutputStream outputStream : outputStreams) outputStream.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void releaseReceiveQueueBytes(int length) {
+        List<Ack> acks = null;
+
+        synchronized (receiveQueue) {
+            receiveQueueBytes -= length;
+            while (!heldAcks.isEmpty() && receiveQueueBytes <= maxReceiveQueueBytes) {
+                if (acks == null) acks = new ArrayList<>();
+                acks.add(heldAcks.poll());
+            }
+        }
+
+        if (acks != null) {
+            for (Ack ack : acks) ack.call();
+        }
+    }
+
+    private Emitter.Listener onDisconnect = args -> suspendOrDestroy();
 
-    private Emitter.Listener onDisconnect = args -> destroy();
+    private Emitter.Listener onReconnect = args -> requestResume();
 
     private Emitter.Listener onTargetDisconnect = args -> {
         String targetClientId = (String) args[0];
 
-        if (this.targetClientId.equals(targetClientId)) destroy();
+        if (this.targetClientId.equals(targetClientId)) suspendOrDestroy();
     };
 
     private Emitter.Listener onTargetStreamDestroyed = args -> {
@@ -75,40 +286,214 @@ public class Duplex {
 
     // Socket.IO listeners
     private void addSocketListeners() {
-        String sendDataEvent = SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + targetStreamId;
-
-        messageApi.from(targetClientId).on(sendDataEvent, onReceiveStreamData);
+        listenToChunks();
         messageApi.from(targetClientId).on(SocketEvent.PEER_STREAM_DESTROYED, onTargetStreamDestroyed);
 
-        socket.once("disconnect", onDisconnect);
+        socket.on("disconnect", onDisconnect);
+        socket.on(Socket.EVENT_CONNECT, onReconnect);
         socket.on(SocketEvent.MULTI_API_TARGET_DISCONNECT, onTargetDisconnect);
     }
 
     private void removeSocketListeners() {
-        String sendDataEvent = SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + targetStreamId;
-
-        messageApi.from(targetClientId).off(sendDataEvent);
+        stopListeningToChunks();
         messageApi.from(targetClientId).off(SocketEvent.PEER_STREAM_DESTROYED, onTargetStreamDestroyed);
 
         socket.off("disconnect", onDisconnect);
+        socket.off(Socket.EVENT_CONNECT, onReconnect);
         socket.off(SocketEvent.MULTI_API_TARGET_DISCONNECT, onTargetDisconnect);
     }
 
+    private void suspendOrDestroy() {
+        long timeout = resumeTimeout;
+        if (timeout <= 0) {
+            destroy();
+            return;
+        }
+
+        int suspension;
+        synchronized (inputReadThreadLock) {
+            if (destroyed || suspended) return;
+            suspended = true; // stops the pump at its next chunk
+            suspension = ++suspensionCount;
+        }
+        // queued chunks would only reach the peer after the resume resent them, and those in flight can't be acked
+        // anymore: they stay unacked here until the resume, and the stream's slots go to others meanwhile
+        messageApi.getOutboundScheduler().cancel(this);
+        // chunks the peer had queued may arrive before its resume request, they have to be acked meanwhile
+        listenToTarget();
+
+        CompletableFuture.delayedExecutor(timeout, TimeUnit.NANOSECONDS).execute(() -> {
+            synchronized (inputReadThreadLock) {
+                if (!suspended || suspensionCount != suspension) return;
+            }
+            destroy();
+        });
+    }
+
+    private void listenToChunks() {
+        if (multiplexed) multiplexer.register(targetClientId, receiveStreamKey, this);
+        else messageApi.from(targetClientId).on(legacyChunkEvent(targetStreamId), onLegacyChunk);
+    }
+
+    private void stopListeningToChunks() {
+        if (multiplexed) multiplexer.unregister(targetClientId, receiveStreamKey, this);
+        else messageApi.from(targetClientId).off(legacyChunkEvent(targetStreamId), onLegacyChunk);
+    }
+
+    // Message drops the listeners of a peer which disconnects
+    private void listenToTarget() {
+        if (multiplexed) {
+            multiplexer.attach(targetClientId);
+        } else {
+            messageApi.from(targetClientId).off(legacyChunkEvent(targetStreamId), onLegacyChunk);
+            messageApi.from(targetClientId).on(legacyChunkEvent(targetStreamId), onLegacyChunk);
+        }
+        messageApi.from(targetClientId).off(SocketEvent.PEER_STREAM_DESTROYED, onTargetStreamDestroyed);
+        messageApi.from(targetClientId).on(SocketEvent.PEER_STREAM_DESTROYED, onTargetStreamDestroyed);
+    }
+
+    // Our socket is back: the peer learns where our received data ends and replies where its own ends.
+    // If the peer is still gone, it asks us the same once it reconnects.
+    private void requestResume() {
+        synchronized (inputReadThreadLock) {
+            if (!suspended || destroyed) return;
+        }
+
+        messageApi.emitTo(Lane.CONTROL, targetClientId, SocketEvent.P2P_RESUME_STREAM, sourceStreamId,
+                nextReceiveSequenceNumber, (Ack) args -> {
+                    if (args.length > 0 && args[0] instanceof Number) resume(((Number) args[0]).intValue());
+                    else destroy(); // the peer does not have the stream anymore
+                });
+    }
+
+    // Called by the StreamMultiplexer when the peer asks to resume, returns where our received data ends
+    int acceptResume(int peerNextReceiveSequenceNumber) {
+        resume(peerNextReceiveSequenceNumber);
+        return nextReceiveSequenceNumber;
+    }
+
+    // The peer has every chunk before peerNextReceiveSequenceNumber. Those are released as if acked,
+    // the others are sent again in order before the pump continues.
+    private void resume(int peerNextReceiveSequenceNumber) {
+        List<Long> received = new ArrayList<>();
+        List<Long> lost = new ArrayList<>();
+        List<InFlightChunk> lostChunks = new ArrayList<>();
+
+        synchronized (inputReadThreadLock) {
+            if (destroyed) return;
+            suspended = true; // keeps the pump from sending ahead of the resent chunks
+            suspensionCount++; // cancels the resume timeout
+
+            long now = System.nanoTime();
+            for (Map.Entry<Long, InFlightChunk> entry : inFlightChunks.entrySet()) {
+                if ((int) (long) entry.getKey() - peerNextReceiveSequenceNumber < 0) {
+                    received.add(entry.getKey());
+                } else {
+                    lost.add(entry.getKey());
+                    lostChunks.add(entry.getValue());
+                    entry.getValue().sentAt = now;
+                }
+            }
+        }
+
+        listenToTarget();
+
+        for (int i = 0; i < lost.size(); i++) emitChunk(lost.get(i), lostChunks.get(i).data, lostChunks.get(i).flags);
+        synchronized (inputReadThreadLock) {
+            suspended = false;
+        }
+        for (long sequenceNumber : received) releaseWindowSlot(sequenceNumber);
+        resumePumpIfWaiting();
+    }
+
+    // Optimistic open, see Stream.openP2pStream: called before the create request is sent, which carries earlyData
+    // as the stream's first chunk. Meanwhile the input pump waits as if the window was full and chunks of a source
+    // are held back until opened() sends them, or dropped by openFailed(). earlyData must not be modified afterwards.
+    public void startOpening(byte[] earlyData) {
+        if (earlyData != null && earlyData.length > MAX_EARLY_DATA) {
+            throw new IllegalArgumentException("earlyData can not be longer than " + MAX_EARLY_DATA + " bytes");
+        }
+
+        synchronized (inputReadThreadLock) {
+            if (nextSequenceNumber != 0 || opening) throw new IllegalStateException("Duplex was used already");
+            opening = true;
+            openFuture = new CompletableFuture<>();
+
+            if (earlyData != null && earlyData.length > 0) {
+                long sequenceNumber = nextSequenceNumber++;
+                inFlightChunks.put(sequenceNumber, new InFlightChunk(earlyData, false, 0, earlyData.length, null,
+                        System.nanoTime()));
+                inFlightBytes += earlyData.length;
+                earlyDataInFlight = true;
+            }
+        }
+    }
+
+    // The peer acked the stream and with it the early data: the chunks held back are sent in order
+    public void opened() {
+        List<Long> held = new ArrayList<>();
+        List<InFlightChunk> heldChunks = new ArrayList<>();
+        boolean earlyData;
+
+        synchronized (inputReadThreadLock) {
+            if (!opening || destroyed) return;
+            opening = false;
+            earlyData = earlyDataInFlight;
+            earlyDataInFlight = false;
+
+            long now = System.nanoTime();
+            for (Map.Entry<Long, InFlightChunk> entry : inFlightChunks.entrySet()) {
+                if (entry.getKey() == 0 && earlyData) continue;
+                held.add(entry.getKey());
+                heldChunks.add(entry.getValue());
+                entry.getValue().sentAt = now;
+            }
+        }
+
+        for (int i = 0; i < held.size(); i++) emitChunk(held.get(i), heldChunks.get(i).data, heldChunks.get(i).flags);
+        if (earlyData) releaseWindowSlot(0);
+        openFuture.complete(this);
+        resumePumpIfWaiting();
+    }
+
+    // The peer refused the stream or did not answer in time, the duplex is destroyed with everything held back
+    public void openFailed(P2pStreamException cause) {
+        openFuture.completeExceptionally(cause);
+        destroy();
+    }
+
+    // Completes once the peer acked the stream, right away for a stream which was not opened optimistically.
+    // Fails if the peer refuses it or the duplex is destroyed before.
+    public CompletableFuture<Duplex> getOpenFuture() {
+        return openFuture;
+    }
+
     public void destroy() {
-        if (destroyed) return;
+        // e.g. by its DuplexPool and by the peer at the same time, only the first call does the work
+        synchronized (inputReadThreadLock) {
+            if (destroyed) return;
+            destroyed = true; // stops the pump at its next chunk
+        }
 
-        messageApi.emitTo(targetClientId, SocketEvent.PEER_STREAM_DESTROYED, sourceStreamId);
+        // chunks still queued are dropped and those in flight give their slots back, acked or not
+        messageApi.getOutboundScheduler().cancel(this);
         removeSocketListeners();
+        openFuture.completeExceptionally(new P2pStreamException("Stream to " + targetClientId + " was destroyed"));
+        if (outboundSubscriber != null) outboundSubscriber.cancel();
+        if (publisher != null) publisher.complete();
         try {
-            if (inputScanThread != null) inputScanThread.interrupt();
-            if (inputStream != null) inputStream.close();
-            for (OutputStream os : outputStreams) {
-                os.flush();
-            }
-            outputStreams.clear();
+            if (source != null) source.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (compression != null) compression.close();
+
+        // chunks received before the peer destroyed the stream are still written
+        detachOutputs();
+
+        // Told last, so a full outbound queue can't leave the duplex half destroyed; it doesn't wait for room either.
+        // The stream's chunks sent before are on the wire already and those queued were dropped, it can't overtake them.
+        messageApi.emitFirstTo(Lane.BULK, targetClientId, SocketEvent.PEER_STREAM_DESTROYED, sourceStreamId);
 
         if (!destroyCallbacks.isEmpty()) {
             for (Consumer<Void> destroyCallback : destroyCallbacks) {
@@ -116,8 +501,59 @@ public class Duplex {
             }
             destroyCallbacks.clear();
         }
+    }
+
+    // Writes the queued chunks, then removes every output stream and sink
+    private void detachOutputs() {
+        synchronized (outputLock) {
+            while (true) {
+                byte[] chunk;
+                synchronized (receiveQueue) {
+                    chunk = receiveQueue.poll();
+                    if (chunk == null) break;
+                    receiveQueueBytes -= chunk.length;
+                }
+                writeToOutputStreams(chunk);
+            }
+            flushOutputStreams();
+            outputStreams.clear();
+            for (ChunkSink sink : sinks.values()) finishSink(sink);
+            sinks.clear();
+        }
+    }
+
+    // Detaches the source, outputs, subscriber and publisher so the duplex can be used again, see DuplexPool.
+    // Only a duplex which has sent its whole source and got every ack can be reset; otherwise nothing changes
+    // and false is returned. Chunks received after the reset are acked and dropped until outputs are added again.
+    public boolean reset() {
+        ChunkSource previousSource;
+        synchronized (inputReadThreadLock) {
+            if (destroyed || suspended || pumpScheduled || pumpWaitingForWindow || !inFlightChunks.isEmpty()) {
+                return false;
+            }
+            previousSource = source;
+            source = null;
+        }
 
-        destroyed = true;
+        try {
+            if (previousSource != null) previousSource.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        DuplexSubscriber currentSubscriber = outboundSubscriber;
+        outboundSubscriber = null;
+        if (currentSubscriber != null) currentSubscriber.cancel();
+
+        DuplexPublisher currentPublisher;
+        synchronized (this) {
+            currentPublisher = publisher;
+            publisher = null;
+        }
+        if (currentPublisher != null) currentPublisher.complete();
+
+        detachOutputs();
+        return true;
     }
 
     // ------------------------------------------------------------------------
@@ -135,45 +571,446 @@ public class Duplex {
     public void clearOutputStreams() { outputStreams.clear(); }
 
     public void setInputStream(InputStream inputStream) {
-        this.inputStream = inputStream;
-        if (inputScanThread == null) startScanningInputStream();
+        source = ChunkSource.of(inputStream);
+        schedulePump();
     }
 
     public void removeInputStream() {
-        inputStream = null;
+        source = null;
     }
 
-    private void startScanningInputStream() {
-        inputScanThread = new Thread(() -> {
-            synchronized (inputReadThreadLock) {
-                try {
-                    byte[] chunk = new byte[emitChunkSize];
+    // Sends everything read from channel; a FileChannel is read through memory-mapped regions from its position on
+    public void setSource(ReadableByteChannel channel) throws IOException {
+        source = ChunkSource.of(channel);
+        schedulePump();
+    }
+
+    // Sends length bytes of channel from position on, without moving the channel's position or closing it,
+    // so other duplexes can send other parts of the same file
+    public void setSource(FileChannel channel, long position, long length) {
+        source = ChunkSource.of(channel, position, length);
+        schedulePump();
+    }
+
+    // Sends every buffer published by publisher, requesting only as many as the window allows
+    public void setSource(Publisher<? extends ByteBuffer> publisher) {
+        publisher.subscribe(asSubscriber());
+    }
+
+    // Subscriber sending what it receives through this duplex, for publishers which are subscribed to elsewhere.
+    // Use it instead of an input stream or channel source.
+    public Subscriber<ByteBuffer> asSubscriber() {
+        DuplexSubscriber subscriber = new DuplexSubscriber(this);
+        outboundSubscriber = subscriber;
+        return subscriber;
+    }
+
+    // Publisher of the received data, which then no longer goes to outputStreams and sinks.
+    // A chunk is acked only once the subscriber received it; completes when the duplex is destroyed.
+    public synchronized Publisher<ByteBuffer> toPublisher() {
+        if (publisher == null) {
+            publisher = new DuplexPublisher(this, receiveExecutor);
+            if (destroyed) publisher.complete();
+        }
+        return publisher;
+    }
+
+    synchronized void detachPublisher(DuplexPublisher cancelled) {
+        if (publisher == cancelled) publisher = null;
+    }
+
+    public void removeSource() {
+        source = null;
+    }
+
+    // Writes received data to channel; a FileChannel is written through memory-mapped regions from its position on,
+    // and cut back to the end of the data once the sink is removed or the duplex destroyed
+    public void addSink(WritableByteChannel channel) throws IOException {
+        synchronized (outputLock) {
+            sinks.put(channel, ChunkSink.of(channel));
+        }
+    }
+
+    public void removeSink(WritableByteChannel channel) {
+        synchronized (outputLock) {
+            ChunkSink sink = sinks.remove(channel);
+            if (sink != null) finishSink(sink);
+        }
+    }
+
+    private void finishSink(ChunkSink sink) {
+        try {
+            sink.finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getChunkSize() {
+        synchronized (inputReadThreadLock) {
+            return chunkSizer.getChunkSize();
+        }
+    }
+
+    // Size of the chunks read from now on; with adaptive sizing enabled it is kept within the bounds and may change again
+    public void setChunkSize(int chunkSize) {
+        synchronized (inputReadThreadLock) {
+            chunkSizer.setChunkSize(chunkSize);
+        }
+    }
+
+    // Sizes chunks from the measured ack round trip time and throughput, see ChunkSizer.
+    // Powers of two keep chunks read from a FileChannel source aligned with its mapped regions.
+    public void enableAdaptiveChunkSize(int minChunkSize, int maxChunkSize) {
+        synchronized (inputReadThreadLock) {
+            chunkSizer.enableAdaptive(minChunkSize, maxChunkSize);
+        }
+    }
+
+    public void disableAdaptiveChunkSize() {
+        synchronized (inputReadThreadLock) {
+            chunkSizer.disableAdaptive();
+        }
+    }
+
+    // Adaptive sizing shrinks chunks which take longer than this to be acked (200 ms by default)
+    public void setMaxChunkRtt(long maxChunkRtt, TimeUnit unit) {
+        synchronized (inputReadThreadLock) {
+            chunkSizer.setMaxChunkRtt(unit.toNanos(maxChunkRtt));
+        }
+    }
+
+    // Compresses the chunks sent from now on with codec and decompresses the compressed chunks received.
+    // Stream negotiates the codec when the stream is created, set it directly only if the peer uses the same one.
+    public void setCompression(ChunkCodec codec) {
+        ChunkCompressor previous = compression;
+        compression = codec != null ? new ChunkCompressor(codec) : null;
+        if (previous != null) previous.close();
+    }
+
+    // Chunks go over the StreamMultiplexer with a binary header (the default), or on the stream's own event for peers
+    // which don't multiplex. Stream agrees on it with the peer when the stream is created; set it directly only
+    // before any chunk is sent or received.
+    public void setMultiplexed(boolean multiplexed) {
+        synchronized (inputReadThreadLock) {
+            if (destroyed || this.multiplexed == multiplexed) return;
+
+            stopListeningToChunks();
+            this.multiplexed = multiplexed;
+            listenToChunks();
+        }
+    }
+
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    // name of the codec the chunks are compressed with, null if they are sent as they are
+    public String getCompression() {
+        ChunkCompressor currentCompression = compression;
+        return currentCompression != null ? currentCompression.getName() : null;
+    }
+
+    // bytes sent per byte of data so far, 1 without compression or while the data is incompressible
+    public double getCompressionRatio() {
+        ChunkCompressor currentCompression = compression;
+        return currentCompression != null ? currentCompression.getRatio() : 1;
+    }
+
+    // Keeps the stream for up to timeout when either side disconnects: sending pauses, unacked chunks are kept
+    // (at most a window of them) and the stream continues where it stopped once it is resumed after the reconnect.
+    // Both peers have to enable it, a stream which is not resumed in time is destroyed.
+    public void enableResume(long timeout, TimeUnit unit) {
+        if (timeout <= 0) throw new IllegalArgumentException("timeout must be positive");
+        resumeTimeout = unit.toNanos(timeout);
+    }
+
+    public void disableResume() {
+        resumeTimeout = 0;
+    }
+
+    public boolean isResumable() {
+        return resumeTimeout > 0;
+    }
+
+    // disconnected and waiting to be resumed
+    public boolean isSuspended() {
+        synchronized (inputReadThreadLock) {
+            return suspended;
+        }
+    }
+
+    // bytes received in order, after a resume the data continues from here
+    public long getReceivedOffset() {
+        return receivedOffset;
+    }
+
+    public DuplexStats getStats() {
+        synchronized (inputReadThreadLock) {
+            return chunkSizer.snapshot(inFlightBytes, inFlightChunks.size());
+        }
+    }
+
+    public int getInFlightBytes() {
+        synchronized (inputReadThreadLock) {
+            return inFlightBytes;
+        }
+    }
+
+    public int getMaxReceiveQueueBytes() {
+        return maxReceiveQueueBytes;
+    }
+
+    // Memory budget of received chunks waiting to be written, beyond it chunks are not acked until written
+    public void setMaxReceiveQueueBytes(int maxReceiveQueueBytes) {
+        if (maxReceiveQueueBytes < 1) throw new IllegalArgumentException("maxReceiveQueueBytes must be positive");
+
+        synchronized (receiveQueue) {
+            this.maxReceiveQueueBytes = maxReceiveQueueBytes;
+        }
+        releaseReceiveQueueBytes(0);
+    }
+
+    public int getReceiveQueueBytes() {
+        synchronized (receiveQueue) {
+            return receiveQueueBytes;
+        }
+    }
+
+    public Executor getReceiveExecutor() {
+        return receiveExecutor;
+    }
+
+    // Runs the worker writing received chunks to the output streams on executor instead of PumpExecutor.sharedReceive()
+    public void setReceiveExecutor(Executor receiveExecutor) {
+        if (receiveExecutor == null) throw new IllegalArgumentException("receiveExecutor can not be null");
+        this.receiveExecutor = receiveExecutor;
+    }
+
+    public ChunkPool getChunkPool() {
+        return chunkPool;
+    }
+
+    // Pool of the chunks read from the input stream, ChunkPool.shared() by default
+    public void setChunkPool(ChunkPool chunkPool) {
+        if (chunkPool == null) throw new IllegalArgumentException("chunkPool can not be null");
+        this.chunkPool = chunkPool;
+    }
+
+    public Executor getPumpExecutor() {
+        return pumpExecutor;
+    }
+
+    // Runs the input pump on executor instead of the shared PumpExecutor, e.g. a virtual thread executor on Java 21+
+    public void setPumpExecutor(Executor pumpExecutor) {
+        if (pumpExecutor == null) throw new IllegalArgumentException("pumpExecutor can not be null");
+        this.pumpExecutor = pumpExecutor;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize must be at least 1");
+
+        synchronized (inputReadThreadLock) {
+            this.windowSize = windowSize;
+        }
+        resumePumpIfWaiting();
+    }
+
+    public int getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    public void setMaxInFlightBytes(int maxInFlightBytes) {
+        if (maxInFlightBytes < 1) throw new IllegalArgumentException("maxInFlightBytes must be positive");
+
+        synchronized (inputReadThreadLock) {
+            this.maxInFlightBytes = maxInFlightBytes;
+        }
+        resumePumpIfWaiting();
+    }
+
+    private void schedulePump() {
+        synchronized (inputReadThreadLock) {
+            if (pumpScheduled || destroyed || source == null) return;
+            pumpScheduled = true;
+            pumpWaitingForWindow = false;
+        }
+
+        pumpExecutor.execute(this::pump);
+    }
+
+    // Reads and sends chunks until the window is full, the input ends or the turn is used up.
+    // A full window releases the thread; releaseWindowSlot schedules the pump again.
+    private void pump() {
+        boolean stopped = false;
+
+        try {
+            for (int i = 0; i < CHUNKS_PER_PUMP_TURN && !stopped; i++) {
+                ChunkSource input = source;
+
+                if (unsentChunk == null) {
+                    if (input == null || destroyed) {
+                        stopped = true;
+                        continue;
+                    }
+
+                    byte[] chunk = chunkPool.acquire(getChunkSize());
                     int readLength;
+                    try {
+                        readLength = input.read(chunk);
+                    } catch (IOException e) {
+                        chunkPool.release(chunk);
+                        throw e;
+                    }
 
-                    while ((readLength = inputStream.read(chunk)) != -1) {
-                        if (readLength > 0) {
-                            byte[] chunkToEmit = Arrays.copyOfRange(chunk, 0, readLength);
+                    if (readLength <= 0) {
+                        chunkPool.release(chunk);
+                        if (readLength == -1) stopped = true; // setInputStream starts the pump again
+                        continue;
+                    }
 
-                            String event = SocketEvent.P2P_EMIT_STREAM + "-from-stream-" + sourceStreamId;
+                    unsentChunkLength = readLength;
+                    ChunkCompressor currentCompression = compression;
+                    byte[] compressed = currentCompression != null ? currentCompression.compress(chunk, readLength) : null;
 
-                            messageApi.emitTo(targetClientId, event, chunkToEmit, (Ack) args -> {
-                                synchronized (inputReadThreadLock) {
-                                    inputReadThreadLock.notify();
-                                }
-                            });
-                            inputReadThreadLock.wait();
+                    if (compressed != null) {
+                        chunkPool.release(chunk);
+                        unsentChunk = compressed;
+                        unsentChunkPooled = false;
+                        unsentChunkFlags = ChunkCompressor.FLAG_COMPRESSED;
+                    } else {
+                        // socket.io sends whole arrays, a short read gets an array of its own
+                        unsentChunkPooled = readLength == chunk.length;
+                        unsentChunkFlags = 0;
+                        if (unsentChunkPooled) {
+                            unsentChunk = chunk;
+                        } else {
+                            unsentChunk = Arrays.copyOf(chunk, readLength);
+                            chunkPool.release(chunk);
                         }
                     }
-                } catch (IOException e) {
-                    System.err.println("inputScanThread encounters error while reading inputStream");
-                    e.printStackTrace();
-                } catch (InterruptedException e) {
-                    System.out.println("inputScanThread is requested for termination, will shut down gracefully");
                 }
+
+                long sequenceNumber = tryAcquireWindowSlot(unsentChunk, unsentChunkPooled, unsentChunkFlags,
+                        unsentChunkLength);
+                if (sequenceNumber < 0) return; // pumpScheduled was reset under the lock
+
+                byte[] chunkToEmit = unsentChunk;
+                unsentChunk = null;
+
+                if (destroyed) {
+                    releaseWindowSlot(sequenceNumber);
+                    stopped = true;
+                    continue;
+                }
+
+                // the chunk goes back to the pool once acked, socket.io has written it out by then
+                emitChunk(sequenceNumber, chunkToEmit, unsentChunkFlags);
             }
+        } catch (IOException e) {
+            if (!destroyed) {
+                System.err.println("Input pump encounters error while reading its source");
+                e.printStackTrace();
+            }
+            synchronized (inputReadThreadLock) {
+                pumpScheduled = false;
+            }
+            return;
+        }
+
+        synchronized (inputReadThreadLock) {
+            pumpScheduled = false;
+        }
+        if (!stopped) schedulePump(); // turn used up, continue behind the other streams' pumps
+    }
+
+    // Sends a chunk outside of the input pump, regardless of the window: the caller limits itself (see DuplexSubscriber)
+    void sendChunk(byte[] chunk, boolean pooled, Runnable onAck) {
+        int length = chunk.length;
+        int flags = 0;
+        ChunkCompressor currentCompression = compression;
+        byte[] compressed = currentCompression != null ? currentCompression.compress(chunk, length) : null;
+
+        if (compressed != null) {
+            if (pooled) chunkPool.release(chunk);
+            chunk = compressed;
+            pooled = false;
+            flags = ChunkCompressor.FLAG_COMPRESSED;
+        }
+
+        long sequenceNumber;
+        boolean held;
+        synchronized (inputReadThreadLock) {
+            sequenceNumber = nextSequenceNumber++;
+            inFlightChunks.put(sequenceNumber, new InFlightChunk(chunk, pooled, flags, length, onAck, System.nanoTime()));
+            inFlightBytes += chunk.length;
+            held = opening; // sent by opened()
+        }
+
+        if (!held) emitChunk(sequenceNumber, chunk, flags);
+    }
+
+    private void emitChunk(long sequenceNumber, byte[] chunk, int flags) {
+        Ack ack = OutboundScheduler.ownedBy(this, args -> {
+            // the peer missed an earlier chunk: this one stays in flight and is sent again by the resume
+            if (args.length > 0 && RESEND.equals(args[0])) return;
+            releaseWindowSlot(sequenceNumber);
         });
 
-        inputScanThread.start();
+        if (multiplexed) {
+            messageApi.emitTo(Lane.BULK, targetClientId, SocketEvent.P2P_EMIT_STREAM,
+                    StreamMultiplexer.encodeHeader(sendStreamKey, sequenceNumber, flags), chunk, ack);
+        } else {
+            messageApi.emitTo(Lane.BULK, targetClientId, legacyChunkEvent(sourceStreamId), chunk, ack);
+        }
+    }
+
+    // Assigns the chunk's sequence number if it fits in both the window and the memory budget, otherwise returns -1
+    // and leaves the pump to be resumed by the next ack. A single chunk is always allowed when nothing is in flight,
+    // so a budget smaller than a chunk can't stall the stream.
+    private long tryAcquireWindowSlot(byte[] chunk, boolean pooled, int flags, int length) {
+        synchronized (inputReadThreadLock) {
+            if (suspended || opening || !inFlightChunks.isEmpty() && (inFlightChunks.size() >= windowSize
+                    || inFlightBytes + chunk.length > maxInFlightBytes)) {
+                pumpScheduled = false;
+                pumpWaitingForWindow = true;
+                return -1;
+            }
+
+            long sequenceNumber = nextSequenceNumber++;
+            inFlightChunks.put(sequenceNumber, new InFlightChunk(chunk, pooled, flags, length, null, System.nanoTime()));
+            inFlightBytes += chunk.length;
+            return sequenceNumber;
+        }
+    }
+
+    // pooledChunk goes back to the pool before the pump resumes, so the pump can reuse it right away
+    private void releaseWindowSlot(long sequenceNumber) {
+        InFlightChunk chunk;
+        synchronized (inputReadThreadLock) {
+            chunk = inFlightChunks.remove(sequenceNumber);
+            if (chunk == null) return; // duplicated ack
+
+            inFlightBytes -= chunk.data.length;
+            long now = System.nanoTime();
+            // sizing is re-evaluated every two windows of acks
+            chunkSizer.onAck(chunk.length, now - chunk.sentAt, now, 2 * windowSize);
+        }
+
+        if (chunk.pooled) chunkPool.release(chunk.data);
+        if (chunk.onAck != null) chunk.onAck.run();
+        resumePumpIfWaiting();
+    }
+
+    private void resumePumpIfWaiting() {
+        synchronized (inputReadThreadLock) {
+            if (!pumpWaitingForWindow) return;
+        }
+        schedulePump();
     }
 
     public boolean isDestroyed() {
@@ -191,4 +1028,22 @@ public class Duplex {
     public String getTargetStreamId() {
         return targetStreamId;
     }
+
+    private static class InFlightChunk {
+        private final byte[] data; // kept until acked, a resume may have to send it again
+        private final boolean pooled; // data goes back to the chunk pool once acked
+        private final int flags; // of the chunk's header
+        private final int length; // of the stream data in it, before compression
+        private final Runnable onAck;
+        private long sentAt; // ns
+
+        InFlightChunk(byte[] data, boolean pooled, int flags, int length, Runnable onAck, long sentAt) {
+            this.data = data;
+            this.pooled = pooled;
+            this.flags = flags;
+            this.length = length;
+            this.onAck = onAck;
+            this.sentAt = sentAt;
+        }
+    }
 }
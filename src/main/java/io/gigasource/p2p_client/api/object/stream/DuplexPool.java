@@ -0,0 +1,256 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.Lane;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.P2pStreamException;
+import java9.util.concurrent.CompletableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Idle streams to one target, created ahead of time so that lease() costs no MULTI_API_CREATE_STREAM round trip.
+// The peer keeps a pooled stream aside and hands it to its onAddP2pStream callback when it is leased
+// (P2P_LEASE_STREAM, sent without waiting for an ack); release() resets both ends for the next lease
+// (P2P_RELEASE_STREAM). A stream which still has data to send or unacked is destroyed instead of reused.
+//
+// At least minIdle streams are kept idle and at most maxSize exist, idle or leased; a lease beyond that waits
+// for a release. Streams idle for longer than idleTimeout are destroyed down to minIdle.
+public class DuplexPool {
+    public static final int DEFAULT_MIN_IDLE = 2;
+    public static final int DEFAULT_MAX_SIZE = 16;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000; // ms
+
+    private final Stream streamApi;
+    private final Message messageApi;
+    private final String targetClientId;
+    private final int minIdle;
+    private final int maxSize;
+    private final long idleTimeout; // ms, 0 = idle streams are kept
+    private final Deque<IdleDuplex> idle = new ArrayDeque<>(); // most recently released first, guarded by this
+    private final Set<Duplex> leased = new HashSet<>(); // guarded by this
+    private final Deque<CompletableFuture<Duplex>> waiters = new ArrayDeque<>(); // guarded by this
+    private int creating;
+    private int creatingIdle; // of those being created, the ones which will be idle
+    private long createdCount;
+    private boolean closed;
+
+    public DuplexPool(Stream streamApi, Message messageApi, String targetClientId, int minIdle, int maxSize,
+                      long idleTimeout, TimeUnit unit) {
+        if (minIdle < 0) throw new IllegalArgumentException("minIdle can not be negative");
+        if (maxSize < 1 || maxSize < minIdle) throw new IllegalArgumentException("maxSize must be at least 1 and minIdle");
+        if (idleTimeout < 0) throw new IllegalArgumentException("idleTimeout can not be negative");
+
+        this.streamApi = streamApi;
+        this.messageApi = messageApi;
+        this.targetClientId = targetClientId;
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.idleTimeout = unit.toMillis(idleTimeout);
+
+        fill();
+        scheduleEviction();
+    }
+
+    // Completes right away with an idle stream if there is one, otherwise once one was created or released.
+    // Fails with P2pStreamException if the pool is closed or the stream can't be created.
+    public CompletableFuture<Duplex> lease() {
+        CompletableFuture<Duplex> result = new CompletableFuture<>();
+        IdleDuplex entry;
+
+        synchronized (this) {
+            if (closed) {
+                result.completeExceptionally(new P2pStreamException("Pool of streams to " + targetClientId + " is closed"));
+                return result;
+            }
+
+            entry = idle.pollFirst();
+            if (entry != null) leased.add(entry.duplex);
+            else waiters.add(result);
+        }
+
+        if (entry != null) handOver(entry.duplex, result);
+        fill();
+        return result;
+    }
+
+    // Returns a leased stream for reuse once the exchange on it is over, i.e. both sides are done sending
+    public void release(Duplex duplex) {
+        boolean reusable;
+        synchronized (this) {
+            if (!leased.remove(duplex)) return; // not leased from this pool, or released twice
+            reusable = !closed;
+        }
+
+        if (!reusable || !duplex.reset()) {
+            duplex.destroy(); // the pool creates another one if needed
+            return;
+        }
+        messageApi.emitTo(Lane.CONTROL, targetClientId, SocketEvent.P2P_RELEASE_STREAM, duplex.getTargetStreamId());
+
+        CompletableFuture<Duplex> waiter;
+        synchronized (this) {
+            waiter = waiters.poll();
+            if (waiter != null) leased.add(duplex);
+            else idle.addFirst(new IdleDuplex(duplex, System.nanoTime()));
+        }
+        if (waiter != null) handOver(duplex, waiter);
+    }
+
+    // Destroys the idle streams and fails waiting leases; leased streams are destroyed once released
+    public void close() {
+        List<IdleDuplex> idleDuplexes;
+        List<CompletableFuture<Duplex>> waitingLeases;
+
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            idleDuplexes = new ArrayList<>(idle);
+            idle.clear();
+            waitingLeases = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+
+        for (IdleDuplex entry : idleDuplexes) entry.duplex.destroy();
+        for (CompletableFuture<Duplex> waiter : waitingLeases) {
+            waiter.completeExceptionally(new P2pStreamException("Pool of streams to " + targetClientId + " is closed"));
+        }
+    }
+
+    // The peer gets the stream before we can send on it: the lease goes out before the caller can queue any chunk
+    private void handOver(Duplex duplex, CompletableFuture<Duplex> lease) {
+        messageApi.emitTo(Lane.CONTROL, targetClientId, SocketEvent.P2P_LEASE_STREAM, duplex.getTargetStreamId());
+        if (!lease.complete(duplex)) release(duplex); // the caller gave up waiting
+    }
+
+    // Creates streams for the waiting leases, then until minIdle streams are idle
+    private void fill() {
+        while (true) {
+            CompletableFuture<Duplex> waiter = null;
+
+            synchronized (this) {
+                if (closed || idle.size() + leased.size() + creating >= maxSize) return;
+
+                if (!waiters.isEmpty()) {
+                    waiter = waiters.poll();
+                } else if (idle.size() + creatingIdle >= minIdle) {
+                    return;
+                } else {
+                    creatingIdle++;
+                }
+                creating++;
+            }
+
+            create(waiter);
+        }
+    }
+
+    // waiter is null for a stream created to be kept idle
+    private void create(CompletableFuture<Duplex> waiter) {
+        streamApi.addIdleP2pStreamAsync(targetClientId, messageApi.getAckTimeout(), TimeUnit.MILLISECONDS)
+                .whenComplete((duplex, error) -> {
+                    boolean keep;
+                    CompletableFuture<Duplex> lease = waiter;
+                    synchronized (this) {
+                        creating--;
+                        if (waiter == null) creatingIdle--;
+                        if (error == null) createdCount++;
+
+                        keep = error == null && !closed;
+                        if (keep) {
+                            // an idle stream goes to a lease which waited for the pool to be below maxSize
+                            if (lease == null) lease = waiters.poll();
+                            if (lease != null) leased.add(duplex);
+                            else idle.addFirst(new IdleDuplex(duplex, System.nanoTime()));
+                        }
+                    }
+
+                    if (error != null) {
+                        // no retry: a target which refuses or is gone would be asked again and again
+                        if (waiter != null) waiter.completeExceptionally(error);
+                        return;
+                    }
+                    if (!keep) {
+                        duplex.destroy();
+                        if (waiter != null) waiter.completeExceptionally(new P2pStreamException("Pool of streams to "
+                                + targetClientId + " is closed"));
+                        return;
+                    }
+
+                    duplex.onDestroy(v -> removed(duplex));
+                    if (lease != null) handOver(duplex, lease);
+                });
+    }
+
+    // e.g. destroyed by the peer, or because either side disconnected
+    private void removed(Duplex duplex) {
+        synchronized (this) {
+            if (!leased.remove(duplex)) idle.removeIf(entry -> entry.duplex == duplex);
+        }
+        fill();
+    }
+
+    private void scheduleEviction() {
+        if (idleTimeout == 0) return;
+        CompletableFuture.delayedExecutor(idleTimeout, TimeUnit.MILLISECONDS).execute(this::evictIdle);
+    }
+
+    // The least recently released streams are at the end of idle
+    private void evictIdle() {
+        List<Duplex> evicted = new ArrayList<>();
+        long oldestKept = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+
+        synchronized (this) {
+            if (closed) return;
+
+            for (Iterator<IdleDuplex> entries = idle.descendingIterator(); entries.hasNext(); ) {
+                IdleDuplex entry = entries.next();
+                if (idle.size() <= minIdle || entry.idleSince - oldestKept > 0) break;
+
+                entries.remove();
+                evicted.add(entry.duplex);
+            }
+        }
+
+        for (Duplex duplex : evicted) duplex.destroy();
+        scheduleEviction();
+    }
+
+    public String getTargetClientId() {
+        return targetClientId;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    // streams created so far, each of them cost a round trip to the peer
+    public synchronized long getCreatedCount() {
+        return createdCount;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private static class IdleDuplex {
+        private final Duplex duplex;
+        private final long idleSince; // ns
+
+        IdleDuplex(Duplex duplex, long idleSince) {
+            this.duplex = duplex;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import io.socket.client.Ack;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+// Publishes the data received by a Duplex. A chunk is acked only once it was passed to onNext, so demand
+// becomes the sender's credit. Deliberately, that credit is not exactly request(n): the sender keeps its own
+// window of unacked chunks, which it sends before any demand is known, so beyond what the subscriber requested
+// at most one sender window of chunks is held here (see Duplex.setWindowSize on the sending side). Granting
+// credit from the receiver would need a credit message per request and cost a round trip before every window.
+// Completes when the duplex is destroyed.
+// Signals are serialized on the duplex's receive executor. Only one subscriber is allowed.
+class DuplexPublisher implements Publisher<ByteBuffer>, Subscription {
+    private Duplex duplex;
+    private Executor executor;
+    private Subscriber<? super ByteBuffer> subscriber;
+    private Deque<Object[]> pending = new ArrayDeque<>(); // [byte[] chunk, Ack ack]
+    private long demand;
+    private boolean completed;
+    private boolean terminated; // onComplete / onError was signalled or the subscription cancelled
+    private Throwable error;
+    private boolean drainScheduled;
+
+    DuplexPublisher(Duplex duplex, Executor executor) {
+        this.duplex = duplex;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber can not be null");
+
+        synchronized (this) {
+            if (this.subscriber != null) {
+                rejectSubscriber(subscriber);
+                return;
+            }
+            this.subscriber = subscriber;
+        }
+
+        subscriber.onSubscribe(this);
+        scheduleDrain(); // the duplex may be destroyed already
+    }
+
+    private static void rejectSubscriber(Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        subscriber.onError(new IllegalStateException("Duplex publisher allows only one subscriber"));
+    }
+
+    @Override
+    public void request(long n) {
+        synchronized (this) {
+            if (terminated) return;
+
+            if (n <= 0) {
+                error = new IllegalArgumentException("request must be positive, was " + n);
+            } else {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+        }
+        scheduleDrain();
+    }
+
+    @Override
+    public void cancel() {
+        Deque<Object[]> dropped;
+        synchronized (this) {
+            if (terminated) return;
+            terminated = true;
+            dropped = pending;
+            pending = new ArrayDeque<>();
+        }
+
+        duplex.detachPublisher(this);
+        for (Object[] chunk : dropped) ((Ack) chunk[1]).call(); // let the sender go on, the data is not wanted
+    }
+
+    // called by the duplex on the socket.io event thread
+    void offer(byte[] chunk, Ack ack) {
+        synchronized (this) {
+            if (terminated) {
+                ack.call();
+                return;
+            }
+            pending.add(new Object[]{chunk, ack});
+        }
+        scheduleDrain();
+    }
+
+    void complete() {
+        synchronized (this) {
+            completed = true;
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        synchronized (this) {
+            if (drainScheduled || subscriber == null || terminated) return;
+            drainScheduled = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    private void drain() {
+        while (true) {
+            Object[] chunk;
+            Throwable signalError = null;
+            boolean signalComplete = false;
+
+            synchronized (this) {
+                if (terminated) {
+                    drainScheduled = false;
+                    return;
+                }
+
+                if (error != null) {
+                    signalError = error;
+                    terminated = true;
+                    chunk = null;
+                } else if (demand > 0 && !pending.isEmpty()) {
+                    chunk = pending.poll();
+                    if (demand != Long.MAX_VALUE) demand--;
+                } else if (completed && pending.isEmpty()) {
+                    signalComplete = true;
+                    terminated = true;
+                    chunk = null;
+                } else {
+                    drainScheduled = false;
+                    return;
+                }
+            }
+
+            if (signalError != null) {
+                subscriber.onError(signalError);
+                return;
+            }
+            if (signalComplete) {
+                subscriber.onComplete();
+                return;
+            }
+
+            subscriber.onNext(ByteBuffer.wrap((byte[]) chunk[0]));
+            ((Ack) chunk[1]).call();
+        }
+    }
+}
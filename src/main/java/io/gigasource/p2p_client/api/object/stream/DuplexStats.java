@@ -0,0 +1,70 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.util.concurrent.TimeUnit;
+
+// Snapshot of the sending side of a Duplex
+public class DuplexStats {
+    private int chunkSize;
+    private boolean adaptiveChunkSize;
+    private long bytesAcked;
+    private long chunksAcked;
+    private int inFlightBytes;
+    private int inFlightChunks;
+    private long smoothedAckRtt; // ns
+    private long throughput; // bytes/s
+
+    DuplexStats(int chunkSize, boolean adaptiveChunkSize, long bytesAcked, long chunksAcked, int inFlightBytes,
+                int inFlightChunks, long smoothedAckRtt, long throughput) {
+        this.chunkSize = chunkSize;
+        this.adaptiveChunkSize = adaptiveChunkSize;
+        this.bytesAcked = bytesAcked;
+        this.chunksAcked = chunksAcked;
+        this.inFlightBytes = inFlightBytes;
+        this.inFlightChunks = inFlightChunks;
+        this.smoothedAckRtt = smoothedAckRtt;
+        this.throughput = throughput;
+    }
+
+    // size of the chunks read from now on
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public boolean isAdaptiveChunkSize() {
+        return adaptiveChunkSize;
+    }
+
+    public long getBytesAcked() {
+        return bytesAcked;
+    }
+
+    public long getChunksAcked() {
+        return chunksAcked;
+    }
+
+    public int getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public int getInFlightChunks() {
+        return inFlightChunks;
+    }
+
+    public long getSmoothedAckRtt(TimeUnit unit) {
+        return unit.convert(smoothedAckRtt, TimeUnit.NANOSECONDS);
+    }
+
+    // acked bytes per second, measured over the last few windows of chunks
+    public long getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public String toString() {
+        return "DuplexStats{chunkSize=" + chunkSize + (adaptiveChunkSize ? " (adaptive)" : "")
+                + ", bytesAcked=" + bytesAcked + ", chunksAcked=" + chunksAcked
+                + ", inFlightBytes=" + inFlightBytes + ", inFlightChunks=" + inFlightChunks
+                + ", smoothedAckRtt=" + TimeUnit.NANOSECONDS.toMicros(smoothedAckRtt) + "us"
+                + ", throughput=" + throughput + "B/s}";
+    }
+}
@@ -0,0 +1,74 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.nio.ByteBuffer;
+
+// Sends the buffers of an upstream publisher through a Duplex. Demand is the window: windowSize buffers are
+// requested up front and one more each time a buffer is fully acked, so nothing is requested which could
+// not be sent right away. Buffers larger than the chunk size are split into several chunks.
+class DuplexSubscriber implements Subscriber<ByteBuffer> {
+    private Duplex duplex;
+    private volatile Subscription subscription;
+
+    DuplexSubscriber(Duplex duplex) {
+        this.duplex = duplex;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (subscription == null) throw new NullPointerException("subscription can not be null");
+
+        if (this.subscription != null || duplex.isDestroyed()) {
+            subscription.cancel();
+            return;
+        }
+
+        this.subscription = subscription;
+        subscription.request(duplex.getWindowSize());
+    }
+
+    @Override
+    public void onNext(ByteBuffer buffer) {
+        if (buffer == null) throw new NullPointerException("buffer can not be null");
+
+        int chunkSize = duplex.getChunkSize();
+        int chunkCount = Math.max(1, (buffer.remaining() + chunkSize - 1) / chunkSize);
+        int[] unacked = {chunkCount};
+
+        for (int i = 0; i < chunkCount; i++) {
+            int length = Math.min(chunkSize, buffer.remaining());
+            byte[] chunk = duplex.getChunkPool().acquire(length);
+            buffer.get(chunk);
+
+            duplex.sendChunk(chunk, length == chunkSize, () -> {
+                boolean bufferAcked;
+                synchronized (unacked) {
+                    bufferAcked = --unacked[0] == 0;
+                }
+                Subscription current = subscription;
+                if (bufferAcked && current != null) current.request(1);
+            });
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        subscription = null;
+        System.err.println("Publisher of the duplex to " + duplex.getTargetClientId() + " failed, destroying it");
+        throwable.printStackTrace();
+        duplex.destroy();
+    }
+
+    @Override
+    public void onComplete() {
+        subscription = null;
+    }
+
+    void cancel() {
+        Subscription current = subscription;
+        subscription = null;
+        if (current != null) current.cancel();
+    }
+}
@@ -0,0 +1,245 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.P2pStreamException;
+import io.socket.client.Ack;
+import io.socket.emitter.Emitter;
+import java9.util.concurrent.CompletableFuture;
+import java9.util.function.Function;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Receiving side of FileSender: writes each segment at its offset with positional FileChannel writes, so segments
+// arriving over parallel duplexes, in any order or more than once, end up in the right place.
+// A transfer which gets no data for the inactivity timeout fails, e.g. when the sender is gone or its abort was lost.
+// The file of a failed transfer is deleted.
+public class FileReceiver {
+    public static final long DEFAULT_INACTIVITY_TIMEOUT = 60000; // ms
+
+    private final Message messageApi;
+    private Function<FileTransfer, File> destinationOf;
+    private long inactivityTimeout; // ns, 0 waits forever
+    private final Map<String, IncomingFile> incomingFiles = new ConcurrentHashMap<>(); // by transfer id
+    private final Map<String, Segment> announcedSegments = new ConcurrentHashMap<>(); // by the id of the stream to come
+
+    // destinationOf returns the file to write the offered transfer to, or null to refuse it
+    public FileReceiver(Message messageApi, Function<FileTransfer, File> destinationOf) {
+        this(messageApi, destinationOf, DEFAULT_INACTIVITY_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public FileReceiver(Message messageApi, Function<FileTransfer, File> destinationOf, long inactivityTimeout,
+                        TimeUnit unit) {
+        if (inactivityTimeout < 0) throw new IllegalArgumentException("inactivityTimeout must not be negative");
+
+        this.messageApi = messageApi;
+        this.destinationOf = destinationOf;
+        this.inactivityTimeout = unit.toNanos(inactivityTimeout);
+    }
+
+    public void listen() {
+        messageApi.onAny(SocketEvent.P2P_FILE_OFFER, onOffer);
+        messageApi.onAny(SocketEvent.P2P_FILE_SEGMENT, onSegment);
+        messageApi.onAny(SocketEvent.P2P_FILE_ABORT, onAbort);
+    }
+
+    public void stopListening() {
+        messageApi.offAny(SocketEvent.P2P_FILE_OFFER, onOffer);
+        messageApi.offAny(SocketEvent.P2P_FILE_SEGMENT, onSegment);
+        messageApi.offAny(SocketEvent.P2P_FILE_ABORT, onAbort);
+    }
+
+    // args: transferId, senderClientId, file name, size, segment size, ack
+    private Emitter.Listener onOffer = args -> {
+        Ack ack = (Ack) args[args.length - 1];
+        FileTransfer transfer = new FileTransfer((String) args[0], (String) args[1], (String) args[2],
+                ((Number) args[3]).longValue(), ((Number) args[4]).longValue());
+        if (!transfer.hasValidSegments()) {
+            ack.call("Offer of " + transfer.getFileName() + " has an invalid segment size " + transfer.getSegmentSize());
+            return;
+        }
+
+        File file = destinationOf.apply(transfer);
+        if (file == null) {
+            ack.call("File " + transfer.getFileName() + " was refused");
+            return;
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            ack.call("Can not write " + transfer.getFileName() + ": " + e.getMessage());
+            return;
+        }
+
+        IncomingFile incomingFile = new IncomingFile(transfer, file, channel);
+        incomingFiles.put(transfer.getTransferId(), incomingFile);
+        ack.call();
+        if (transfer.getSegmentCount() == 0) incomingFile.finish(null);
+        else incomingFile.scheduleInactivityCheck(inactivityTimeout);
+    };
+
+    // args: transferId, segment index, id of the stream which will carry it, ack
+    private Emitter.Listener onSegment = args -> {
+        Ack ack = (Ack) args[args.length - 1];
+        IncomingFile incomingFile = incomingFiles.get((String) args[0]);
+        int index = ((Number) args[1]).intValue();
+
+        if (incomingFile == null || index < 0 || index >= incomingFile.done.length) {
+            ack.call("Unknown transfer " + args[0]);
+            return;
+        }
+
+        incomingFile.lastActivity = System.nanoTime();
+        announcedSegments.put((String) args[2], new Segment(incomingFile, index));
+        ack.call();
+    };
+
+    private Emitter.Listener onAbort = args -> {
+        IncomingFile incomingFile = incomingFiles.get((String) args[0]);
+        if (incomingFile != null) incomingFile.finish(new P2pStreamException("Transfer aborted by the sender"));
+    };
+
+    public boolean isAnnounced(String streamId) {
+        return announcedSegments.containsKey(streamId);
+    }
+
+    // Called by Stream for every new duplex; returns true if it carries a segment, which it then receives
+    public boolean claim(String streamId, Duplex duplex) {
+        Segment segment = announcedSegments.remove(streamId);
+        if (segment == null) return false;
+
+        IncomingFile incomingFile = segment.incomingFile;
+        FileTransfer transfer = incomingFile.transfer;
+        SegmentOutput output = new SegmentOutput(incomingFile, segment.index);
+
+        transfer.segmentStarted(segment.index, () -> output.written);
+        duplex.addOutputStream(output);
+        duplex.onDestroy(v -> {
+            if (!output.completed) transfer.segmentFailed(segment.index, false); // the sender sends it again
+        });
+        return true;
+    }
+
+    private class IncomingFile {
+        private final FileTransfer transfer;
+        private final File file;
+        private final FileChannel channel;
+        private final boolean[] done; // guarded by this
+        private int doneCount;
+        private volatile long lastActivity = System.nanoTime();
+
+        IncomingFile(FileTransfer transfer, File file, FileChannel channel) {
+            this.transfer = transfer;
+            this.file = file;
+            this.channel = channel;
+            done = new boolean[transfer.getSegmentCount()];
+        }
+
+        void scheduleInactivityCheck(long delay) {
+            if (inactivityTimeout == 0) return;
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(this::checkActivity);
+        }
+
+        private void checkActivity() {
+            if (incomingFiles.get(transfer.getTransferId()) != this) return; // finished meanwhile
+
+            long idle = System.nanoTime() - lastActivity;
+            if (idle < inactivityTimeout) {
+                scheduleInactivityCheck(inactivityTimeout - idle);
+                return;
+            }
+            finish(new P2pStreamException("Transfer of " + transfer.getFileName() + " got no data for "
+                    + TimeUnit.NANOSECONDS.toMillis(inactivityTimeout) + " ms"));
+        }
+
+        void segmentDone(int index) {
+            boolean allDone;
+            synchronized (this) {
+                if (done[index]) return; // a retried segment which had arrived after all
+                done[index] = true;
+                allDone = ++doneCount == done.length;
+            }
+
+            transfer.segmentDone(index);
+            messageApi.emitTo(transfer.getTargetClientId(), SocketEvent.P2P_FILE_SEGMENT_DONE, transfer.getTransferId(), index);
+            if (allDone) finish(null);
+        }
+
+        // error is null on success
+        void finish(P2pStreamException error) {
+            if (incomingFiles.remove(transfer.getTransferId()) == null) return;
+            announcedSegments.values().removeIf(segment -> segment.incomingFile == this);
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (error != null && file.exists() && !file.delete()) {
+                System.err.println("Could not delete the incomplete " + file);
+            }
+
+            if (error == null) transfer.complete();
+            else transfer.fail(error);
+        }
+    }
+
+    private static class Segment {
+        private final IncomingFile incomingFile;
+        private final int index;
+
+        Segment(IncomingFile incomingFile, int index) {
+            this.incomingFile = incomingFile;
+            this.index = index;
+        }
+    }
+
+    // Written by the duplex's receive worker, one chunk after the other
+    private static class SegmentOutput extends OutputStream {
+        private final IncomingFile incomingFile;
+        private final int index;
+        private final long offset;
+        private final long length;
+        private volatile long written;
+        private volatile boolean completed;
+
+        SegmentOutput(IncomingFile incomingFile, int index) {
+            this.incomingFile = incomingFile;
+            this.index = index;
+            offset = incomingFile.transfer.offsetOf(index);
+            length = incomingFile.transfer.lengthOf(index);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written + len > length) throw new IOException("Segment " + index + " is longer than " + length + " bytes");
+
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                written += incomingFile.channel.write(buffer, offset + written);
+            }
+            incomingFile.lastActivity = System.nanoTime();
+
+            if (written == length) {
+                completed = true;
+                incomingFile.segmentDone(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.P2pStreamException;
+import io.socket.client.Ack;
+import io.socket.emitter.Emitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Sends a file in segments over up to parallelism duplexes at once, each segment read straight from the file
+// at its offset (see Duplex.setSource(FileChannel, long, long)). The receiver writes the segments at their offsets
+// and reports each one done; a segment whose duplex is destroyed before that is sent again on its own.
+//
+// Per segment: P2P_FILE_SEGMENT announces the stream id the receiver will get, so FileReceiver can claim
+// the duplex before it would reach the onAddP2pStream callback, then the stream is opened.
+public class FileSender {
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final long DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+    public static final int MAX_SEGMENT_ATTEMPTS = 3;
+
+    private final Stream streamApi;
+    private final Message messageApi;
+    private final String targetClientId;
+    private final File file;
+    private final int parallelism;
+    private FileTransfer transfer;
+    private FileChannel channel;
+    private final Deque<Integer> pendingSegments = new ArrayDeque<>(); // guarded by this
+    private final Map<Integer, Duplex> activeDuplexes = new HashMap<>(); // segment index -> duplex, guarded by this
+    private int[] attempts;
+    private boolean[] done;
+    private int doneCount;
+    private boolean finished;
+
+    public FileSender(Stream streamApi, Message messageApi, String targetClientId, File file,
+                      int parallelism, long segmentSize) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+        if (segmentSize < 1) throw new IllegalArgumentException("segmentSize must be positive");
+
+        this.streamApi = streamApi;
+        this.messageApi = messageApi;
+        this.targetClientId = targetClientId;
+        this.file = file;
+        this.parallelism = parallelism;
+        transfer = new FileTransfer(UUID.randomUUID().toString(), targetClientId, file.getName(), file.length(), segmentSize);
+        if (!transfer.hasValidSegments()) {
+            throw new IllegalArgumentException(file + " needs more than " + Integer.MAX_VALUE + " segments of "
+                    + segmentSize + " bytes");
+        }
+    }
+
+    public FileTransfer getTransfer() {
+        return transfer;
+    }
+
+    // args: transferId, segment index
+    private Emitter.Listener onSegmentDone = args -> {
+        if (transfer.getTransferId().equals(args[0])) segmentDone(((Number) args[1]).intValue());
+    };
+
+    public FileTransfer start() {
+        int segmentCount = transfer.getSegmentCount();
+        attempts = new int[segmentCount];
+        done = new boolean[segmentCount];
+        for (int i = 0; i < segmentCount; i++) pendingSegments.add(i);
+
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            transfer.fail(new P2pStreamException("Can not read " + file + ": " + e.getMessage()));
+            return transfer;
+        }
+
+        messageApi.from(targetClientId).on(SocketEvent.P2P_FILE_SEGMENT_DONE, onSegmentDone);
+        messageApi.emitTo(targetClientId, SocketEvent.P2P_FILE_OFFER, transfer.getTransferId(), messageApi.getClientId(),
+                transfer.getFileName(), transfer.getSize(), transfer.getSegmentSize(), (Ack) args -> {
+                    if (args.length > 0) {
+                        finish(new P2pStreamException(args[0].toString()));
+                    } else if (segmentCount == 0) {
+                        finish(null);
+                    } else {
+                        for (int i = 0; i < Math.min(parallelism, segmentCount); i++) sendNextSegment();
+                    }
+                });
+        return transfer;
+    }
+
+    private void sendNextSegment() {
+        Integer index;
+        synchronized (this) {
+            index = finished ? null : pendingSegments.poll();
+        }
+        if (index != null) sendSegment(index);
+    }
+
+    private void sendSegment(int index) {
+        String sourceStreamId = UUID.randomUUID().toString();
+        String targetStreamId = UUID.randomUUID().toString();
+
+        messageApi.emitTo(targetClientId, SocketEvent.P2P_FILE_SEGMENT, transfer.getTransferId(), index, targetStreamId,
+                (Ack) args -> {
+                    if (args.length > 0) {
+                        finish(new P2pStreamException(args[0].toString()));
+                        return;
+                    }
+
+                    streamApi.addP2pStreamAsync(targetClientId, sourceStreamId, targetStreamId,
+                            messageApi.getAckTimeout(), TimeUnit.MILLISECONDS)
+                            .whenComplete((duplex, error) -> {
+                                if (error != null) segmentFailed(index, null);
+                                else startSegment(index, duplex);
+                            });
+                });
+    }
+
+    private void startSegment(int index, Duplex duplex) {
+        synchronized (this) {
+            if (finished) {
+                duplex.destroy();
+                return;
+            }
+            activeDuplexes.put(index, duplex);
+        }
+
+        transfer.segmentStarted(index, () -> duplex.getStats().getBytesAcked());
+        duplex.onDestroy(v -> segmentFailed(index, duplex)); // ignored once the segment is done
+        if (duplex.isDestroyed()) segmentFailed(index, duplex);
+        else duplex.setSource(channel, transfer.offsetOf(index), transfer.lengthOf(index));
+    }
+
+    private void segmentDone(int index) {
+        Duplex duplex;
+        boolean allDone;
+
+        synchronized (this) {
+            if (finished || index < 0 || index >= done.length || done[index]) return;
+            done[index] = true;
+            doneCount++;
+            allDone = doneCount == done.length;
+            duplex = activeDuplexes.remove(index);
+        }
+
+        transfer.segmentDone(index);
+        if (duplex != null) duplex.destroy();
+        if (allDone) finish(null);
+        else sendNextSegment();
+    }
+
+    // duplex is null if the stream could not be opened
+    private void segmentFailed(int index, Duplex duplex) {
+        boolean retry;
+
+        synchronized (this) {
+            if (finished || done[index]) return;
+            if (duplex != null && activeDuplexes.get(index) != duplex) return;
+            activeDuplexes.remove(index);
+            retry = ++attempts[index] < MAX_SEGMENT_ATTEMPTS;
+        }
+
+        transfer.segmentFailed(index, retry);
+        if (retry) {
+            sendSegment(index);
+        } else {
+            messageApi.emitTo(targetClientId, SocketEvent.P2P_FILE_ABORT, transfer.getTransferId());
+            finish(new P2pStreamException("Segment " + index + " of " + file.getName() + " failed "
+                    + MAX_SEGMENT_ATTEMPTS + " times"));
+        }
+    }
+
+    // error is null on success
+    private void finish(P2pStreamException error) {
+        synchronized (this) {
+            if (finished) return;
+            finished = true;
+        }
+
+        messageApi.from(targetClientId).off(SocketEvent.P2P_FILE_SEGMENT_DONE, onSegmentDone);
+        for (Duplex duplex : activeDuplexesSnapshot()) duplex.destroy();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (error == null) transfer.complete();
+        else transfer.fail(error);
+    }
+
+    private synchronized Duplex[] activeDuplexesSnapshot() {
+        Duplex[] duplexes = activeDuplexes.values().toArray(new Duplex[0]);
+        activeDuplexes.clear();
+        return duplexes;
+    }
+}
@@ -0,0 +1,127 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java9.util.concurrent.CompletableFuture;
+import java9.util.function.LongSupplier;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Progress of a file sent in segments over parallel duplexes, on the sending (FileSender) or receiving (FileReceiver) side
+public class FileTransfer {
+    private final String transferId;
+    private final String targetClientId; // the peer
+    private final String fileName;
+    private final long size;
+    private final long segmentSize;
+    private final long startedAt = System.nanoTime();
+    private volatile long finishedAt;
+    private final AtomicLong completedBytes = new AtomicLong(); // bytes of the segments done
+    private final Map<Integer, LongSupplier> segmentsInProgress = new ConcurrentHashMap<>(); // index -> bytes so far
+    private final AtomicLong retries = new AtomicLong();
+    private final CompletableFuture<FileTransfer> completion = new CompletableFuture<>();
+
+    FileTransfer(String transferId, String targetClientId, String fileName, long size, long segmentSize) {
+        this.transferId = transferId;
+        this.targetClientId = targetClientId;
+        this.fileName = fileName;
+        this.size = size;
+        this.segmentSize = segmentSize;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getTargetClientId() {
+        return targetClientId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    // only meaningful for a transfer with valid segments
+    public int getSegmentCount() {
+        return (int) segmentCountOf(size, segmentSize);
+    }
+
+    // false if the segment size is not positive, or the file has more segments than an int can count
+    boolean hasValidSegments() {
+        return size >= 0 && segmentSize > 0 && segmentCountOf(size, segmentSize) <= Integer.MAX_VALUE;
+    }
+
+    private static long segmentCountOf(long size, long segmentSize) {
+        return size / segmentSize + (size % segmentSize != 0 ? 1 : 0);
+    }
+
+    // bytes acked by the receiver when sending, written to the file when receiving
+    public long getBytesTransferred() {
+        long bytes = completedBytes.get();
+        for (LongSupplier segmentBytes : segmentsInProgress.values()) bytes += segmentBytes.getAsLong();
+        return bytes;
+    }
+
+    // aggregate bytes/s of all segments since the transfer started, until it finished
+    public long getThroughput() {
+        long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+        long elapsed = Math.max(1, end - startedAt);
+        return getBytesTransferred() * 1_000_000_000L / elapsed;
+    }
+
+    // segments which failed and were sent again
+    public long getRetries() {
+        return retries.get();
+    }
+
+    // completes with this transfer once every segment arrived, or fails with P2pStreamException
+    public CompletableFuture<FileTransfer> getCompletion() {
+        return completion;
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    long offsetOf(int index) {
+        return index * segmentSize;
+    }
+
+    long lengthOf(int index) {
+        return Math.min(segmentSize, size - offsetOf(index));
+    }
+
+    void segmentStarted(int index, LongSupplier bytesSoFar) {
+        segmentsInProgress.put(index, bytesSoFar);
+    }
+
+    void segmentDone(int index) {
+        completedBytes.addAndGet(lengthOf(index));
+        segmentsInProgress.remove(index);
+    }
+
+    // the segment starts over, what it transferred so far no longer counts
+    void segmentFailed(int index, boolean retried) {
+        segmentsInProgress.remove(index);
+        if (retried) retries.incrementAndGet();
+    }
+
+    void complete() {
+        finishedAt = System.nanoTime();
+        completion.complete(this);
+    }
+
+    void fail(Throwable cause) {
+        finishedAt = System.nanoTime();
+        segmentsInProgress.clear();
+        completion.completeExceptionally(cause);
+    }
+}
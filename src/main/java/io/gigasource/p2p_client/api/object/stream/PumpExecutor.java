@@ -0,0 +1,41 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared pool running the input pumps of every Duplex which wasn't given its own Executor.
+// A pump holds a thread only while it reads and sends a few chunks, waiting for acks costs no thread,
+// so a handful of threads serve thousands of streams. A Duplex has at most one pump task queued at a time.
+public final class PumpExecutor {
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService shared;
+    private static ExecutorService sharedReceive;
+
+    private PumpExecutor() {
+    }
+
+    public static synchronized Executor shared() {
+        if (shared == null) shared = newPool("p2p-stream-pump-");
+
+        return shared;
+    }
+
+    // Separate pool for the receive workers writing to output streams,
+    // so input pumps blocked in read() can never hold back the writes they may be waiting for
+    public static synchronized Executor sharedReceive() {
+        if (sharedReceive == null) sharedReceive = newPool("p2p-stream-receive-");
+        return sharedReceive;
+    }
+
+    private static ExecutorService newPool(String threadNamePrefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(DEFAULT_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
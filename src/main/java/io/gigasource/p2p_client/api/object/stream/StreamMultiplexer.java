@@ -0,0 +1,214 @@
+package io.gigasource.p2p_client.api.object.stream;
+
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.socket.client.Ack;
+import io.socket.emitter.Emitter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Carries the chunks of every Duplex of a Message on the single P2P_EMIT_STREAM event. Each chunk is sent
+// after a binary header and demultiplexed with one lookup in a long-keyed table, so the dispatch cost of a chunk
+// does not depend on how many streams are open.
+//
+// Header layout (big endian): stream key (8 bytes), sequence number (4 bytes), flags (1 byte).
+// The stream key is a 64 bit hash of the receiving stream's id; both peers know the id from the create stream
+// handshake, so no key has to be negotiated.
+public class StreamMultiplexer {
+    public static final int HEADER_LENGTH = 13;
+
+    private final Message messageApi;
+    private volatile StreamTable streams = new StreamTable(16); // replaced on every change, read without locking
+    private final Map<String, Peer> peers = new HashMap<>(); // targetClientId -> listener shared by its streams
+
+    public StreamMultiplexer(Message messageApi) {
+        this.messageApi = messageApi;
+        // not tied to a peer, Message drops those listeners when the peer disconnects; and out of reach of offAny
+        messageApi.addProtocolListener(SocketEvent.P2P_RESUME_STREAM, onResumeRequest);
+    }
+
+    // FNV-1a, stream ids are random UUIDs so collisions between the open streams are practically impossible
+    public static long streamKeyOf(String streamId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < streamId.length(); i++) {
+            hash ^= streamId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static byte[] encodeHeader(long streamKey, long sequenceNumber, int flags) {
+        byte[] header = new byte[HEADER_LENGTH];
+        for (int i = 0; i < 8; i++) header[i] = (byte) (streamKey >>> (56 - 8 * i));
+        for (int i = 0; i < 4; i++) header[8 + i] = (byte) (sequenceNumber >>> (24 - 8 * i));
+        header[12] = (byte) flags;
+        return header;
+    }
+
+    static long streamKeyOf(byte[] header) {
+        long streamKey = 0;
+        for (int i = 0; i < 8; i++) streamKey = (streamKey << 8) | (header[i] & 0xff);
+        return streamKey;
+    }
+
+    // low 32 bits of the sender's sequence number
+    static int sequenceNumberOf(byte[] header) {
+        int sequenceNumber = 0;
+        for (int i = 8; i < 12; i++) sequenceNumber = (sequenceNumber << 8) | (header[i] & 0xff);
+        return sequenceNumber;
+    }
+
+    static int flagsOf(byte[] header) {
+        return header[12] & 0xff;
+    }
+
+    // Routes chunks sent to streamKey by targetClientId to duplex
+    synchronized void register(String targetClientId, long streamKey, Duplex duplex) {
+        Duplex current = streams.get(streamKey);
+        if (current != null && current != duplex) {
+            throw new IllegalStateException("Another stream is already registered under key " + streamKey);
+        }
+        streams = streams.with(streamKey, duplex);
+
+        peers.computeIfAbsent(targetClientId, Peer::new).streamCount++;
+        attach(targetClientId);
+    }
+
+    // Adds the listener of targetClientId again if Message dropped it, which it does when the target disconnects.
+    // A listener still in place is left alone: removing it for a moment would lose the chunks arriving meanwhile,
+    // and a chunk which is never acked holds its slot of the bulk lane until the ack timeout.
+    synchronized void attach(String targetClientId) {
+        Peer peer = peers.get(targetClientId);
+        if (peer == null) return;
+
+        if (!messageApi.from(targetClientId).hasListener(SocketEvent.P2P_EMIT_STREAM, peer.listener)) {
+            messageApi.from(targetClientId).on(SocketEvent.P2P_EMIT_STREAM, peer.listener);
+        }
+    }
+
+    synchronized void unregister(String targetClientId, long streamKey, Duplex duplex) {
+        if (streams.get(streamKey) != duplex) return;
+        streams = streams.without(streamKey);
+
+        Peer peer = peers.get(targetClientId);
+        if (peer != null && --peer.streamCount == 0) {
+            peers.remove(targetClientId);
+            messageApi.from(targetClientId).off(SocketEvent.P2P_EMIT_STREAM, peer.listener);
+        }
+    }
+
+    // args: the peer's stream id, where the peer's received data ends, ack
+    private final Message.PeerListener onResumeRequest = (senderClientId, args) -> {
+        String peerStreamId = (String) args[0];
+        Ack ack = (Ack) args[args.length - 1];
+        Duplex duplex = streams.get(streamKeyOf(peerStreamId));
+
+        if (duplex == null || !duplex.getTargetStreamId().equals(peerStreamId)
+                || !duplex.getTargetClientId().equals(senderClientId) || !duplex.isResumable()) {
+            ack.call("Stream " + peerStreamId + " can not be resumed");
+            return;
+        }
+        ack.call(duplex.acceptResume(((Number) args[1]).intValue()));
+    };
+
+    public int getStreamCount() {
+        return streams.size;
+    }
+
+    private class Peer {
+        private final String targetClientId;
+        private int streamCount;
+
+        // args: header, chunk, ack
+        private final Emitter.Listener listener = args -> {
+            Ack ack = args.length > 0 && args[args.length - 1] instanceof Ack ? (Ack) args[args.length - 1] : null;
+            if (ack == null) return; // a chunk always comes with its ack
+            if (args.length < 3 || !(args[0] instanceof byte[]) || ((byte[]) args[0]).length < HEADER_LENGTH
+                    || !(args[1] instanceof byte[])) {
+                ack.call("Malformed chunk from " + getTargetClientId());
+                return;
+            }
+
+            byte[] header = (byte[]) args[0];
+            Duplex duplex = streams.get(streamKeyOf(header));
+
+            // chunks of a destroyed stream are dropped, as are chunks claiming another peer's stream.
+            // They are still acked, with an error, so the sender gets its slot of the bulk lane back.
+            if (duplex == null || !duplex.getTargetClientId().equals(getTargetClientId())) {
+                ack.call("Stream " + streamKeyOf(header) + " is not open");
+                return;
+            }
+            duplex.receiveChunk(sequenceNumberOf(header), flagsOf(header), (byte[]) args[1], ack);
+        };
+
+        Peer(String targetClientId) {
+            this.targetClientId = targetClientId;
+        }
+
+        String getTargetClientId() {
+            return targetClientId;
+        }
+    }
+
+    // Open addressing table from stream key to Duplex without boxing the keys. It is never modified once published,
+    // streams open and close rarely compared to how often chunks arrive.
+    private static class StreamTable {
+        private final long[] keys;
+        private final Duplex[] duplexes;
+        private final int size;
+
+        StreamTable(int capacity) {
+            this(new long[capacity], new Duplex[capacity], 0);
+        }
+
+        private StreamTable(long[] keys, Duplex[] duplexes, int size) {
+            this.keys = keys;
+            this.duplexes = duplexes;
+            this.size = size;
+        }
+
+        Duplex get(long key) {
+            int mask = keys.length - 1;
+            for (int i = indexOf(key, mask); duplexes[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) return duplexes[i];
+            }
+            return null;
+        }
+
+        StreamTable with(long key, Duplex duplex) {
+            StreamTable table = copy(size + 1, key);
+            table.put(key, duplex);
+            return new StreamTable(table.keys, table.duplexes, size + (get(key) == null ? 1 : 0));
+        }
+
+        StreamTable without(long key) {
+            StreamTable table = copy(size, key);
+            return new StreamTable(table.keys, table.duplexes, size - 1);
+        }
+
+        // copies every entry but key's into a table kept at most half full
+        private StreamTable copy(int expectedSize, long skippedKey) {
+            int capacity = 16;
+            while (capacity < expectedSize * 2) capacity <<= 1;
+
+            StreamTable table = new StreamTable(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                if (duplexes[i] != null && keys[i] != skippedKey) table.put(keys[i], duplexes[i]);
+            }
+            return table;
+        }
+
+        private void put(long key, Duplex duplex) {
+            int mask = keys.length - 1;
+            int i = indexOf(key, mask);
+            while (duplexes[i] != null && keys[i] != key) i = (i + 1) & mask;
+            keys[i] = key;
+            duplexes[i] = duplex;
+        }
+
+        private static int indexOf(long key, int mask) {
+            return (int) ((key ^ (key >>> 32)) * 0x9E3779B9L) & mask;
+        }
+    }
+}
@@ -9,16 +9,33 @@ public class SocketEvent {
     // Message API events
     public static final String P2P_EMIT = "P2P_EMIT";
     public static final String P2P_EMIT_ACKNOWLEDGE = "P2P_EMIT_ACKNOWLEDGE";
+    public static final String P2P_EMIT_MULTI = "P2P_EMIT_MULTI";
+    public static final String P2P_NEGOTIATE_CODEC = "P2P_NEGOTIATE_CODEC";
+    public static final String P2P_DEFINE_EVENT = "P2P_DEFINE_EVENT";
+    public static final String P2P_RESET_EVENT_IDS = "P2P_RESET_EVENT_IDS";
+    public static final String P2P_COMPACT_EMIT = "P2P_C"; // sent with every compact message, kept short on purpose
+    public static final String P2P_CODEC_EMIT = "P2P_CODEC_EMIT"; // args encoded by the negotiated PayloadCodec
+    public static final String P2P_COMPACT_CODEC_EMIT = "P2P_CC";
     public static final String SERVER_ERROR = "SERVER_ERROR";
 
     // Stream API events
-    public static final String P2P_EMIT_STREAM = "P2P_EMIT_STREAM";
-    public static final String STREAM_IDENTIFIER_PREFIX = "-from-stream-";
+    public static final String P2P_EMIT_STREAM = "P2P_EMIT_STREAM"; // carries the chunks of every stream, see StreamMultiplexer
+    public static final String STREAM_IDENTIFIER_PREFIX = "-from-stream-"; // per-stream chunk event of peers which don't multiplex
     public static final String PEER_STREAM_DESTROYED = "PEER_STREAM_DESTROYED";
+    public static final String P2P_RESUME_STREAM = "P2P_RESUME_STREAM";
+    public static final String P2P_LEASE_STREAM = "P2P_LEASE_STREAM"; // see DuplexPool
+    public static final String P2P_RELEASE_STREAM = "P2P_RELEASE_STREAM";
+
+    // File transfer events
+    public static final String P2P_FILE_OFFER = "P2P_FILE_OFFER";
+    public static final String P2P_FILE_SEGMENT = "P2P_FILE_SEGMENT";
+    public static final String P2P_FILE_SEGMENT_DONE = "P2P_FILE_SEGMENT_DONE";
+    public static final String P2P_FILE_ABORT = "P2P_FILE_ABORT";
 
     // Multi Messages API events
     public static final String MULTI_API_TARGET_DISCONNECT = "MULTI_API_TARGET_DISCONNECT";
     public static final String MULTI_API_ADD_TARGET = "MULTI_API_ADD_TARGET";
+    public static final String MULTI_API_ADD_TARGETS = "MULTI_API_ADD_TARGETS";
 
     // Multi Stream API events
     public static final String MULTI_API_CREATE_STREAM = "MULTI_API_CREATE_STREAM";
@@ -0,0 +1,9 @@
+package io.gigasource.p2p_client.exception;
+
+public class OutboundQueueFullException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public OutboundQueueFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,77 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.api.object.stream.DuplexStats;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.socket.client.Ack;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex adaptive chunk size test")
+class AdaptiveChunkSizeTest {
+    private StandInSocket socket;
+    private Duplex duplex;
+    private ScheduledExecutorService network;
+
+    @BeforeEach
+    void init() {
+        socket = new StandInSocket();
+        duplex = new Duplex(socket, new Message(socket, "A"), "B", "a", "b");
+        network = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void shutdown() {
+        duplex.destroy();
+        network.shutdownNow();
+    }
+
+    // the stand-in peer acks every chunk after delayMs
+    private void ackAfter(long delayMs) {
+        socket.handle(SocketEvent.P2P_EMIT_ACKNOWLEDGE, args ->
+                network.schedule(() -> ((Ack) args[1]).call(), delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    @DisplayName("should keep the fixed chunk size unless adaptive sizing is enabled")
+    void fixedByDefault() {
+        ackAfter(0);
+        duplex.setInputStream(new ByteArrayInputStream(new byte[4 * 1024 * 1024]));
+
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> duplex.getStats().getBytesAcked() == 4 * 1024 * 1024);
+        DuplexStats stats = duplex.getStats();
+        assertEquals(16 * 1024, stats.getChunkSize());
+        assertEquals(256, stats.getChunksAcked());
+        assertFalse(stats.isAdaptiveChunkSize());
+    }
+
+    @Test
+    @DisplayName("should grow chunks while acks come back quickly")
+    void growOnFastLink() {
+        ackAfter(0);
+        duplex.setMaxInFlightBytes(4 * 1024 * 1024);
+        duplex.enableAdaptiveChunkSize(4 * 1024, 256 * 1024);
+        duplex.setInputStream(new ByteArrayInputStream(new byte[256 * 1024 * 1024]));
+
+        Awaitility.await().atMost(20, TimeUnit.SECONDS).until(() -> duplex.getStats().getChunkSize() >= 64 * 1024);
+        assertTrue(duplex.getStats().getChunkSize() <= 256 * 1024);
+    }
+
+    @Test
+    @DisplayName("should shrink chunks down to the lower bound when acks are slow")
+    void shrinkOnSlowLink() {
+        ackAfter(30);
+        duplex.enableAdaptiveChunkSize(4 * 1024, 256 * 1024);
+        duplex.setMaxChunkRtt(10, TimeUnit.MILLISECONDS);
+        duplex.setInputStream(new ByteArrayInputStream(new byte[64 * 1024 * 1024]));
+
+        Awaitility.await().atMost(20, TimeUnit.SECONDS).until(() -> duplex.getStats().getChunkSize() == 4 * 1024);
+        assertTrue(duplex.getStats().getSmoothedAckRtt(TimeUnit.MILLISECONDS) >= 10);
+    }
+}
@@ -0,0 +1,186 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.api.object.stream.BroadcastStream;
+import io.gigasource.p2p_client.exception.P2pStreamException;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Broadcast stream test")
+class BroadcastStreamTest {
+    private StandInRelay relay;
+    private Stream streamA;
+    private Map<String, ByteArrayOutputStream> received = new HashMap<>();
+    private Map<String, CompletableFuture<Void>> ended = new HashMap<>();
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        streamA = new Stream(relay.connect("A"), new Message(relay.socketOf("A"), "A"));
+        for (String clientId : Arrays.asList("B", "C", "D")) {
+            Stream stream = new Stream(relay.connect(clientId), new Message(relay.socketOf(clientId), clientId));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            CompletableFuture<Void> end = new CompletableFuture<>();
+            received.put(clientId, output);
+            ended.put(clientId, end);
+
+            stream.onAddP2pStream(duplex -> {
+                duplex.addOutputStream(output);
+                duplex.onDestroy(v -> end.complete(null));
+            });
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Replaces clientId's stream listener with one writing 16 KiB per 50 ms with a receive budget of 64 KiB,
+    // returns the future completed once its stream is destroyed
+    private CompletableFuture<Void> slowReceiver(String clientId) {
+        Stream stream = new Stream(relay.connect(clientId), new Message(relay.socketOf(clientId), clientId));
+        CompletableFuture<Void> slowEnded = new CompletableFuture<>();
+        stream.onAddP2pStream(duplex -> {
+            duplex.setMaxReceiveQueueBytes(64 * 1024);
+            duplex.onDestroy(v -> slowEnded.complete(null));
+            // until the stream is gone
+            duplex.addOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (duplex.isDestroyed()) return;
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            });
+        });
+        return slowEnded;
+    }
+
+    @Test
+    @DisplayName("should read the source once and deliver it to every target")
+    void readOnce() throws Exception {
+        byte[] data = randomBytes(2 * 1024 * 1024, 25);
+        AtomicLong sourceBytes = new AtomicLong();
+        FilterInputStream source = new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int length = super.read(b, off, len);
+                if (length > 0) sourceBytes.addAndGet(length);
+                return length;
+            }
+        };
+
+        BroadcastStream broadcast = streamA.broadcast(Arrays.asList("B", "C", "D"), source);
+        broadcast.getCompletion().get(20, TimeUnit.SECONDS);
+
+        assertEquals(new HashSet<>(Arrays.asList("B", "C", "D")), new HashSet<>(broadcast.getDelivered()));
+        assertTrue(broadcast.getDropped().isEmpty());
+        assertEquals(data.length, sourceBytes.get());
+        assertEquals(data.length, broadcast.getBytesRead());
+        assertEquals(0, broadcast.getBufferedBytes());
+        for (String clientId : Arrays.asList("B", "C", "D")) {
+            // the end of the data is the end of the stream
+            ended.get(clientId).get(5, TimeUnit.SECONDS);
+            assertArrayEquals(data, received.get(clientId).toByteArray());
+        }
+    }
+
+    @Test
+    @DisplayName("should drop a receiver which falls more than the lag limit behind")
+    void slowReceiverDropped() throws Exception {
+        CompletableFuture<Void> slowEnded = slowReceiver("D");
+
+        byte[] data = randomBytes(4 * 1024 * 1024, 26);
+        BroadcastStream broadcast = streamA.broadcast(Arrays.asList("B", "C", "D"),
+                new ByteArrayInputStream(data), 512 * 1024);
+        broadcast.getCompletion().get(20, TimeUnit.SECONDS);
+
+        assertEquals(new HashSet<>(Arrays.asList("B", "C")), new HashSet<>(broadcast.getDelivered()));
+        assertTrue(broadcast.getDropped().get("D") instanceof P2pStreamException);
+        ended.get("B").get(5, TimeUnit.SECONDS);
+        ended.get("C").get(5, TimeUnit.SECONDS);
+        assertArrayEquals(data, received.get("B").toByteArray());
+        assertArrayEquals(data, received.get("C").toByteArray());
+        slowEnded.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @DisplayName("should not let many slow receivers hold a fast one back")
+    void fastReceiverNotHeldBack() throws Exception {
+        List<String> targetIds = new ArrayList<>();
+        List<CompletableFuture<Void>> slowEnded = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            slowEnded.add(slowReceiver("S" + i));
+            targetIds.add("S" + i);
+        }
+        targetIds.add("B");
+
+        byte[] data = randomBytes(2 * 1024 * 1024, 28);
+        long start = System.nanoTime();
+        BroadcastStream broadcast = streamA.broadcast(targetIds, new ByteArrayInputStream(data), 512 * 1024);
+        ended.get("B").get(10, TimeUnit.SECONDS);
+        long fastMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // a slow receiver would need 128 writes of 50 ms for the whole source
+        assertTrue(fastMillis < 3000, "fast receiver took " + fastMillis + " ms");
+        assertArrayEquals(data, received.get("B").toByteArray());
+        broadcast.getCompletion().get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("B"), broadcast.getDelivered());
+        assertEquals(12, broadcast.getDropped().size());
+        for (CompletableFuture<Void> end : slowEnded) end.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @DisplayName("should keep sending to the other targets if one can't be reached")
+    void unknownTarget() throws Exception {
+        byte[] data = randomBytes(256 * 1024, 27);
+        BroadcastStream broadcast = streamA.broadcast(Arrays.asList("B", "X"), new ByteArrayInputStream(data));
+        broadcast.getCompletion().get(10, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("B"), broadcast.getDelivered());
+        assertTrue(broadcast.getDropped().get("X") instanceof P2pStreamException);
+        ended.get("B").get(5, TimeUnit.SECONDS);
+        assertArrayEquals(data, received.get("B").toByteArray());
+    }
+
+    @Test
+    @DisplayName("should complete right away without targets")
+    void noTargets() throws Exception {
+        BroadcastStream broadcast = streamA.broadcast(Arrays.asList(), new ByteArrayInputStream(new byte[1024]));
+
+        assertTrue(broadcast.isDone());
+        assertTrue(broadcast.getDelivered().isEmpty());
+        assertSame(broadcast, broadcast.getCompletion().get(1, TimeUnit.SECONDS));
+    }
+}
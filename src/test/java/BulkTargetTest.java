@@ -0,0 +1,93 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.TargetClientException;
+import io.socket.client.Ack;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Message API bulk target registration test")
+class BulkTargetTest {
+    private StandInSocket socket;
+    private Message messageApi;
+
+    @BeforeEach
+    void init() {
+        socket = new StandInSocket();
+        messageApi = new Message(socket, "A");
+
+        // stand-in server: only clients with id starting with "peer" are registered
+        socket.handle(SocketEvent.MULTI_API_ADD_TARGETS, args -> {
+            JSONArray targetClientIds = (JSONArray) args[0];
+            JSONObject errors = new JSONObject();
+
+            try {
+                for (int i = 0; i < targetClientIds.length(); i++) {
+                    String targetClientId = targetClientIds.getString(i);
+                    if (!targetClientId.startsWith("peer")) errors.put(targetClientId, "Could not find target client");
+                }
+            } catch (JSONException e) {
+                fail(e);
+            }
+
+            if (errors.length() == 0) ((Ack) args[1]).call();
+            else ((Ack) args[1]).call(errors);
+        });
+    }
+
+    @Test
+    @DisplayName("should register all targets in one round trip")
+    void singleRoundTrip() throws TargetClientException {
+        List<String> targetClientIds = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) targetClientIds.add("peer" + i);
+
+        Map<String, TargetClientException> errors = messageApi.addP2pTargets(targetClientIds);
+
+        assertTrue(errors.isEmpty());
+        assertEquals(1, socket.emitted(SocketEvent.MULTI_API_ADD_TARGETS).size());
+        assertEquals(0, socket.emitted(SocketEvent.MULTI_API_ADD_TARGET).size());
+        assertEquals(2000, ((JSONArray) socket.emitted(SocketEvent.MULTI_API_ADD_TARGETS).get(0)[1]).length());
+    }
+
+    @Test
+    @DisplayName("should report errors per target")
+    void errorsPerTarget() throws TargetClientException {
+        Map<String, TargetClientException> errors =
+                messageApi.addP2pTargets(Arrays.asList("peer1", "unknown1", "peer2", "unknown2", "peer1"));
+
+        assertEquals(2, errors.size());
+        assertEquals("Could not find target client", errors.get("unknown1").getMessage());
+        assertEquals("Could not find target client", errors.get("unknown2").getMessage());
+    }
+
+    @Test
+    @DisplayName("should apply a batch-wide error to every target")
+    void batchWideError() throws TargetClientException {
+        socket.handle(SocketEvent.MULTI_API_ADD_TARGETS, args -> ((Ack) args[1]).call("Server is busy"));
+
+        Map<String, TargetClientException> errors = messageApi.addP2pTargets(Arrays.asList("peer1", "peer2"));
+
+        assertEquals(2, errors.size());
+        assertEquals("Server is busy", errors.get("peer2").getMessage());
+    }
+
+    @Test
+    @DisplayName("should time out if the server never acks")
+    void timeout() {
+        socket.handle(SocketEvent.MULTI_API_ADD_TARGETS, args -> {});
+
+        Throwable e = assertThrows(java9.util.concurrent.CompletionException.class, () ->
+                messageApi.addP2pTargetsAsync(Arrays.asList("peer1", "peer2"), 100, TimeUnit.MILLISECONDS).join());
+        assertEquals(TimeoutException.class, e.getCause().getClass());
+    }
+}
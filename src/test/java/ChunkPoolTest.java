@@ -0,0 +1,111 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.stream.ChunkPool;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex chunk pool test")
+class ChunkPoolTest {
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private StandInRelay relay;
+    private Message messageA, messageB;
+    private ExecutorService pumpThread;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        messageA = new Message(relay.connect("A"), "A");
+        messageB = new Message(relay.connect("B"), "B");
+        pumpThread = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void shutdown() {
+        pumpThread.shutdownNow();
+        relay.shutdown();
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    @DisplayName("should reuse released chunks and keep idle chunks within its budget")
+    void reuseWithinBudget() {
+        ChunkPool pool = new ChunkPool(2 * CHUNK_SIZE);
+
+        byte[] first = pool.acquire(CHUNK_SIZE);
+        pool.release(first);
+        assertSame(first, pool.acquire(CHUNK_SIZE));
+        assertEquals(1, pool.getAllocations());
+
+        byte[][] chunks = {pool.acquire(CHUNK_SIZE), pool.acquire(CHUNK_SIZE), pool.acquire(CHUNK_SIZE)};
+        for (byte[] chunk : chunks) pool.release(chunk);
+        assertEquals(2 * CHUNK_SIZE, pool.getPooledBytes());
+
+        assertEquals(100, pool.acquire(100).length); // lengths are never mixed up
+    }
+
+    @Test
+    @DisplayName("steady streaming should allocate far less with a pool than without")
+    void gcPressure() {
+        int size = 32 * 1024 * 1024;
+        byte[] input = new byte[size];
+        new Random(5).nextBytes(input);
+
+        transfer(input, new ChunkPool(0)); // warm up
+        long unpooledBytes = transfer(input, new ChunkPool(0));
+        ChunkPool pool = new ChunkPool(ChunkPool.DEFAULT_MAX_POOLED_BYTES);
+        long pooledBytes = transfer(input, pool);
+
+        System.out.printf("Duplex pump allocation per MB sent: unpooled %d KB, pooled %d KB (%d chunk arrays allocated)%n",
+                unpooledBytes / 32 / 1024, pooledBytes / 32 / 1024, pool.getAllocations());
+        assertTrue(pooledBytes * 4 < unpooledBytes);
+        assertTrue(pool.getAllocations() <= Duplex.DEFAULT_WINDOW_SIZE + 2); // the window, the chunk read ahead and an ack racing the pump
+    }
+
+    // returns the bytes allocated by the pump thread while sending input
+    private long transfer(byte[] input, ChunkPool pool) {
+        String id = String.valueOf(System.nanoTime());
+        Duplex sender = new Duplex(relay.socketOf("A"), messageA, "B", "a" + id, "b" + id);
+        Duplex receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b" + id, "a" + id);
+        AtomicLong received = new AtomicLong();
+        receiver.addOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                received.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                received.addAndGet(len);
+            }
+        });
+
+        AtomicLong allocated = new AtomicLong();
+        sender.setChunkPool(pool);
+        sender.setPumpExecutor(task -> pumpThread.execute(() -> {
+            long before = allocatedBytes();
+            task.run();
+            allocated.addAndGet(allocatedBytes() - before);
+        }));
+        sender.setInputStream(new ByteArrayInputStream(input));
+
+        Awaitility.await().atMost(60, TimeUnit.SECONDS).until(() -> received.get() == input.length);
+        sender.destroy();
+        return allocated.get();
+    }
+}
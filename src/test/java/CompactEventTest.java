@@ -0,0 +1,151 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.socket.client.Ack;
+import org.awaitility.Awaitility;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Message API compact event id test")
+class CompactEventTest {
+    private StandInRelay relay;
+    private StandInSocket socketA, socketB;
+    private Message messageA, messageB;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        socketA = relay.connect("A");
+        socketB = relay.connect("B");
+        messageA = new Message(socketA, "A");
+        messageB = new Message(socketB, "B");
+        messageA.setCompactEventsEnabled(true);
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    private static JSONObject envelope(Object[] packet) {
+        return (JSONObject) packet[1];
+    }
+
+    @Test
+    @DisplayName("should switch to integer ids once the target confirmed them")
+    void switchToIds() throws JSONException {
+        List<Object> received = new CopyOnWriteArrayList<>();
+        messageB.from("A").on("update", args -> received.add(args[0]));
+
+        messageA.emitTo("B", "update", "by name");
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> messageA.getEventDictionary().lookup("B", "update") != null);
+        messageA.emitTo("B", "update", "by id");
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> received.size() == 2);
+        assertEquals("by name", received.get(0));
+        assertEquals("by id", received.get(1));
+
+        List<Object[]> emitted = socketA.emitted(SocketEvent.P2P_EMIT);
+        JSONObject compact = envelope(emitted.get(emitted.size() - 1));
+        assertEquals(SocketEvent.P2P_COMPACT_EMIT, compact.get(EnvelopeEncoder.EVENT));
+        assertEquals(0, compact.getJSONArray(EnvelopeEncoder.ARGS).get(0)); // alias of A at B
+        assertEquals(0, compact.getJSONArray(EnvelopeEncoder.ARGS).get(1)); // id of "update"
+    }
+
+    @Test
+    @DisplayName("should keep acks and any-listeners working with integer ids")
+    void acksAndAnyListeners() {
+        AtomicInteger anyCount = new AtomicInteger();
+        AtomicInteger ackCount = new AtomicInteger();
+        messageB.onAny("rpc", args -> {
+            anyCount.getAndIncrement();
+            ((Ack) args[args.length - 1]).call("pong");
+        });
+
+        messageA.emitTo("B", "rpc", "ping", (Ack) args -> ackCount.getAndIncrement());
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> messageA.getEventDictionary().lookup("B", "rpc") != null);
+        messageA.emitTo("B", "rpc", "ping", (Ack) args -> {
+            assertEquals("pong", args[0]);
+            ackCount.getAndIncrement();
+        });
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> ackCount.get() == 2);
+        assertEquals(2, anyCount.get());
+    }
+
+    @Test
+    @DisplayName("should fall back to names when the target does not answer the definition")
+    void fallBackToNames() {
+        StandInSocket socket = new StandInSocket(); // nobody acks P2P_DEFINE_EVENT
+        Message message = new Message(socket, "A");
+        message.setCompactEventsEnabled(true);
+
+        for (int i = 0; i < 3; i++) message.emitTo("node-peer", "update", i);
+
+        assertEquals(3, socket.emitted(SocketEvent.P2P_EMIT).size());
+        assertEquals(1, socket.emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE).size()); // a single definition
+        for (Object[] packet : socket.emitted(SocketEvent.P2P_EMIT)) {
+            assertEquals("update", envelope(packet).opt(EnvelopeEncoder.EVENT));
+        }
+    }
+
+    @Test
+    @DisplayName("should define ids again after the target reconnected")
+    void resetOnTargetDisconnect() {
+        messageA.emitTo("B", "update", 1);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> messageA.getEventDictionary().lookup("B", "update") != null);
+
+        relay.disconnect("B");
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> messageA.getEventDictionary().lookup("B", "update") == null);
+    }
+
+    @Test
+    @DisplayName("should refuse event ids outside of the table")
+    void eventIdOutOfRange() {
+        List<Object> answers = new CopyOnWriteArrayList<>();
+        int maxEventIds = messageB.getEventDictionary().getMaxEventIds();
+
+        relay.inject("B", SocketEvent.P2P_DEFINE_EVENT, "A", "update", Integer.MAX_VALUE, (Ack) args -> answers.add(args[0]));
+        relay.inject("B", SocketEvent.P2P_DEFINE_EVENT, "A", "update", -1, (Ack) args -> answers.add(args[0]));
+        relay.inject("B", SocketEvent.P2P_DEFINE_EVENT, "A", "update", maxEventIds, (Ack) args -> answers.add(args[0]));
+        relay.inject("B", SocketEvent.P2P_DEFINE_EVENT, "A", "update", maxEventIds - 1, (Ack) args -> answers.add(args[0]));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> answers.size() == 4);
+        assertTrue(answers.get(0) instanceof String);
+        assertTrue(answers.get(1) instanceof String);
+        assertTrue(answers.get(2) instanceof String);
+        assertEquals(0, answers.get(3));
+    }
+
+    @Test
+    @DisplayName("should forget the ids of senders which disconnected")
+    void forgetDisconnectedSender() {
+        messageA.emitTo("B", "update", 1);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> messageA.getEventDictionary().lookup("B", "update") != null);
+        assertEquals(1, messageB.getEventDictionary().getPeerCount());
+
+        relay.drop("A");
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> messageB.getEventDictionary().getPeerCount() == 0);
+        assertNull(messageB.getEventDictionary().resolvePeer(0));
+        assertNull(messageA.getEventDictionary().lookup("B", "update"));
+
+        // back online, A defines its ids again and gets a new alias
+        List<Object> received = new CopyOnWriteArrayList<>();
+        messageB.from("A").on("update", args -> received.add(args[0]));
+        relay.restore("A");
+        messageA.emitTo("B", "update", 2);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> messageA.getEventDictionary().lookup("B", "update") != null);
+        messageA.emitTo("B", "update", 3);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> received.size() == 2);
+        assertEquals(1, messageA.getEventDictionary().lookup("B", "update")[0]);
+    }
+}
@@ -0,0 +1,78 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex channel API test")
+class DuplexChannelTest {
+    private StandInRelay relay;
+    private Message messageA, messageB;
+    private Duplex sender, receiver;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        messageA = new Message(relay.connect("A"), "A");
+        messageB = new Message(relay.connect("B"), "B");
+        sender = new Duplex(relay.socketOf("A"), messageA, "B", "a", "b");
+        receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    @Test
+    @DisplayName("should copy a file from a FileChannel source to a FileChannel sink")
+    void fileToFile(@TempDir Path dir) throws IOException {
+        byte[] content = new byte[5 * 1024 * 1024 + 123];
+        new Random(7).nextBytes(content);
+        Path source = Files.write(dir.resolve("source"), content);
+        Path target = dir.resolve("target");
+
+        try (FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            receiver.addSink(targetChannel);
+            sender.setSource(FileChannel.open(source, StandardOpenOption.READ));
+
+            // the mapped region makes the file larger until the stream ends
+            Awaitility.await().atMost(20, TimeUnit.SECONDS).pollDelay(100, TimeUnit.MILLISECONDS)
+                    .until(() -> sender.getInFlightBytes() == 0 && receiver.getReceiveQueueBytes() == 0);
+            sender.destroy();
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(receiver::isDestroyed);
+
+            assertEquals(content.length, targetChannel.size());
+            assertEquals(content.length, targetChannel.position());
+        }
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    @DisplayName("should read from and write to plain channels")
+    void plainChannels() throws IOException {
+        byte[] content = new byte[300 * 1024];
+        new Random(8).nextBytes(content);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        receiver.addSink(Channels.newChannel(output));
+        sender.setSource(Channels.newChannel(new ByteArrayInputStream(content)));
+
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> output.size() == content.length);
+        assertArrayEquals(content, output.toByteArray());
+    }
+}
@@ -0,0 +1,165 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.api.object.stream.DuplexPool;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import java9.util.concurrent.CompletableFuture;
+import org.awaitility.Awaitility;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex pool test")
+class DuplexPoolTest {
+    private StandInRelay relay;
+    private Message messageB;
+    private Stream streamA, streamB;
+    private List<Duplex> handedToB = new CopyOnWriteArrayList<>();
+    private Map<Duplex, ByteArrayOutputStream> outputsOfB = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        streamA = new Stream(relay.connect("A"), new Message(relay.socketOf("A"), "A"));
+        messageB = new Message(relay.connect("B"), "B");
+        streamB = new Stream(relay.socketOf("B"), messageB);
+        streamB.onAddP2pStream(duplex -> {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            duplex.addOutputStream(output);
+            outputsOfB.put(duplex, output);
+            handedToB.add(duplex);
+        });
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    private int createStreamRequests() {
+        return relay.socketOf("A").emitted(SocketEvent.MULTI_API_CREATE_STREAM).size();
+    }
+
+    private ByteArrayOutputStream sendToB(Duplex duplex, String data) {
+        duplex.setInputStream(new ByteArrayInputStream(data.getBytes()));
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> handedToB.size() > 0
+                && outputsOfB.get(handedToB.get(handedToB.size() - 1)).toString().equals(data));
+        // the last ack arrives after the data, release() needs it
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> duplex.getStats().getInFlightChunks() == 0);
+        return outputsOfB.get(handedToB.get(handedToB.size() - 1));
+    }
+
+    @Test
+    @DisplayName("should lease a pre-warmed stream without a round trip")
+    void preWarmed() throws Exception {
+        streamA.setDuplexPoolSize(2, 4);
+        DuplexPool pool = streamA.getDuplexPool("B");
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() == 2);
+        assertEquals(2, createStreamRequests());
+        assertTrue(handedToB.isEmpty()); // the peer keeps them aside until leased
+
+        CompletableFuture<Duplex> lease = streamA.leaseP2pStream("B");
+        assertTrue(lease.isDone());
+        sendToB(lease.get(), "request");
+
+        assertEquals(1, handedToB.size());
+        assertEquals(1, pool.getLeasedCount());
+        // topped up to minIdle again in the background
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() == 2);
+        assertEquals(3, pool.getCreatedCount());
+    }
+
+    @Test
+    @DisplayName("should only let the stream's peer lease it, whatever listeners the application removes")
+    void leaseFromPeerOnly() throws Exception {
+        messageB.offAny(null, null);
+        streamA.setDuplexPoolSize(1, 1);
+        DuplexPool pool = streamA.getDuplexPool("B");
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() == 1);
+
+        // another client naming B's end of the pooled stream
+        JSONObject connectionInfo = (JSONObject) relay.socketOf("A").emitted(SocketEvent.MULTI_API_CREATE_STREAM).get(0)[1];
+        relay.inject("B", SocketEvent.P2P_LEASE_STREAM, "C", connectionInfo.getString("targetStreamId"));
+        Thread.sleep(200);
+        assertTrue(handedToB.isEmpty());
+
+        sendToB(streamA.leaseP2pStream("B").get(), "request");
+        assertEquals(1, handedToB.size());
+    }
+
+    @Test
+    @DisplayName("should reuse a released stream on both ends")
+    void reuse() throws Exception {
+        streamA.setDuplexPoolSize(1, 1);
+        DuplexPool pool = streamA.getDuplexPool("B");
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() == 1);
+
+        Duplex first = streamA.leaseP2pStream("B").get(5, TimeUnit.SECONDS);
+        ByteArrayOutputStream firstOutput = sendToB(first, "first request");
+
+        // the pool is at its maximum, the next lease waits for a release
+        CompletableFuture<Duplex> next = streamA.leaseP2pStream("B");
+        assertFalse(next.isDone());
+        streamA.releaseP2pStream(first);
+
+        Duplex second = next.get(5, TimeUnit.SECONDS);
+        assertSame(first, second);
+        ByteArrayOutputStream secondOutput = sendToB(second, "second request");
+
+        assertEquals(2, handedToB.size());
+        assertSame(handedToB.get(0), handedToB.get(1));
+        assertEquals("first request", firstOutput.toString()); // detached by the release
+        assertEquals("second request", secondOutput.toString());
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(1, createStreamRequests());
+    }
+
+    @Test
+    @DisplayName("should destroy a stream released while it is still sending")
+    void releaseWhileSending() throws Exception {
+        streamA.setDuplexPoolSize(1, 2);
+        DuplexPool pool = streamA.getDuplexPool("B");
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() == 1);
+
+        Duplex duplex = streamA.leaseP2pStream("B").get(5, TimeUnit.SECONDS);
+        duplex.setWindowSize(1);
+        duplex.setInputStream(new ByteArrayInputStream(new byte[16 * 1024 * 1024]));
+        streamA.releaseP2pStream(duplex);
+
+        assertTrue(duplex.isDestroyed());
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> handedToB.size() == 1 && handedToB.get(0).isDestroyed());
+        assertEquals(0, pool.getLeasedCount());
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() == 1);
+    }
+
+    @Test
+    @DisplayName("should destroy streams idle for too long down to minIdle")
+    void idleEviction() throws Exception {
+        streamA.setDuplexPoolSize(1, 4);
+        streamA.setDuplexPoolIdleTimeout(300, TimeUnit.MILLISECONDS);
+        DuplexPool pool = streamA.getDuplexPool("B");
+
+        Duplex[] leased = new Duplex[3];
+        for (int i = 0; i < leased.length; i++) leased[i] = pool.lease().get(5, TimeUnit.SECONDS);
+        for (Duplex duplex : leased) streamA.releaseP2pStream(duplex);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() >= 3);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() == 1);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() ->
+                handedToB.stream().filter(Duplex::isDestroyed).count() >= 2);
+
+        pool.close();
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> handedToB.stream().allMatch(Duplex::isDestroyed));
+        assertTrue(pool.lease().isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,88 @@
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.socket.client.Ack;
+import org.apache.commons.lang3.ArrayUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("EnvelopeEncoder test")
+class EnvelopeEncoderTest {
+    private static final String SENDER_ID = "5f2b2a5e-8d55-4f6a-9b3b-0a6c8f1f2e11";
+    private static final String TARGET_ID = "c0a8012e-7a1b-4b5e-8f43-1d2e3f4a5b6c";
+    private static final String EVENT = "P2P_EMIT_STREAM-from-stream-4b0e3d0c-3c5f-4f8e-9a57-2b1c7d9e6f10";
+    private static final int ITERATIONS = 200_000;
+
+    // the emitTo envelope building code before EnvelopeEncoder was introduced
+    private static JSONObject encodeLegacy(String senderId, String targetClientId, String event, Object... args) throws JSONException {
+        int lastIndex = args.length - 1;
+        boolean isAckCase = args.length > 0 && args[lastIndex] instanceof Ack;
+
+        JSONObject emitPayload = new JSONObject();
+        emitPayload.put("targetClientId", targetClientId);
+        emitPayload.put("event", event);
+
+        if (isAckCase) {
+            Object[] newArgs = new Object[args.length];
+            newArgs[0] = senderId;
+            System.arraycopy(args, 0, newArgs, 1, lastIndex);
+            emitPayload.put("args", new JSONArray(newArgs));
+        } else {
+            args = ArrayUtils.addAll(new Object[]{senderId}, args);
+            emitPayload.put("args", new JSONArray(args));
+        }
+
+        return emitPayload;
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    @DisplayName("should produce the same payload as the legacy emitTo code")
+    void sameWireFormat() throws JSONException {
+        Ack ack = args -> {};
+        Object[] args = {"text", 3.14, 42, new byte[]{1, 2, 3}, ack};
+
+        JSONObject legacy = encodeLegacy(SENDER_ID, TARGET_ID, EVENT, args);
+        JSONObject encoded = EnvelopeEncoder.encode(SENDER_ID, TARGET_ID, EVENT, args, args.length - 1);
+
+        assertEquals(legacy.get("targetClientId"), encoded.get(EnvelopeEncoder.TARGET_CLIENT_ID));
+        assertEquals(legacy.get("event"), encoded.get(EnvelopeEncoder.EVENT));
+
+        JSONArray legacyArgs = legacy.getJSONArray("args");
+        JSONArray encodedArgs = encoded.getJSONArray(EnvelopeEncoder.ARGS);
+        assertEquals(legacyArgs.length(), encodedArgs.length());
+        for (int i = 0; i < legacyArgs.length(); i++) assertSame(legacyArgs.get(i), encodedArgs.get(i));
+    }
+
+    @Test
+    @DisplayName("should allocate less than the legacy emitTo code")
+    void allocatesLess() throws JSONException {
+        Object[] args = {new byte[1024 * 16], (Ack) a -> {}};
+
+        // warm up both paths so the JIT settles before measuring
+        for (int i = 0; i < ITERATIONS; i++) {
+            encodeLegacy(SENDER_ID, TARGET_ID, EVENT, args);
+            EnvelopeEncoder.encode(SENDER_ID, TARGET_ID, EVENT, args, 1);
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) encodeLegacy(SENDER_ID, TARGET_ID, EVENT, args);
+        long legacyBytes = allocatedBytes() - before;
+
+        before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) EnvelopeEncoder.encode(SENDER_ID, TARGET_ID, EVENT, args, 1);
+        long encoderBytes = allocatedBytes() - before;
+
+        System.out.printf("emitTo envelope allocation per message: legacy %d bytes, EnvelopeEncoder %d bytes%n",
+                legacyBytes / ITERATIONS, encoderBytes / ITERATIONS);
+        assertTrue(encoderBytes < legacyBytes);
+    }
+}
@@ -0,0 +1,186 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.api.object.stream.FileTransfer;
+import io.gigasource.p2p_client.api.object.stream.StreamMultiplexer;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.P2pStreamException;
+import io.socket.client.Ack;
+import org.awaitility.Awaitility;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Segmented file transfer test")
+class FileTransferTest {
+    private StandInRelay relay;
+    private Stream streamA, streamB;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        streamA = new Stream(relay.connect("A"), new Message(relay.socketOf("A"), "A"));
+        Message messageB = new Message(relay.connect("B"), "B");
+        streamB = new Stream(relay.socketOf("B"), messageB);
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    private File createFile(int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(21).nextBytes(content);
+        return Files.write(directory.resolve("source.bin"), content).toFile();
+    }
+
+    @Test
+    @DisplayName("should reassemble a file sent over parallel duplexes")
+    void parallelSegments() throws Exception {
+        File source = createFile(3 * 1024 * 1024 + 12345);
+        File destination = directory.resolve("destination.bin").toFile();
+        AtomicReference<FileTransfer> incoming = new AtomicReference<>();
+
+        streamB.onReceiveFile(transfer -> {
+            incoming.set(transfer);
+            return destination;
+        });
+        FileTransfer transfer = streamA.sendFile("B", source, 4, 256 * 1024);
+
+        transfer.getCompletion().get(20, TimeUnit.SECONDS);
+        incoming.get().getCompletion().get(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(destination.toPath()));
+        assertEquals(13, transfer.getSegmentCount());
+        assertEquals(source.length(), transfer.getBytesTransferred());
+        assertEquals(source.length(), incoming.get().getBytesTransferred());
+        assertEquals("source.bin", incoming.get().getFileName());
+        assertEquals("A", incoming.get().getTargetClientId());
+        assertTrue(transfer.getThroughput() > 0);
+        assertEquals(0, transfer.getRetries());
+    }
+
+    @Test
+    @DisplayName("should send a failed segment again on its own")
+    void retrySegment() throws Exception {
+        File source = createFile(1024 * 1024);
+        File destination = directory.resolve("destination.bin").toFile();
+        AtomicLong stalledStreamKey = new AtomicLong();
+        AtomicInteger droppedChunks = new AtomicInteger();
+        AtomicInteger segmentAnnouncements = new AtomicInteger();
+
+        // the chunks of the first stream never arrive, so its segment can only finish after a retry
+        relay.dropEvents((event, args) -> {
+            try {
+                if (event.equals(SocketEvent.P2P_FILE_SEGMENT)) segmentAnnouncements.incrementAndGet();
+                if (!event.equals(SocketEvent.P2P_EMIT_STREAM)) return false;
+
+                long streamKey = ByteBuffer.wrap((byte[]) args.get(1)).getLong(); // args start with the sender
+                stalledStreamKey.compareAndSet(0, streamKey);
+                if (streamKey != stalledStreamKey.get()) return false;
+                droppedChunks.incrementAndGet();
+                return true;
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        streamB.onReceiveFile(transfer -> destination);
+        FileTransfer transfer = streamA.sendFile("B", source, 2, 256 * 1024);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> droppedChunks.get() > 0);
+        String stalledTargetStreamId = null;
+        for (Object[] packet : relay.socketOf("A").emitted(SocketEvent.MULTI_API_CREATE_STREAM)) {
+            JSONObject connectionInfo = (JSONObject) packet[1];
+            if (StreamMultiplexer.streamKeyOf(connectionInfo.getString("sourceStreamId")) == stalledStreamKey.get()) {
+                stalledTargetStreamId = connectionInfo.getString("targetStreamId");
+            }
+        }
+        // as if the receiving side of the stalled stream went away
+        relay.inject("A", SocketEvent.PEER_STREAM_DESTROYED, "B", stalledTargetStreamId);
+
+        transfer.getCompletion().get(20, TimeUnit.SECONDS);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(destination.toPath()));
+        assertEquals(1, transfer.getRetries());
+        assertEquals(5, segmentAnnouncements.get());
+    }
+
+    @Test
+    @DisplayName("should fail if the peer refuses the file")
+    void refused() throws IOException {
+        File source = createFile(1024);
+        streamB.onReceiveFile(transfer -> null);
+
+        FileTransfer transfer = streamA.sendFile("B", source);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> transfer.getCompletion().get(5, TimeUnit.SECONDS));
+        assertEquals("File source.bin was refused", e.getCause().getMessage());
+    }
+
+    @Test
+    @DisplayName("should refuse offers with an invalid segment size or too many segments")
+    void invalidOffer() {
+        streamB.onReceiveFile(transfer -> directory.resolve("destination.bin").toFile());
+        AtomicReference<Object[]> zeroSize = new AtomicReference<>();
+        AtomicReference<Object[]> tooMany = new AtomicReference<>();
+
+        relay.inject("B", SocketEvent.P2P_FILE_OFFER, "A", "t1", "A", "x.bin", 1024, 0, (Ack) zeroSize::set);
+        relay.inject("B", SocketEvent.P2P_FILE_OFFER, "A", "t2", "A", "y.bin", Long.MAX_VALUE, 1, (Ack) tooMany::set);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> zeroSize.get() != null && tooMany.get() != null);
+        assertEquals("Offer of x.bin has an invalid segment size 0", zeroSize.get()[0]);
+        assertEquals("Offer of y.bin has an invalid segment size 1", tooMany.get()[0]);
+        assertFalse(directory.resolve("destination.bin").toFile().exists());
+    }
+
+    @Test
+    @DisplayName("should not send a file with more segments than an int can count")
+    void tooManySegments() throws IOException {
+        File source = directory.resolve("sparse.bin").toFile();
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            file.setLength(3L * Integer.MAX_VALUE);
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> streamA.sendFile("B", source, 4, 1));
+    }
+
+    @Test
+    @DisplayName("should fail and delete an incoming file which gets no data in time")
+    void inactivityTimeout() throws IOException {
+        File source = createFile(1024 * 1024);
+        File destination = directory.resolve("destination.bin").toFile();
+        AtomicReference<FileTransfer> incoming = new AtomicReference<>();
+        relay.dropEvents((event, args) -> event.equals(SocketEvent.P2P_FILE_SEGMENT)); // as if the sender was gone
+
+        streamB.onReceiveFile(transfer -> {
+            incoming.set(transfer);
+            return destination;
+        }, 200, TimeUnit.MILLISECONDS);
+        streamA.sendFile("B", source);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> incoming.get() != null);
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> incoming.get().getCompletion().get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof P2pStreamException);
+        assertFalse(destination.exists());
+    }
+}
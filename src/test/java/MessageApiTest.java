@@ -128,6 +128,29 @@ class MessageApiTest {
             assertEquals(123, result1.join());
             assertEquals(456, result2.join());
         }
+
+        @Test
+        @DisplayName("async variant - should add targets concurrently")
+        void addTargetsConcurrently() {
+            AtomicInteger count = new AtomicInteger();
+
+            client4.onAddP2pTarget((targetClientId) -> count.getAndIncrement());
+
+            java9.util.concurrent.CompletableFuture.allOf(
+                    client1.addP2pTargetAsync(client4.getClientId()),
+                    client2.addP2pTargetAsync(client4.getClientId()),
+                    client3.addP2pTargetAsync(client4.getClientId())).join();
+
+            assertEquals(3, count.get());
+        }
+
+        @Test
+        @DisplayName("async variant - should fail with TargetClientException if target is not registered to server")
+        void asyncFailsIfSocketNotFound() {
+            Throwable e = assertThrows(java9.util.concurrent.CompletionException.class,
+                    () -> client1.addP2pTargetAsync("invalidId").join());
+            assertEquals(TargetClientException.class, e.getCause().getClass());
+        }
     }
 
     @Nested
@@ -223,11 +246,11 @@ class MessageApiTest {
             client4.onAny(event, mockListener2);
             client4.onceAny(event, mockListener3);
             client4.onceAny(event, mockListener4);
-            assertEquals(4, client4.listeners(event).size());
+            assertEquals(1, client4.listeners(event).size());
 
             client4.offAny(event, mockListener1);
             client4.offAny(event, mockListener3);
-            assertEquals(2, client4.listeners(event).size());
+            assertEquals(1, client4.listeners(event).size());
 
             client1.emitTo(client4.getClientId(), event);
             Thread.sleep(500);
@@ -306,6 +329,28 @@ class MessageApiTest {
             client2.emitTo(client4.getClientId(), event2, data2);
             Awaitility.await().until(() -> count.get() == 3);
         }
+
+        @Test
+        @DisplayName("should share a single socket listener per event between all targets")
+        void shareSingleSocketListener() {
+            String event = "sharedEvent";
+            AtomicInteger count1 = new AtomicInteger();
+            AtomicInteger count2 = new AtomicInteger();
+            AtomicInteger countAny = new AtomicInteger();
+
+            client4.from(client1.getClientId()).on(event, (args) -> count1.getAndAdd((int) args[0]));
+            client4.from(client2.getClientId()).on(event, (args) -> count2.getAndAdd((int) args[0]));
+            client4.onAny(event, (args) -> countAny.getAndAdd((int) args[0]));
+            assertEquals(1, client4.listeners(event).size());
+
+            client1.emitTo(client4.getClientId(), event, 1);
+            client2.emitTo(client4.getClientId(), event, 10);
+            client3.emitTo(client4.getClientId(), event, 100);
+
+            Awaitility.await().until(() -> countAny.get() == 111);
+            assertEquals(1, count1.get());
+            assertEquals(10, count2.get());
+        }
     }
 
     @Nested
@@ -324,7 +369,7 @@ class MessageApiTest {
             client1.from(client3.getClientId()).on(event2, (args) -> {
             });
 
-            assertEquals(2, client1.listeners(event1).size());
+            assertEquals(1, client1.listeners(event1).size());
             assertEquals(1, client1.listeners(event2).size());
 
             client1.from(client2.getClientId()).off(event1);
@@ -355,7 +400,7 @@ class MessageApiTest {
             client1.from(client3.getClientId()).on(event1, listener2);
             client1.from(client3.getClientId()).on(event2, listener3);
 
-            assertEquals(2, client1.listeners(event1).size());
+            assertEquals(1, client1.listeners(event1).size());
             assertEquals(1, client1.listeners(event2).size());
 
             client1.from(client2.getClientId()).off(event1, listener1);
@@ -476,17 +521,17 @@ class MessageApiTest {
             client2.addP2pTarget(client3.getClientId());
             client2.addP2pTarget(client4.getClientId());
 
-            assertEquals(6, client3.listeners(event1).size());
-            assertEquals(2, client3.listeners(event2).size());
-            assertEquals(2, client3.listeners(event3).size());
+            assertEquals(1, client3.listeners(event1).size());
+            assertEquals(1, client3.listeners(event2).size());
+            assertEquals(1, client3.listeners(event3).size());
 
-            assertEquals(2, client4.listeners(event1).size());
-            assertEquals(2, client4.listeners(event2).size());
+            assertEquals(1, client4.listeners(event1).size());
+            assertEquals(1, client4.listeners(event2).size());
             client1.disconnect();
 
             Thread.sleep(200);
 
-            assertEquals(3, client3.listeners(event1).size());
+            assertEquals(1, client3.listeners(event1).size());
             assertEquals(1, client3.listeners(event2).size());
             assertEquals(1, client3.listeners(event3).size());
 
@@ -0,0 +1,120 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.socket.client.Ack;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Message API multicast emit test")
+class MulticastEmitTest {
+    private StandInSocket socket;
+    private Message messageApi;
+    private List<String> targets = Arrays.asList("B", "C", "D");
+
+    @BeforeEach
+    void init() {
+        socket = new StandInSocket();
+        messageApi = new Message(socket, "A");
+    }
+
+    @Test
+    @DisplayName("should share the encoded args between per-target envelopes")
+    void shareEncodedArgs() throws JSONException {
+        messageApi.emitToMany(targets, "update", "payload", 42);
+
+        List<Object[]> emitted = socket.emitted(SocketEvent.P2P_EMIT);
+        assertEquals(3, emitted.size());
+
+        Object sharedArgs = ((JSONObject) emitted.get(0)[1]).get(EnvelopeEncoder.ARGS);
+        for (int i = 0; i < targets.size(); i++) {
+            JSONObject envelope = (JSONObject) emitted.get(i)[1];
+            assertEquals(targets.get(i), envelope.get(EnvelopeEncoder.TARGET_CLIENT_ID));
+            assertEquals("update", envelope.get(EnvelopeEncoder.EVENT));
+            assertSame(sharedArgs, envelope.get(EnvelopeEncoder.ARGS));
+        }
+    }
+
+    @Test
+    @DisplayName("should send a single multi-target frame when enabled")
+    void multiTargetFrame() throws JSONException {
+        messageApi.setMultiEmitEnabled(true);
+        messageApi.emitToMany(targets, "update", "payload");
+
+        assertEquals(0, socket.emitted(SocketEvent.P2P_EMIT).size());
+        assertEquals(1, socket.emitted(SocketEvent.P2P_EMIT_MULTI).size());
+
+        JSONObject envelope = (JSONObject) socket.emitted(SocketEvent.P2P_EMIT_MULTI).get(0)[1];
+        assertEquals(3, envelope.getJSONArray(EnvelopeEncoder.TARGET_CLIENT_IDS).length());
+        assertEquals("A", envelope.getJSONArray(EnvelopeEncoder.ARGS).get(0));
+    }
+
+    @Test
+    @DisplayName("should call a trailing Ack once per target")
+    void ackPerTarget() {
+        AtomicInteger count = new AtomicInteger();
+        socket.handle(SocketEvent.P2P_EMIT_ACKNOWLEDGE, args -> ((Ack) args[1]).call());
+
+        messageApi.setMultiEmitEnabled(true); // ack case always uses per-target envelopes
+        messageApi.emitToMany(targets, "update", "payload", (Ack) args -> count.getAndIncrement());
+
+        assertEquals(3, count.get());
+        assertEquals(3, socket.emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE).size());
+    }
+
+    @Test
+    @DisplayName("should send once to a target listed twice, with and without an ack")
+    void duplicateTargets() throws JSONException {
+        List<String> withDuplicates = Arrays.asList("B", "C", "B");
+        AtomicInteger count = new AtomicInteger();
+        socket.handle(SocketEvent.P2P_EMIT_ACKNOWLEDGE, args -> ((Ack) args[1]).call());
+
+        messageApi.emitToMany(withDuplicates, "update", "payload");
+        messageApi.emitToMany(withDuplicates, "update", "payload", (Ack) args -> count.getAndIncrement());
+        messageApi.setMultiEmitEnabled(true);
+        messageApi.emitToMany(withDuplicates, "update", "payload");
+
+        assertEquals(2, socket.emitted(SocketEvent.P2P_EMIT).size());
+        assertEquals(2, count.get());
+        JSONObject envelope = (JSONObject) socket.emitted(SocketEvent.P2P_EMIT_MULTI).get(0)[1];
+        assertEquals(2, envelope.getJSONArray(EnvelopeEncoder.TARGET_CLIENT_IDS).length());
+        assertEquals(2, messageApi.emitToManyWithAck(withDuplicates, "update", "payload").join().size());
+    }
+
+    @Test
+    @DisplayName("should aggregate acks of every target")
+    void aggregateAcks() {
+        socket.handle(SocketEvent.P2P_EMIT_ACKNOWLEDGE, args -> {
+            try {
+                ((Ack) args[1]).call("ok from " + ((JSONObject) args[0]).get(EnvelopeEncoder.TARGET_CLIENT_ID));
+            } catch (JSONException e) {
+                fail(e);
+            }
+        });
+
+        Map<String, Object[]> acks = messageApi.emitToManyWithAck(targets, "update", "payload").join();
+
+        assertEquals(3, acks.size());
+        assertEquals("ok from C", acks.get("C")[0]);
+    }
+
+    @Test
+    @DisplayName("should time out if a target never acks")
+    void aggregateTimeout() {
+        socket.handle(SocketEvent.P2P_EMIT_ACKNOWLEDGE, args -> {});
+        messageApi.setAckTimeout(100, TimeUnit.MILLISECONDS);
+
+        Throwable e = assertThrows(java9.util.concurrent.CompletionException.class,
+                () -> messageApi.emitToManyWithAck(targets, "update", "payload").join());
+        assertEquals(TimeoutException.class, e.getCause().getClass());
+    }
+}
@@ -0,0 +1,247 @@
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.Lane;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.OverflowPolicy;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.Policy;
+import io.gigasource.p2p_client.exception.OutboundQueueFullException;
+import io.socket.client.Ack;
+import io.socket.client.Socket;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("OutboundScheduler test")
+class OutboundSchedulerTest {
+    private StandInSocket socket;
+    private OutboundScheduler scheduler;
+    private List<Ack> pendingAcks;
+
+    @BeforeEach
+    void init() {
+        socket = new StandInSocket();
+        scheduler = new OutboundScheduler(socket);
+        pendingAcks = new ArrayList<>();
+
+        // the stand-in server holds acks until the test releases them
+        socket.handle("chunk", args -> pendingAcks.add((Ack) args[args.length - 1]));
+    }
+
+    private void releaseAcks(int count) {
+        for (int i = 0; i < count; i++) pendingAcks.remove(0).call();
+    }
+
+    @Test
+    @DisplayName("should hold bulk frames beyond the in-flight limit and report queue depth")
+    void boundBulkInFlight() {
+        scheduler.setMaxInFlight(Lane.BULK, 4);
+        for (int i = 0; i < 10; i++) scheduler.emit(Lane.BULK, "chunk", i, (Ack) args -> {});
+
+        assertEquals(4, socket.emitted("chunk").size());
+        assertEquals(4, scheduler.getInFlight(Lane.BULK));
+        assertEquals(6, scheduler.getQueueDepth(Lane.BULK));
+
+        releaseAcks(3);
+        assertEquals(7, socket.emitted("chunk").size());
+        assertEquals(3, scheduler.getQueueDepth(Lane.BULK));
+    }
+
+    @Test
+    @DisplayName("should free the slot of a frame whose ack does not arrive in time")
+    void ackTimeout() {
+        AtomicInteger acked = new AtomicInteger();
+        scheduler.setAckTimeout(100, TimeUnit.MILLISECONDS);
+        scheduler.setMaxInFlight(Lane.BULK, 2);
+        for (int i = 0; i < 4; i++) scheduler.emit(Lane.BULK, "chunk", i, (Ack) args -> acked.getAndIncrement());
+        assertEquals(2, socket.emitted("chunk").size());
+
+        Awaitility.await().atMost(2, TimeUnit.SECONDS).until(() -> socket.emitted("chunk").size() == 4);
+        Awaitility.await().atMost(2, TimeUnit.SECONDS).until(() -> scheduler.getInFlight(Lane.BULK) == 0);
+        assertEquals(0, scheduler.getPendingFrames());
+
+        // late acks still reach the sender, without freeing the slots twice
+        releaseAcks(4);
+        assertEquals(4, acked.get());
+        assertEquals(0, scheduler.getInFlight(Lane.BULK));
+        assertEquals(0, scheduler.getPendingFrames());
+    }
+
+    @Test
+    @DisplayName("should drop the queued frames and free the slots of a cancelled owner")
+    void cancelOwner() {
+        Object owner = new Object();
+        scheduler.setMaxInFlight(Lane.BULK, 2);
+        for (int i = 0; i < 4; i++) scheduler.emit(Lane.BULK, "chunk", i, OutboundScheduler.ownedBy(owner, args -> {}));
+        scheduler.emit(Lane.BULK, "chunk", 4, (Ack) args -> {});
+
+        scheduler.cancel(owner);
+
+        assertEquals(3, socket.emitted("chunk").size());
+        assertEquals(4, socket.emitted("chunk").get(2)[1]);
+        assertEquals(1, scheduler.getInFlight(Lane.BULK));
+        assertEquals(1, scheduler.getPendingFrames());
+    }
+
+    @Test
+    @DisplayName("should limit the frames in flight of each owner on its own and let owners take turns")
+    void perOwnerInFlight() {
+        Object stalled = new Object();
+        Object other = new Object();
+        scheduler.setMaxInFlight(Lane.BULK, 2);
+
+        // queue everything while a frame is being sent, so the scheduler has to choose between owners
+        socket.handle("start", args -> {
+            for (int i = 0; i < 3; i++) scheduler.emit(Lane.BULK, "chunk", "stalled", OutboundScheduler.ownedBy(stalled, ack -> {}));
+            for (int i = 0; i < 3; i++) scheduler.emit(Lane.BULK, "chunk", "other", OutboundScheduler.ownedBy(other, ack -> {}));
+        });
+        scheduler.emit(Lane.BULK, "start");
+        scheduler.emit(Lane.BULK, "chunk", "unowned", (Ack) args -> {});
+
+        assertEquals("[stalled, other, stalled, other, unowned]", sentChunks().toString());
+        assertEquals(2, scheduler.getQueueDepth(Lane.BULK));
+
+        // the stalled owner's acks never come, the other one's frames don't wait for them
+        pendingAcks.remove(3).call();
+        pendingAcks.remove(1).call();
+        assertEquals("[stalled, other, stalled, other, unowned, other]", sentChunks().toString());
+        assertEquals(1, scheduler.getQueueDepth(Lane.BULK));
+        assertEquals(4, scheduler.getInFlight(Lane.BULK));
+    }
+
+    private List<Object> sentChunks() {
+        List<Object> sent = new ArrayList<>();
+        for (Object[] packet : socket.emitted("chunk")) sent.add(packet[1]);
+        return sent;
+    }
+
+    @Test
+    @DisplayName("control frames should not wait behind queued bulk frames")
+    void controlBypassesBulk() {
+        scheduler.setMaxInFlight(Lane.BULK, 2);
+        for (int i = 0; i < 10; i++) scheduler.emit(Lane.BULK, "chunk", i, (Ack) args -> {});
+
+        scheduler.emit(Lane.CONTROL, "control", "ping");
+
+        assertEquals(1, socket.emitted("control").size());
+        assertEquals(0, scheduler.getQueueDepth(Lane.CONTROL));
+        assertEquals(8, scheduler.getQueueDepth(Lane.BULK));
+    }
+
+    @Test
+    @DisplayName("weighted policy should interleave lanes by weight")
+    void weightedPolicy() {
+        List<String> order = new ArrayList<>();
+        socket.handle("control", args -> order.add("control"));
+        socket.handle("bulk", args -> order.add("bulk"));
+
+        scheduler.setPolicy(Policy.WEIGHTED);
+        scheduler.setWeight(Lane.CONTROL, 2);
+        scheduler.setWeight(Lane.BULK, 1);
+
+        // queue everything while a frame is being sent, so the scheduler has to choose between lanes
+        socket.handle("start", args -> {
+            for (int i = 0; i < 4; i++) scheduler.emit(Lane.BULK, "bulk");
+            for (int i = 0; i < 4; i++) scheduler.emit(Lane.CONTROL, "control");
+        });
+        scheduler.emit(Lane.CONTROL, "start");
+
+        assertEquals("[control, bulk, control, control, bulk, control, bulk, bulk]", order.toString());
+    }
+
+    @Test
+    @DisplayName("should forget in-flight frames on disconnect")
+    void resetOnDisconnect() {
+        scheduler.setMaxInFlight(Lane.BULK, 1);
+        scheduler.emit(Lane.BULK, "chunk", 1, (Ack) args -> {});
+        scheduler.emit(Lane.BULK, "chunk", 2, (Ack) args -> {});
+        assertEquals(1, scheduler.getQueueDepth(Lane.BULK));
+
+        socket.receive(Socket.EVENT_DISCONNECT);
+
+        assertEquals(2, socket.emitted("chunk").size());
+        assertEquals(1, scheduler.getInFlight(Lane.BULK));
+    }
+
+    @Test
+    @DisplayName("should hold frames while disconnected and signal drain below the low watermark")
+    void watermarks() {
+        AtomicInteger drained = new AtomicInteger();
+        scheduler.setWatermarks(2, 5);
+        scheduler.setOverflowPolicy(OverflowPolicy.FAIL_FAST);
+        scheduler.onDrain(v -> drained.getAndIncrement());
+
+        socket.setConnected(false);
+        for (int i = 0; i < 5; i++) scheduler.emit(Lane.CONTROL, "control", i);
+
+        assertFalse(scheduler.isWritable());
+        assertEquals(5, scheduler.getPendingFrames());
+        assertEquals(0, socket.emitted("control").size());
+        assertThrows(OutboundQueueFullException.class, () -> scheduler.emit(Lane.CONTROL, "control", 5));
+
+        socket.setConnected(true);
+
+        assertTrue(scheduler.isWritable());
+        assertEquals(1, drained.get());
+        assertEquals(5, socket.emitted("control").size());
+    }
+
+    @Test
+    @DisplayName("drop oldest policy should drop the oldest frame without ack")
+    void dropOldest() {
+        scheduler.setWatermarks(1, 3);
+        scheduler.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+
+        socket.setConnected(false);
+        AtomicInteger left = new AtomicInteger();
+        scheduler.emit(Lane.BULK, "chunk", 0, (Ack) args -> {});
+        scheduler.emit(Lane.CONTROL, left::getAndIncrement, "control", 1);
+        scheduler.emit(Lane.CONTROL, "control", 2);
+        scheduler.emit(Lane.CONTROL, "control", 3);
+        assertEquals(3, scheduler.getPendingFrames());
+        assertEquals(1, left.get()); // the dropped frame's callback ran
+
+        socket.setConnected(true);
+
+        assertEquals(1, socket.emitted("chunk").size());
+        assertEquals(2, socket.emitted("control").get(0)[1]);
+        assertEquals(3, socket.emitted("control").get(1)[1]);
+    }
+
+    @Test
+    @DisplayName("block policy should make producers wait until the queue drains")
+    void block() throws InterruptedException {
+        scheduler.setWatermarks(0, 2);
+        socket.setConnected(false);
+        scheduler.emit(Lane.CONTROL, "control", 0);
+        scheduler.emit(Lane.CONTROL, "control", 1);
+
+        Thread producer = new Thread(() -> scheduler.emit(Lane.CONTROL, "control", 2));
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        socket.setConnected(true);
+        producer.join(1000);
+
+        assertFalse(producer.isAlive());
+        assertEquals(3, socket.emitted("control").size());
+    }
+
+    @Test
+    @DisplayName("block policy should give up once the block timeout is over")
+    void blockTimeout() {
+        scheduler.setWatermarks(0, 1);
+        scheduler.setBlockTimeout(100, TimeUnit.MILLISECONDS);
+        socket.setConnected(false);
+        scheduler.emit(Lane.CONTROL, "control", 0);
+
+        long start = System.nanoTime();
+        assertThrows(OutboundQueueFullException.class, () -> scheduler.emit(Lane.CONTROL, "control", 1));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, scheduler.getPendingFrames());
+    }
+}
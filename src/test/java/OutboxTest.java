@@ -0,0 +1,184 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.api.object.message.Outbox;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.OutboundQueueFullException;
+import io.socket.client.Ack;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Message API outbox test")
+class OutboxTest {
+    private StandInSocket socket;
+    private Message messageApi;
+    private File file;
+    private List<Ack> pendingAcks;
+
+    @BeforeEach
+    void init(@TempDir Path dir) {
+        socket = new StandInSocket();
+        messageApi = new Message(socket, "A");
+        file = dir.resolve("outbox").toFile();
+        pendingAcks = new ArrayList<>();
+
+        // the stand-in server holds acks until the test releases them
+        socket.handle(SocketEvent.P2P_EMIT_ACKNOWLEDGE, args -> pendingAcks.add((Ack) args[1]));
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        messageApi.disableOutbox();
+    }
+
+    private static Object firstArg(Object[] packet) throws JSONException {
+        return ((JSONObject) packet[1]).getJSONArray(EnvelopeEncoder.ARGS).get(1);
+    }
+
+    @Test
+    @DisplayName("should resend unacked messages in order after a reconnect and call each ack once")
+    void resendAfterReconnect() throws IOException, JSONException {
+        AtomicInteger ackCount = new AtomicInteger();
+        messageApi.enableOutbox(file, 64 * 1024);
+
+        for (int i = 0; i < 3; i++) messageApi.emitTo("B", "update", i, (Ack) args -> ackCount.getAndIncrement());
+        pendingAcks.remove(0).call(); // message 0 is delivered, 1 and 2 lose their ack
+
+        socket.setConnected(false);
+        messageApi.emitTo("B", "update", 3, (Ack) args -> ackCount.getAndIncrement());
+        assertEquals(3, socket.emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE).size());
+
+        pendingAcks.clear();
+        socket.setConnected(true);
+
+        List<Object[]> emitted = socket.emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE);
+        assertEquals(6, emitted.size());
+        for (int i = 0; i < 3; i++) assertEquals(i + 1, firstArg(emitted.get(3 + i)));
+
+        for (Ack ack : new ArrayList<>(pendingAcks)) ack.call();
+        assertEquals(4, ackCount.get());
+        assertEquals(0, messageApi.getOutbox().size());
+    }
+
+    @Test
+    @DisplayName("should send messages left in the journal by a previous run")
+    void replayAfterRestart() throws IOException, JSONException {
+        messageApi.enableOutbox(file, 64 * 1024);
+        socket.setConnected(false);
+        messageApi.emitTo("B", "update", "first");
+        messageApi.emitTo("B", "update", "second", (Ack) args -> {});
+        messageApi.disableOutbox();
+
+        StandInSocket restartedSocket = new StandInSocket();
+        Message restarted = new Message(restartedSocket, "A");
+        restarted.enableOutbox(file, 64 * 1024);
+
+        assertEquals("first", firstArg(restartedSocket.emitted(SocketEvent.P2P_EMIT).get(0)));
+        assertEquals("second", firstArg(restartedSocket.emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE).get(0)));
+        assertEquals(1, restarted.getOutbox().size()); // the ack of "second" hasn't arrived yet
+        restarted.disableOutbox();
+    }
+
+    @Test
+    @DisplayName("should reuse the space of acked messages and refuse messages beyond its capacity")
+    void boundDiskUsage() throws IOException {
+        Outbox outbox = new Outbox(file, 1024);
+        byte[] payload = new byte[100];
+        List<Long> ids = new ArrayList<>();
+
+        try {
+            assertThrows(OutboundQueueFullException.class, () -> {
+                while (true) ids.add(outbox.append("B", "update", new Object[]{payload}, 1, true));
+            });
+            assertTrue(ids.size() > 1);
+
+            outbox.acknowledge(ids.get(1)); // a hole in the middle is reclaimed by compaction
+            long id = outbox.append("B", "update", new Object[]{payload}, 1, true);
+            assertEquals(ids.size(), outbox.size());
+
+            for (long ackedId : ids) outbox.acknowledge(ackedId);
+            assertEquals(1, outbox.pendingEntries().size());
+            assertEquals(id, outbox.pendingEntries().get(0).getId());
+            assertEquals(file.length(), outbox.capacity());
+        } finally {
+            outbox.close();
+        }
+    }
+
+    @Test
+    @DisplayName("should keep the journal whole when a compaction did not finish")
+    void interruptedCompaction() throws IOException {
+        Outbox outbox = new Outbox(file, 1024);
+        byte[] payload = new byte[100];
+        List<Long> ids = new ArrayList<>();
+        try {
+            for (int i = 0; i < 6; i++) ids.add(outbox.append("B", "update", new Object[]{payload, i}, 2, true));
+            outbox.acknowledge(ids.get(0));
+            outbox.acknowledge(ids.get(2));
+        } finally {
+            outbox.close();
+        }
+
+        // what a crash in the middle of writing the compacted copy leaves behind
+        File partialCopy = new File(file.getPath() + ".compact");
+        Files.write(partialCopy.toPath(), new byte[300]);
+
+        Outbox recovered = new Outbox(file, 1024);
+        try {
+            assertEquals(4, recovered.size());
+            // fills the journal, so the live records are compacted into a new file
+            while (recovered.size() < 7) recovered.append("B", "update", new Object[]{payload, recovered.size()}, 2, true);
+            assertFalse(partialCopy.exists());
+
+            List<Outbox.Entry> entries = recovered.pendingEntries();
+            assertEquals(ids.get(1), entries.get(0).getId());
+            assertEquals(3, entries.get(1).getArgs()[1]);
+            assertEquals(7, entries.size());
+        } finally {
+            recovered.close();
+        }
+
+        Outbox reopened = new Outbox(file, 1024);
+        try {
+            assertEquals(7, reopened.size());
+            assertEquals(ids.get(1), reopened.pendingEntries().get(0).getId());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    @DisplayName("should keep journaling within the same order of magnitude as plain sends")
+    void throughputCost() throws IOException {
+        socket.handle(SocketEvent.P2P_EMIT_ACKNOWLEDGE, args -> ((Ack) args[1]).call());
+        int messages = 20000;
+
+        // both measured after a warm-up of their own, so neither pays for the other's JIT compilation
+        measure(messages);
+        double plain = measure(messages);
+        messageApi.enableOutbox(file, 4 * 1024 * 1024);
+        measure(messages);
+        double journaled = measure(messages);
+
+        System.out.printf("emitTo with ack: %.0f msg/s plain, %.0f msg/s journaled%n", plain, journaled);
+        assertEquals(0, messageApi.getOutbox().size());
+        assertTrue(journaled > plain / 10, "journaling costs more than 10x: " + journaled + " vs " + plain + " msg/s");
+    }
+
+    private double measure(int messages) {
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) messageApi.emitTo("B", "update", "payload", i, (Ack) args -> {});
+        return messages / ((System.nanoTime() - start) / 1e9);
+    }
+}
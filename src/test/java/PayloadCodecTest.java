@@ -0,0 +1,164 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.message.BinaryPayloadCodec;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.api.object.message.PayloadCodec;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.socket.client.Ack;
+import org.awaitility.Awaitility;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Message API payload codec test")
+class PayloadCodecTest {
+    private StandInRelay relay;
+    private StandInSocket socketA, socketB;
+    private Message messageA, messageB;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        socketA = relay.connect("A");
+        socketB = relay.connect("B");
+        messageA = new Message(socketA, "A");
+        messageB = new Message(socketB, "B");
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    @Test
+    @DisplayName("binary codec should round trip the JSON argument types")
+    void roundTrip() throws IOException, JSONException {
+        PayloadCodec codec = new BinaryPayloadCodec();
+        JSONObject nested = new JSONObject().put("name", "device").put("ports", new JSONArray(Arrays.asList(80, 443)));
+        byte[] binary = new byte[70000];
+        Arrays.fill(binary, (byte) 7);
+        Object[] args = {"h\u00e9llo", 1, -1, 300, -70000, 1L << 40, 3.14, true, null, binary, nested, Collections.singletonList("x")};
+
+        Object[] decoded = codec.decode(codec.encode(args, args.length));
+
+        assertEquals(args.length, decoded.length);
+        assertEquals("h\u00e9llo", decoded[0]);
+        assertEquals(1, decoded[1]);
+        assertEquals(-1, decoded[2]);
+        assertEquals(300, decoded[3]);
+        assertEquals(-70000, decoded[4]);
+        assertEquals(1L << 40, decoded[5]);
+        assertEquals(3.14, decoded[6]);
+        assertEquals(true, decoded[7]);
+        assertEquals(JSONObject.NULL, decoded[8]);
+        assertArrayEquals(binary, (byte[]) decoded[9]);
+        assertEquals("device", ((JSONObject) decoded[10]).get("name"));
+        assertEquals(443, ((JSONObject) decoded[10]).getJSONArray("ports").get(1));
+        assertEquals("x", ((JSONArray) decoded[11]).get(0));
+    }
+
+    @Test
+    @DisplayName("binary codec should reject truncated payloads")
+    void rejectTruncated() throws IOException {
+        PayloadCodec codec = new BinaryPayloadCodec();
+        byte[] encoded = codec.encode(new Object[]{"some text"}, 1);
+
+        assertThrows(IOException.class, () -> codec.decode(Arrays.copyOf(encoded, encoded.length - 2)));
+    }
+
+    @Test
+    @DisplayName("binary codec should reject lengths beyond the payload before allocating them")
+    void rejectOversizedLengths() {
+        PayloadCodec codec = new BinaryPayloadCodec();
+        byte[] hugeArray = {(byte) 0xdd, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+        byte[] hugeBinary = {(byte) 0x91, (byte) 0xc6, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1};
+        byte[] negativeString = {(byte) 0x91, (byte) 0xdb, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+        byte[] hugeMap = {(byte) 0x91, (byte) 0xdf, 0x00, 0x00, 0x00, 0x02, (byte) 0xa1, 'k', 1};
+
+        assertThrows(IOException.class, () -> codec.decode(hugeArray));
+        assertThrows(IOException.class, () -> codec.decode(hugeBinary));
+        assertThrows(IOException.class, () -> codec.decode(negativeString));
+        assertThrows(IOException.class, () -> codec.decode(hugeMap));
+    }
+
+    @Test
+    @DisplayName("binary codec should reject payloads nested deeper than its limit")
+    void rejectDeepNesting() throws IOException {
+        PayloadCodec codec = new BinaryPayloadCodec();
+
+        assertEquals(1, codec.decode(nestedArrays(BinaryPayloadCodec.MAX_DEPTH)).length);
+        assertThrows(IOException.class, () -> codec.decode(nestedArrays(BinaryPayloadCodec.MAX_DEPTH + 1)));
+        // would overflow the stack without the limit
+        assertThrows(IOException.class, () -> codec.decode(nestedArrays(100000)));
+    }
+
+    // levels one-element arrays in each other, the payload's own array included, around the integer 1
+    private static byte[] nestedArrays(int levels) {
+        byte[] payload = new byte[levels + 1];
+        Arrays.fill(payload, (byte) 0x91);
+        payload[levels] = 1;
+        return payload;
+    }
+
+    @Test
+    @DisplayName("should send args as one binary attachment after negotiation, with acks")
+    void negotiatedEmit() throws JSONException {
+        AtomicReference<Object[]> received = new AtomicReference<>();
+        AtomicReference<Object> ackResult = new AtomicReference<>();
+
+        messageB.from("A").on("data", args -> {
+            received.set(args);
+            ((Ack) args[args.length - 1]).call("done");
+        });
+
+        assertEquals(BinaryPayloadCodec.NAME, messageA.negotiatePayloadCodec("B").join());
+        assertEquals(BinaryPayloadCodec.NAME, messageB.getPayloadCodec("A"));
+
+        messageA.emitTo("B", "data", "text", 42, (Ack) args -> ackResult.set(args[0]));
+        Awaitility.await().until(() -> ackResult.get() != null);
+
+        assertEquals("text", received.get()[0]);
+        assertEquals(42, received.get()[1]);
+        assertEquals("done", ackResult.get());
+
+        JSONObject envelope = (JSONObject) socketA.emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE).get(1)[1];
+        assertEquals(SocketEvent.P2P_CODEC_EMIT, envelope.getString(EnvelopeEncoder.EVENT));
+        JSONArray wireArgs = envelope.getJSONArray(EnvelopeEncoder.ARGS);
+        assertEquals(4, wireArgs.length());
+        assertEquals("data", wireArgs.get(1));
+        assertEquals(BinaryPayloadCodec.NAME, wireArgs.get(2));
+        assertEquals(byte[].class, wireArgs.get(3).getClass());
+    }
+
+    @Test
+    @DisplayName("should pass on user args which look like an encoded payload")
+    void plainArgsNotDecoded() {
+        AtomicReference<Object[]> received = new AtomicReference<>();
+        messageB.from("A").on("data", received::set);
+        byte[] binary = {1, 2, 3};
+
+        messageA.emitTo("B", "data", "\u0000p2p-codec:" + BinaryPayloadCodec.NAME, binary);
+        Awaitility.await().until(() -> received.get() != null);
+
+        assertEquals("\u0000p2p-codec:" + BinaryPayloadCodec.NAME, received.get()[0]);
+        assertArrayEquals(binary, (byte[]) received.get()[1]);
+    }
+
+    @Test
+    @DisplayName("should keep JSON for peers which don't negotiate")
+    void fallBackToJson() {
+        socketB.off(SocketEvent.P2P_NEGOTIATE_CODEC); // behaves like a peer without codec support
+        messageA.setAckTimeout(100, TimeUnit.MILLISECONDS);
+
+        assertEquals(PayloadCodec.JSON, messageA.negotiatePayloadCodec("B").join());
+        assertEquals(PayloadCodec.JSON, messageA.getPayloadCodec("B"));
+    }
+}
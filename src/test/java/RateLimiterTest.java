@@ -0,0 +1,146 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Service;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.OverflowPolicy;
+import io.gigasource.p2p_client.api.object.message.RateLimiter;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.OutboundQueueFullException;
+import org.awaitility.Awaitility;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Message API rate limiting test")
+class RateLimiterTest {
+    private StandInSocket socket;
+    private Message messageApi;
+
+    @BeforeEach
+    void init() {
+        socket = new StandInSocket();
+        messageApi = new Message(socket, "A");
+    }
+
+    private long emittedTo(String targetClientId) throws JSONException {
+        long count = 0;
+        for (Object[] packet : socket.emitted(SocketEvent.P2P_EMIT)) {
+            if (((JSONObject) packet[1]).get(EnvelopeEncoder.TARGET_CLIENT_ID).equals(targetClientId)) count++;
+        }
+        return count;
+    }
+
+    @Test
+    @DisplayName("should delay messages over the per-target limit and keep their order")
+    void perTargetLimit() throws JSONException {
+        messageApi.getRateLimiter().setTargetLimit("B", 10, RateLimiter.UNLIMITED);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 15; i++) messageApi.emitTo("B", "event", i);
+        for (int i = 0; i < 15; i++) messageApi.emitTo("C", "event", i);
+
+        assertEquals(10, emittedTo("B"));
+        assertEquals(15, emittedTo("C"));
+        assertEquals(5, messageApi.getRateLimiter().getQueuedMessages("B"));
+
+        Awaitility.await().atMost(Duration.ofSeconds(2)).until(() -> emittedTo("B") == 15);
+        assertTrue(System.nanoTime() - start >= 400_000_000L);
+
+        List<Object[]> emitted = socket.emitted(SocketEvent.P2P_EMIT);
+        int expected = 0;
+        for (Object[] packet : emitted) {
+            JSONObject envelope = (JSONObject) packet[1];
+            if (envelope.get(EnvelopeEncoder.TARGET_CLIENT_ID).equals("B")) {
+                assertEquals(expected++, envelope.getJSONArray(EnvelopeEncoder.ARGS).get(1));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("should apply the global byte limit to every target")
+    void globalByteLimit() throws JSONException {
+        messageApi.getRateLimiter().setGlobalLimit(RateLimiter.UNLIMITED, 4096);
+
+        messageApi.emitTo("B", "event", new byte[3000]);
+        messageApi.emitTo("C", "event", new byte[3000]);
+
+        assertEquals(1, emittedTo("B"));
+        assertEquals(0, emittedTo("C"));
+        Awaitility.await().atMost(Duration.ofSeconds(2)).until(() -> emittedTo("C") == 1);
+    }
+
+    @Test
+    @DisplayName("should release queued messages when a limit is removed at runtime")
+    void adjustAtRuntime() throws JSONException {
+        messageApi.getRateLimiter().setTargetLimit("B", 1, RateLimiter.UNLIMITED);
+        for (int i = 0; i < 5; i++) messageApi.emitTo("B", "event", i);
+        assertEquals(1, emittedTo("B"));
+
+        messageApi.getRateLimiter().removeTargetLimit("B");
+        for (int i = 5; i < 10; i++) messageApi.emitTo("B", "event", i);
+
+        Awaitility.await().atMost(Duration.ofMillis(500)).until(() -> emittedTo("B") == 10);
+        Awaitility.await().atMost(Duration.ofMillis(500)).until(() -> !messageApi.getRateLimiter().isEnabled());
+
+        // the queued messages went out first, new ones didn't overtake them
+        int expected = 0;
+        for (Object[] packet : socket.emitted(SocketEvent.P2P_EMIT)) {
+            assertEquals(expected++, ((JSONObject) packet[1]).getJSONArray(EnvelopeEncoder.ARGS).get(1));
+        }
+    }
+
+    @Test
+    @DisplayName("should not let new messages overtake queued ones when a limit is raised")
+    void raiseLimit() throws JSONException {
+        messageApi.getRateLimiter().setTargetLimit("B", 1, RateLimiter.UNLIMITED);
+        for (int i = 0; i < 5; i++) messageApi.emitTo("B", "event", i);
+
+        messageApi.getRateLimiter().setTargetLimit("B", 1000, RateLimiter.UNLIMITED);
+        for (int i = 5; i < 10; i++) messageApi.emitTo("B", "event", i);
+
+        Awaitility.await().atMost(Duration.ofMillis(500)).until(() -> emittedTo("B") == 10);
+        int expected = 0;
+        for (Object[] packet : socket.emitted(SocketEvent.P2P_EMIT)) {
+            assertEquals(expected++, ((JSONObject) packet[1]).getJSONArray(EnvelopeEncoder.ARGS).get(1));
+        }
+    }
+
+    @Test
+    @DisplayName("should count queued messages as pending and apply the overflow policy when they are submitted")
+    void overflowAtSubmit() throws JSONException {
+        OutboundScheduler scheduler = messageApi.getOutboundScheduler();
+        messageApi.setOutboundWatermarks(1, 4);
+        messageApi.setOverflowPolicy(OverflowPolicy.FAIL_FAST);
+        messageApi.getRateLimiter().setTargetLimit("B", 5, RateLimiter.UNLIMITED);
+
+        for (int i = 0; i < 9; i++) messageApi.emitTo("B", "event", i);
+        assertEquals(5, emittedTo("B"));
+        assertEquals(4, scheduler.getPendingFrames());
+        assertFalse(scheduler.isWritable());
+
+        // refused right away, not once the limiter sends it
+        assertThrows(OutboundQueueFullException.class, () -> messageApi.emitTo("B", "event", 9));
+        assertEquals(4, messageApi.getRateLimiter().getQueuedMessages("B"));
+
+        Awaitility.await().atMost(Duration.ofSeconds(2)).until(() -> emittedTo("B") == 9);
+        Awaitility.await().atMost(Duration.ofMillis(500)).until(() -> scheduler.getPendingFrames() == 0);
+        assertTrue(scheduler.isWritable());
+    }
+
+    @Test
+    @DisplayName("should limit emitService like any other target")
+    void serviceLimit() throws JSONException {
+        Service serviceApi = new Service(socket, messageApi);
+        serviceApi.setServiceRateLimit("logger", 2, RateLimiter.UNLIMITED);
+
+        for (int i = 0; i < 4; i++) serviceApi.emitService("logger", "log", "line " + i);
+
+        assertEquals(2, emittedTo("logger"));
+        Awaitility.await().atMost(Duration.ofSeconds(2)).until(() -> emittedTo("logger") == 4);
+    }
+}
@@ -0,0 +1,198 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import org.awaitility.Awaitility;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex reactive streams test")
+class ReactiveDuplexTest {
+    private StandInRelay relay;
+    private Duplex sender, receiver;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        Message messageA = new Message(relay.connect("A"), "A");
+        Message messageB = new Message(relay.connect("B"), "B");
+        sender = new Duplex(relay.socketOf("A"), messageA, "B", "a", "b");
+        receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    @Test
+    @DisplayName("inbound publisher should only ack what the subscriber requested")
+    void inboundDemand() {
+        byte[] input = new byte[1024 * 1024];
+        new Random(9).nextBytes(input);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicReference<Subscription> subscription = new AtomicReference<>();
+        AtomicBoolean completed = new AtomicBoolean();
+
+        receiver.toPublisher().subscribe(new Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription.set(s);
+                s.request(2);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                received.write(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.set(true);
+            }
+        });
+        sender.setInputStream(new ByteArrayInputStream(input));
+
+        // 2 chunks delivered, then the sender is stopped by its window
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).pollDelay(300, TimeUnit.MILLISECONDS)
+                .until(() -> sender.getStats().getInFlightChunks() == sender.getWindowSize());
+        assertEquals(2 * 16 * 1024, received.size());
+        assertEquals(2 * 16 * 1024, sender.getStats().getBytesAcked());
+
+        subscription.get().request(Long.MAX_VALUE);
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> received.size() == input.length);
+        assertArrayEquals(input, received.toByteArray());
+
+        sender.destroy();
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(completed::get);
+    }
+
+    private long sentChunkCount() throws JSONException {
+        long count = 0;
+        for (Object[] packet : relay.socketOf("A").emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE)) {
+            if (((JSONObject) packet[1]).getString(EnvelopeEncoder.EVENT).equals(SocketEvent.P2P_EMIT_STREAM)) count++;
+        }
+        return count;
+    }
+
+    @Test
+    @DisplayName("inbound publisher should hold at most one sender window beyond demand")
+    void inboundDemandBound() throws Exception {
+        sender.setWindowSize(4);
+        AtomicInteger delivered = new AtomicInteger();
+
+        receiver.toPublisher().subscribe(new Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                s.request(3);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer) {
+                delivered.getAndIncrement();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        sender.setInputStream(new ByteArrayInputStream(new byte[1024 * 1024]));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).pollDelay(300, TimeUnit.MILLISECONDS)
+                .until(() -> sender.getStats().getInFlightChunks() == 4);
+        Thread.sleep(300); // nothing more arrives while the subscriber doesn't request
+        assertEquals(3, delivered.get());
+        assertEquals(3 + 4, sentChunkCount());
+    }
+
+    @Test
+    @DisplayName("should reject a request of zero")
+    void rejectZeroRequest() {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        receiver.toPublisher().subscribe(new Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                s.request(0);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> error.get() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    @DisplayName("outbound subscriber should request no more than the window")
+    void outboundDemand() {
+        int bufferCount = 200;
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        receiver.addOutputStream(received);
+        AtomicLong outstanding = new AtomicLong();
+        AtomicLong maxOutstanding = new AtomicLong();
+        AtomicInteger published = new AtomicInteger();
+
+        // publishes bufferCount buffers of 20 KB, each split into two chunks by the duplex
+        Publisher<ByteBuffer> publisher = subscriber -> subscriber.onSubscribe(new Subscription() {
+            @Override
+            public synchronized void request(long n) {
+                maxOutstanding.accumulateAndGet(outstanding.addAndGet(n), Math::max);
+                while (outstanding.get() > 0 && published.get() < bufferCount) {
+                    outstanding.decrementAndGet();
+                    byte[] bytes = new byte[20 * 1024];
+                    bytes[0] = (byte) published.getAndIncrement();
+                    subscriber.onNext(ByteBuffer.wrap(bytes));
+                }
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+
+        sender.setSource(publisher);
+
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> received.size() == bufferCount * 20 * 1024);
+        assertTrue(maxOutstanding.get() <= sender.getWindowSize());
+        byte[] bytes = received.toByteArray();
+        for (int i = 0; i < bufferCount; i++) assertEquals((byte) i, bytes[i * 20 * 1024]);
+    }
+}
@@ -0,0 +1,176 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex receive pipeline test")
+class ReceivePipelineTest {
+    private StandInRelay relay;
+    private Message messageA, messageB;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        messageA = new Message(relay.connect("A"), "A");
+        messageB = new Message(relay.connect("B"), "B");
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    private Duplex[] pair(String id) {
+        return new Duplex[]{
+                new Duplex(relay.socketOf("A"), messageA, "B", "a" + id, "b" + id),
+                new Duplex(relay.socketOf("B"), messageB, "A", "b" + id, "a" + id)
+        };
+    }
+
+    @Test
+    @DisplayName("a blocked output stream should not stall other streams on the same socket")
+    void slowOutputDoesNotStallOthers() {
+        CountDownLatch unblock = new CountDownLatch(1);
+        Duplex[] slow = pair("slow");
+        slow[1].addOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+
+        Duplex[] fast = pair("fast");
+        ByteArrayOutputStream fastOutput = new ByteArrayOutputStream();
+        fast[1].addOutputStream(fastOutput);
+
+        slow[0].setInputStream(new ByteArrayInputStream(new byte[4 * 1024 * 1024]));
+        fast[0].setInputStream(new ByteArrayInputStream(new byte[1024 * 1024]));
+
+        try {
+            Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> fastOutput.size() == 1024 * 1024);
+        } finally {
+            unblock.countDown();
+        }
+    }
+
+    @Test
+    @DisplayName("should hold acks while the receive queue is over budget")
+    void backpressureOnFullQueue() throws InterruptedException {
+        CountDownLatch unblock = new CountDownLatch(1);
+        Duplex[] duplex = pair("bp");
+        duplex[1].setMaxReceiveQueueBytes(64 * 1024);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        duplex[1].addOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                output.write(b, off, len);
+            }
+        });
+
+        byte[] input = new byte[2 * 1024 * 1024];
+        new Random(3).nextBytes(input);
+        duplex[0].setInputStream(new ByteArrayInputStream(input));
+
+        Thread.sleep(500);
+        // budget + one window of chunks the sender could send before the acks stopped
+        int queued = duplex[1].getReceiveQueueBytes();
+        assertTrue(queued <= 64 * 1024 + duplex[0].getMaxInFlightBytes(), "queued " + queued);
+        assertTrue(queued > 0);
+
+        unblock.countDown();
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> output.size() == input.length);
+        assertArrayEquals(input, output.toByteArray());
+    }
+
+    @Test
+    @DisplayName("should flush once per drained batch instead of once per chunk")
+    void batchedFlush() {
+        AtomicInteger writes = new AtomicInteger();
+        AtomicInteger flushes = new AtomicInteger();
+        Duplex[] duplex = pair("flush");
+        duplex[1].setReceiveExecutor(task -> new Thread(() -> {
+            try {
+                Thread.sleep(20); // lets chunks pile up like behind a slow disk
+            } catch (InterruptedException ignored) {
+            }
+            task.run();
+        }).start());
+        duplex[1].addOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.getAndIncrement();
+            }
+
+            @Override
+            public void flush() {
+                flushes.getAndIncrement();
+            }
+        });
+
+        duplex[0].setInputStream(new ByteArrayInputStream(new byte[2 * 1024 * 1024]));
+
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> writes.get() == 128);
+        Awaitility.await().atMost(1, TimeUnit.SECONDS).until(() -> flushes.get() > 0);
+        assertTrue(flushes.get() < writes.get(), flushes.get() + " flushes for " + writes.get() + " writes");
+    }
+
+    @Test
+    @DisplayName("should write chunks queued before the peer destroyed the stream")
+    void drainOnPeerDestroy() {
+        Duplex[] duplex = pair("destroy");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        duplex[1].addOutputStream(output);
+        duplex[1].setReceiveExecutor(task -> new Thread(() -> {
+            try {
+                Thread.sleep(1000); // the worker starts only after the stream is destroyed
+            } catch (InterruptedException ignored) {
+            }
+            task.run();
+        }).start());
+        AtomicInteger destroyed = new AtomicInteger(-1);
+        duplex[1].onDestroy(v -> destroyed.set(output.size()));
+
+        ByteArrayInputStream input = new ByteArrayInputStream(new byte[100 * 1024]);
+        duplex[0].setInputStream(input);
+        // every chunk is read and acked, so it is queued at the receiver
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).pollDelay(200, TimeUnit.MILLISECONDS)
+                .until(() -> input.available() == 0 && duplex[0].getInFlightBytes() == 0);
+        assertEquals(0, output.size());
+        duplex[0].destroy();
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(duplex[1]::isDestroyed);
+        assertEquals(100 * 1024, destroyed.get());
+    }
+}
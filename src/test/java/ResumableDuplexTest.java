@@ -0,0 +1,127 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.Lane;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Resumable Duplex test")
+class ResumableDuplexTest {
+    private StandInRelay relay;
+    private Message messageA;
+    private Duplex sender, receiver;
+    private ByteArrayOutputStream received;
+    private byte[] input;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        messageA = new Message(relay.connect("A"), "A");
+        Message messageB = new Message(relay.connect("B"), "B");
+        sender = new Duplex(relay.socketOf("A"), messageA, "B", "a", "b");
+        receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+        received = new ByteArrayOutputStream();
+        receiver.addOutputStream(received);
+
+        input = new byte[4 * 1024 * 1024];
+        new Random(20).nextBytes(input);
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    private void transferAcrossBlipOf(String clientId) throws InterruptedException {
+        sender.enableResume(10, TimeUnit.SECONDS);
+        receiver.enableResume(10, TimeUnit.SECONDS);
+        sender.setInputStream(new ByteArrayInputStream(input));
+
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> receiver.getReceivedOffset() >= input.length / 4);
+        relay.drop(clientId);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> sender.isSuspended() && receiver.isSuspended());
+        long offsetWhileSuspended = receiver.getReceivedOffset();
+        Thread.sleep(200);
+        assertEquals(offsetWhileSuspended, receiver.getReceivedOffset());
+        assertTrue(sender.getStats().getInFlightChunks() <= sender.getWindowSize());
+        // the unacked chunks wait in the duplex for the resume, not in the scheduler
+        assertEquals(0, messageA.getOutboundScheduler().getQueueDepth(Lane.BULK));
+        assertEquals(0, messageA.getOutboundScheduler().getInFlight(Lane.BULK));
+
+        relay.restore(clientId);
+
+        Awaitility.await().atMost(20, TimeUnit.SECONDS).until(() -> received.size() == input.length);
+        assertArrayEquals(input, received.toByteArray());
+        assertFalse(sender.isDestroyed());
+        assertFalse(receiver.isDestroyed());
+        assertFalse(sender.isSuspended());
+    }
+
+    @Test
+    @DisplayName("should continue where it stopped after the receiver reconnects")
+    void receiverBlip() throws InterruptedException {
+        transferAcrossBlipOf("B");
+    }
+
+    @Test
+    @DisplayName("should continue where it stopped after the sender reconnects")
+    void senderBlip() throws InterruptedException {
+        transferAcrossBlipOf("A");
+    }
+
+    @Test
+    @DisplayName("should resume when chunks queued during the blip reach the receiver before the resend")
+    void queuedChunksAcrossBlip() {
+        OutboundScheduler scheduler = messageA.getOutboundScheduler();
+        AtomicBoolean restored = new AtomicBoolean();
+        // from a quarter of the data on, chunks on the wire are lost with the connection
+        relay.dropEvents((event, args) -> !restored.get() && event.equals(SocketEvent.P2P_EMIT_STREAM)
+                && receiver.getReceivedOffset() >= input.length / 4);
+        // one chunk on the wire, the rest of the window waits in the scheduler
+        scheduler.setMaxInFlight(Lane.BULK, 1);
+        sender.enableResume(10, TimeUnit.SECONDS);
+        receiver.enableResume(10, TimeUnit.SECONDS);
+        sender.setInputStream(new ByteArrayInputStream(input));
+
+        // the receiver sees a gap after the lost chunk once the queued ones arrive
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> scheduler.getQueueDepth(Lane.BULK) > 0
+                && receiver.getReceivedOffset() >= input.length / 4);
+        relay.drop("A");
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> sender.isSuspended() && receiver.isSuspended());
+        restored.set(true);
+        relay.restore("A");
+
+        Awaitility.await().atMost(20, TimeUnit.SECONDS).until(() -> received.size() == input.length);
+        assertArrayEquals(input, received.toByteArray());
+        assertFalse(sender.isSuspended());
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> scheduler.getInFlight(Lane.BULK) == 0);
+    }
+
+    @Test
+    @DisplayName("should be destroyed if not resumed in time")
+    void resumeTimeout() {
+        sender.enableResume(200, TimeUnit.MILLISECONDS);
+        receiver.enableResume(200, TimeUnit.MILLISECONDS);
+
+        relay.drop("B");
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> sender.isDestroyed() && receiver.isDestroyed());
+    }
+
+    @Test
+    @DisplayName("should be destroyed on disconnect unless resumable")
+    void notResumable() {
+        relay.drop("B");
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> sender.isDestroyed() && receiver.isDestroyed());
+    }
+}
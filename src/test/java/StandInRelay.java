@@ -0,0 +1,148 @@
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.socket.client.Ack;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+
+// Relays P2P events between StandInSockets like the relay server does, on a single thread
+// so events and acks are delivered asynchronously and in order, as with a socket.io event thread.
+class StandInRelay {
+    private Map<String, StandInSocket> sockets = new ConcurrentHashMap<>();
+    private Map<String, Object> connections = new ConcurrentHashMap<>(); // clientId -> current connection, absent while dropped
+    // events still arriving after shutdown are dropped, like by a server which is gone
+    private ExecutorService eventThread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), new ThreadPoolExecutor.DiscardPolicy());
+    private volatile BiPredicate<String, JSONArray> dropFilter = (event, args) -> false;
+
+    StandInSocket connect(String clientId) {
+        StandInSocket socket = new StandInSocket();
+        sockets.put(clientId, socket);
+        connections.put(clientId, new Object());
+
+        socket.handle(SocketEvent.P2P_EMIT, args -> relay(clientId, (JSONObject) args[0], null));
+        socket.handle(SocketEvent.P2P_EMIT_ACKNOWLEDGE, args -> relay(clientId, (JSONObject) args[0], (Ack) args[1]));
+        socket.handle(SocketEvent.MULTI_API_CREATE_STREAM, args -> eventThread.execute(() -> {
+            try {
+                JSONObject connectionInfo = copyOf((JSONObject) args[0]);
+                StandInSocket target = sockets.get(connectionInfo.getString("targetClientId"));
+                if (target == null) {
+                    ((Ack) args[1]).call("Could not find target client " + connectionInfo.getString("targetClientId"));
+                    return;
+                }
+
+                connectionInfo.put("sourceClientId", clientId);
+                target.receive(SocketEvent.MULTI_API_CREATE_STREAM, connectionInfo, (Ack) ackArgs ->
+                        eventThread.execute(() -> ((Ack) args[1]).call(ackArgs)));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }));
+        socket.handle(SocketEvent.MULTI_API_ADD_TARGET, args -> eventThread.execute(() -> {
+            StandInSocket target = sockets.get((String) args[0]);
+            if (target == null) ((Ack) args[1]).call("Could not find target client " + args[0]);
+            else target.receive(SocketEvent.MULTI_API_ADD_TARGET, clientId, (Ack) ackArgs ->
+                    eventThread.execute(() -> ((Ack) args[1]).call(ackArgs)));
+        }));
+
+        return socket;
+    }
+
+    // like the server would forward it, binary included (toString would garble byte[] values)
+    private static JSONObject copyOf(JSONObject original) throws JSONException {
+        JSONObject copy = new JSONObject();
+        for (Iterator<?> keys = original.keys(); keys.hasNext(); ) {
+            String key = (String) keys.next();
+            Object value = original.get(key);
+            copy.put(key, value instanceof byte[] ? ((byte[]) value).clone() : value);
+        }
+        return copy;
+    }
+
+    StandInSocket socketOf(String clientId) {
+        return sockets.get(clientId);
+    }
+
+    // simulates the server telling every other client that clientId is gone
+    void disconnect(String clientId) {
+        sockets.remove(clientId);
+        eventThread.execute(() -> {
+            for (StandInSocket socket : sockets.values()) socket.receive(SocketEvent.MULTI_API_TARGET_DISCONNECT, clientId);
+        });
+    }
+
+    // simulates a connection blip: events and acks in transit from or to clientId are lost, and the other clients
+    // are told it is gone until restore()
+    void drop(String clientId) {
+        connections.remove(clientId);
+        eventThread.execute(() -> {
+            sockets.get(clientId).setConnected(false);
+            for (Map.Entry<String, StandInSocket> entry : sockets.entrySet()) {
+                if (!entry.getKey().equals(clientId)) entry.getValue().receive(SocketEvent.MULTI_API_TARGET_DISCONNECT, clientId);
+            }
+        });
+    }
+
+    void restore(String clientId) {
+        eventThread.execute(() -> {
+            connections.put(clientId, new Object());
+            sockets.get(clientId).setConnected(true);
+        });
+    }
+
+    // P2P events for which filter returns true are dropped on their way
+    void dropEvents(BiPredicate<String, JSONArray> filter) {
+        dropFilter = filter;
+    }
+
+    // delivers an event to clientId on the relay thread, as if it came from the server
+    void inject(String clientId, String event, Object... args) {
+        eventThread.execute(() -> sockets.get(clientId).receive(event, args));
+    }
+
+    void shutdown() {
+        eventThread.shutdownNow();
+    }
+
+    private void relay(String senderClientId, JSONObject envelope, Ack ack) {
+        Object senderConnection = connections.get(senderClientId);
+        eventThread.execute(() -> {
+            try {
+                String targetClientId = envelope.getString(EnvelopeEncoder.TARGET_CLIENT_ID);
+                StandInSocket target = sockets.get(targetClientId);
+                Object targetConnection = connections.get(targetClientId);
+                if (target == null || targetConnection == null) return;
+                if (senderConnection == null || connections.get(senderClientId) != senderConnection) return;
+
+                JSONArray args = envelope.getJSONArray(EnvelopeEncoder.ARGS);
+                if (dropFilter.test(envelope.getString(EnvelopeEncoder.EVENT), args)) return;
+                Object[] targetArgs = new Object[args.length() + (ack != null ? 1 : 0)];
+                for (int i = 0; i < args.length(); i++) {
+                    // binary attachments are copied like on the wire, the sender may reuse its array once acked
+                    targetArgs[i] = args.get(i) instanceof byte[] ? ((byte[]) args.get(i)).clone() : args.get(i);
+                }
+                if (ack != null) {
+                    targetArgs[args.length()] = (Ack) ackArgs -> eventThread.execute(() -> {
+                        // acks don't survive a dropped connection on either side
+                        if (connections.get(senderClientId) != senderConnection) return;
+                        if (connections.get(targetClientId) != targetConnection) return;
+                        ack.call(ackArgs);
+                    });
+                }
+
+                target.receive(envelope.getString(EnvelopeEncoder.EVENT), targetArgs);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+}
@@ -0,0 +1,63 @@
+import io.socket.client.Manager;
+import io.socket.client.Socket;
+import io.socket.emitter.Emitter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A socket which never connects: outgoing events are recorded and answered by the handlers registered
+// with handle(), standing in for the relay server in tests that need server behaviour it doesn't have yet.
+class StandInSocket extends Socket {
+    private Map<String, Emitter.Listener> handlers = new ConcurrentHashMap<>();
+    private List<Object[]> emitted = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean connected = true;
+
+    StandInSocket() {
+        super(new Manager(), "/", new Manager.Options());
+    }
+
+    void handle(String event, Emitter.Listener handler) {
+        handlers.put(event, handler);
+    }
+
+    // delivers an event to this socket's listeners as if it came from the server
+    void receive(String event, Object... args) {
+        for (Emitter.Listener listener : listeners(event)) listener.call(args);
+    }
+
+    List<Object[]> emitted(String event) {
+        List<Object[]> result = new ArrayList<>();
+        synchronized (emitted) {
+            for (Object[] packet : emitted) {
+                if (packet[0].equals(event)) result.add(packet);
+            }
+        }
+        return result;
+    }
+
+    // emits the matching connect/disconnect event like a real socket
+    void setConnected(boolean connected) {
+        this.connected = connected;
+        receive(connected ? Socket.EVENT_CONNECT : Socket.EVENT_DISCONNECT);
+    }
+
+    @Override
+    public boolean connected() {
+        return connected;
+    }
+
+    @Override
+    public Emitter emit(String event, Object... args) {
+        Object[] packet = new Object[args.length + 1];
+        packet[0] = event;
+        System.arraycopy(args, 0, packet, 1, args.length);
+        emitted.add(packet);
+
+        Emitter.Listener handler = handlers.get(event);
+        if (handler != null) handler.call(args);
+        return this;
+    }
+}
@@ -13,6 +13,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -92,6 +93,16 @@ public class StreamApiTest {
             Duplex duplex = client1.addP2pStream(client2.getClientId());
             assertEquals(Duplex.class, duplex.getClass());
         }
+
+        @Test
+        @DisplayName("async variant - should open streams concurrently")
+        void shouldOpenStreamsConcurrently() {
+            client2.onAddP2pStream(duplex -> {});
+            java9.util.concurrent.CompletableFuture<Duplex> duplex1 = client1.addP2pStreamAsync(client2.getClientId());
+            java9.util.concurrent.CompletableFuture<Duplex> duplex2 = client1.addP2pStreamAsync(client2.getClientId());
+
+            assertNotSame(duplex1.join(), duplex2.join());
+        }
     }
 
     @Nested
@@ -147,21 +158,17 @@ public class StreamApiTest {
         void shouldBeDestroyable() throws P2pStreamException, InterruptedException {
             int originalCount1 = client1.listeners("disconnect").size();
             int originalCount2 = client1.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size();
-            String sendDataEvent1;
-            AtomicReference<String> sendDataEvent2 = new AtomicReference<>();
 
-            client2.onAddP2pStream(duplex ->
-                    sendDataEvent2.set(SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + duplex.getTargetStreamId()));
+            client2.onAddP2pStream(duplex -> {});
 
             Duplex duplex = client1.addP2pStream(client2.getClientId());
-            sendDataEvent1 = SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + duplex.getTargetStreamId();
 
             assertEquals(originalCount1 + 1, client1.listeners("disconnect").size());
             assertEquals(originalCount1 + 1, client2.listeners("disconnect").size());
             assertEquals(originalCount2 + 1, client1.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
             assertEquals(originalCount2 + 1, client2.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
-            assertEquals(1, client1.listeners(sendDataEvent1).size());
-            assertEquals(1, client2.listeners(sendDataEvent2.get()).size());
+            assertEquals(1, client1.listeners(SocketEvent.P2P_EMIT_STREAM).size());
+            assertEquals(1, client2.listeners(SocketEvent.P2P_EMIT_STREAM).size());
             assertEquals(1, client1.listeners(SocketEvent.PEER_STREAM_DESTROYED).size());
             assertEquals(1, client2.listeners(SocketEvent.PEER_STREAM_DESTROYED).size());
 
@@ -173,8 +180,8 @@ public class StreamApiTest {
             assertEquals(originalCount1, client2.listeners("disconnect").size());
             assertEquals(originalCount2, client1.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
             assertEquals(originalCount2, client2.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
-            assertEquals(0, client1.listeners(sendDataEvent1).size());
-            assertEquals(0, client2.listeners(sendDataEvent2.get()).size());
+            assertEquals(0, client1.listeners(SocketEvent.P2P_EMIT_STREAM).size());
+            assertEquals(0, client2.listeners(SocketEvent.P2P_EMIT_STREAM).size());
             assertEquals(0, client1.listeners(SocketEvent.PEER_STREAM_DESTROYED).size());
             assertEquals(0, client2.listeners(SocketEvent.PEER_STREAM_DESTROYED).size());
             assertTrue(duplex.isDestroyed());
@@ -199,6 +206,30 @@ public class StreamApiTest {
             assertEquals(testPayload, outputStream.toString());
         }
 
+        @Test
+        @DisplayName("should transfer multi-chunk data in order with any window size")
+        void shouldTransferWithWindow() throws P2pStreamException {
+            byte[] testPayload = new byte[1024 * 512];
+            new Random().nextBytes(testPayload);
+
+            for (int windowSize : new int[]{1, 4, 32}) {
+                AtomicReference<Duplex> duplex2 = new AtomicReference<>();
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+                client2.onAddP2pStream(duplex -> {
+                    duplex.addOutputStream(outputStream);
+                    duplex2.set(duplex);
+                });
+                Duplex duplex1 = client1.addP2pStream(client2.getClientId());
+                duplex1.setWindowSize(windowSize);
+                duplex1.setInputStream(new ByteArrayInputStream(testPayload));
+
+                Awaitility.await().until(() -> outputStream.size() == testPayload.length);
+                assertArrayEquals(testPayload, outputStream.toByteArray());
+                duplex1.destroy();
+            }
+        }
+
         @Test
         @DisplayName("should not send data to wrong target")
         void shouldNotSendWrongTarget() throws P2pStreamException, InterruptedException {
@@ -318,7 +349,6 @@ public class StreamApiTest {
         void disconnectionTest() throws P2pStreamException, InterruptedException {
             int originalCount1 = client1.listeners("disconnect").size();
             int originalCount2 = client1.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size();
-            String sendDataEvent1, sendDataEvent2, sendDataEvent3;
             Duplex duplex1, duplex2, duplex3;
             AtomicReference<Duplex> duplex4 = new AtomicReference<>();
 
@@ -330,45 +360,34 @@ public class StreamApiTest {
             duplex2 = client1.addP2pStream(client3.getClientId());
             duplex3 = client1.addP2pStream(client4.getClientId());
 
-            sendDataEvent1 = SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + duplex1.getTargetStreamId();
-            sendDataEvent2 = SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + duplex2.getTargetStreamId();
-            sendDataEvent3 = SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + duplex3.getTargetStreamId();
-
-            assertEquals(1, client1.listeners(sendDataEvent1).size());
-            assertEquals(1, client1.listeners(sendDataEvent2).size());
-            assertEquals(1, client1.listeners(sendDataEvent3).size());
+            // the chunks of every stream arrive on a single event
+            assertEquals(1, client1.listeners(SocketEvent.P2P_EMIT_STREAM).size());
             assertEquals(originalCount1 + 3, client1.listeners("disconnect").size());
             assertEquals(originalCount2 + 3, client1.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
 
             client2.disconnect();
             Thread.sleep(50);
 
-            assertEquals(0, client1.listeners(sendDataEvent1).size());
-            assertEquals(1, client1.listeners(sendDataEvent2).size());
-            assertEquals(1, client1.listeners(sendDataEvent3).size());
+            assertEquals(1, client1.listeners(SocketEvent.P2P_EMIT_STREAM).size());
             assertEquals(originalCount1 + 2, client1.listeners("disconnect").size());
             assertEquals(originalCount2 + 2, client1.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
 
             client3.disconnect();
             Thread.sleep(50);
 
-            assertEquals(0, client1.listeners(sendDataEvent1).size());
-            assertEquals(0, client1.listeners(sendDataEvent2).size());
-            assertEquals(1, client1.listeners(sendDataEvent3).size());
+            assertEquals(1, client1.listeners(SocketEvent.P2P_EMIT_STREAM).size());
             assertEquals(originalCount1 + 1, client1.listeners("disconnect").size());
             assertEquals(originalCount2 + 1, client1.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
 
             client1.disconnect();
             Thread.sleep(50);
 
-            assertEquals(0, client1.listeners(sendDataEvent1).size());
-            assertEquals(0, client1.listeners(sendDataEvent2).size());
-            assertEquals(0, client1.listeners(sendDataEvent3).size());
+            assertEquals(0, client1.listeners(SocketEvent.P2P_EMIT_STREAM).size());
             assertEquals(originalCount1, client1.listeners("disconnect").size());
             assertEquals(originalCount2, client1.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
 
-            String sendDataEvent4 = SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX + duplex4.get().getTargetStreamId();
-            assertEquals(0, client4.listeners(sendDataEvent4).size());
+            assertTrue(duplex4.get().isDestroyed());
+            assertEquals(0, client4.listeners(SocketEvent.P2P_EMIT_STREAM).size());
             assertEquals(originalCount1, client4.listeners("disconnect").size());
             assertEquals(originalCount2, client4.listeners(SocketEvent.MULTI_API_TARGET_DISCONNECT).size());
         }
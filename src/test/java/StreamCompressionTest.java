@@ -0,0 +1,192 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.api.object.stream.ChunkCodec;
+import io.gigasource.p2p_client.api.object.stream.DeflateChunkCodec;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.api.object.stream.StreamMultiplexer;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import org.awaitility.Awaitility;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex compression test")
+class StreamCompressionTest {
+    private StandInRelay relay;
+    private Stream streamA, streamB;
+    private AtomicReference<Duplex> accepted = new AtomicReference<>();
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        streamA = new Stream(relay.connect("A"), new Message(relay.socketOf("A"), "A"));
+        streamB = new Stream(relay.connect("B"), new Message(relay.socketOf("B"), "B"));
+        streamB.onAddP2pStream(accepted::set);
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    private static byte[] jsonLines(int size) {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; lines.length() < size; i++) {
+            lines.append("{\"id\":").append(i).append(",\"level\":\"info\",\"message\":\"request handled\",\"ms\":")
+                    .append(i % 97).append("}\n");
+        }
+        return lines.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    // header flags of the chunks A sent, in order
+    private List<Integer> sentChunkFlags() throws Exception {
+        List<Integer> flags = new ArrayList<>();
+        for (Object[] packet : relay.socketOf("A").emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE)) {
+            JSONObject envelope = (JSONObject) packet[1];
+            if (!envelope.getString(EnvelopeEncoder.EVENT).equals(SocketEvent.P2P_EMIT_STREAM)) continue;
+
+            JSONArray args = envelope.getJSONArray(EnvelopeEncoder.ARGS);
+            flags.add(((byte[]) args.get(1))[12] & 0xff);
+        }
+        return flags;
+    }
+
+    private ByteArrayOutputStream send(Duplex sender, Duplex receiver, byte[] data) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        receiver.addOutputStream(output);
+        sender.setInputStream(new ByteArrayInputStream(data));
+
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> output.size() == data.length);
+        return output;
+    }
+
+    @Test
+    @DisplayName("should compress both directions with the negotiated codec")
+    void negotiatedDeflate() throws Exception {
+        streamA.setCompressStreams(true);
+        Duplex duplexA = streamA.addP2pStreamAsync("B").get(5, TimeUnit.SECONDS);
+        Duplex duplexB = accepted.get();
+
+        assertEquals(DeflateChunkCodec.NAME, duplexA.getCompression());
+        assertEquals(DeflateChunkCodec.NAME, duplexB.getCompression());
+
+        byte[] logs = jsonLines(2 * 1024 * 1024);
+        assertArrayEquals(logs, send(duplexA, duplexB, logs).toByteArray());
+        assertArrayEquals(logs, send(duplexB, duplexA, logs).toByteArray());
+
+        assertTrue(duplexA.getCompressionRatio() < 0.3, "ratio " + duplexA.getCompressionRatio());
+        assertTrue(duplexB.getCompressionRatio() < 0.3, "ratio " + duplexB.getCompressionRatio());
+        assertTrue(sentChunkFlags().stream().allMatch(flags -> flags == 1));
+        // stats count the stream's bytes, not the compressed ones
+        assertEquals(logs.length, duplexA.getStats().getBytesAcked());
+    }
+
+    @Test
+    @DisplayName("should stop compressing incompressible data and probe again later")
+    void backOffOnIncompressibleData() throws Exception {
+        streamA.setCompressStreams(true);
+        Duplex duplexA = streamA.addP2pStreamAsync("B").get(5, TimeUnit.SECONDS);
+        duplexA.setChunkSize(16 * 1024);
+
+        byte[] noise = new byte[1024 * 1024];
+        new Random(22).nextBytes(noise);
+        byte[] data = concat(noise, jsonLines(4 * 1024 * 1024));
+
+        assertArrayEquals(data, send(duplexA, accepted.get(), data).toByteArray());
+
+        List<Integer> flags = sentChunkFlags();
+        int noiseChunks = noise.length / (16 * 1024);
+        assertTrue(flags.subList(0, noiseChunks).stream().allMatch(flag -> flag == 0));
+        // a probe after the noise finds the logs compressible, the rest of them is compressed again
+        assertEquals(1, (int) flags.get(flags.size() - 1));
+        assertTrue(duplexA.getCompressionRatio() < 0.6, "ratio " + duplexA.getCompressionRatio());
+    }
+
+    @Test
+    @DisplayName("should destroy the stream instead of allocating a forged original length")
+    void forgedLength() throws Exception {
+        streamA.setCompressStreams(true);
+        Duplex duplexA = streamA.addP2pStreamAsync("B").get(5, TimeUnit.SECONDS);
+        Duplex duplexB = accepted.get();
+        duplexB.addOutputStream(new ByteArrayOutputStream());
+
+        // the original length of the first compressed chunk becomes 1 GiB on its way
+        relay.dropEvents((event, args) -> {
+            if (!event.equals(SocketEvent.P2P_EMIT_STREAM)) return false;
+            try {
+                byte[] header = (byte[]) args.get(1);
+                if ((header[StreamMultiplexer.HEADER_LENGTH - 1] & 1) != 0) ((byte[]) args.get(2))[0] = 0x40;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return false;
+        });
+        duplexA.setInputStream(new ByteArrayInputStream(jsonLines(256 * 1024)));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(duplexB::isDestroyed);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(duplexA::isDestroyed);
+    }
+
+    @Test
+    @DisplayName("should pick the first offered codec the peer knows")
+    void codecPreference() throws Exception {
+        ChunkCodec fast = new DeflateChunkCodec() {
+            @Override
+            public String getName() {
+                return "fast";
+            }
+
+            @Override
+            public ChunkCodec newInstance() {
+                return new DeflateChunkCodec();
+            }
+        };
+        streamA.setCompressStreams(true);
+        streamA.registerChunkCodec(fast);
+        assertEquals("fast", streamA.getChunkCodecNames().get(0));
+
+        streamA.addP2pStreamAsync("B").get(5, TimeUnit.SECONDS);
+        assertEquals(DeflateChunkCodec.NAME, accepted.get().getCompression());
+
+        streamB.registerChunkCodec(fast);
+        Duplex duplexA = streamA.addP2pStreamAsync("B").get(5, TimeUnit.SECONDS);
+        assertEquals("fast", duplexA.getCompression());
+        assertEquals("fast", accepted.get().getCompression());
+
+        byte[] logs = jsonLines(256 * 1024);
+        assertArrayEquals(logs, send(duplexA, accepted.get(), logs).toByteArray());
+    }
+
+    @Test
+    @DisplayName("should send chunks as they are unless compression is offered")
+    void notOffered() throws Exception {
+        Duplex duplexA = streamA.addP2pStreamAsync("B").get(5, TimeUnit.SECONDS);
+
+        assertNull(duplexA.getCompression());
+        assertNull(accepted.get().getCompression());
+
+        byte[] logs = jsonLines(256 * 1024);
+        assertArrayEquals(logs, send(duplexA, accepted.get(), logs).toByteArray());
+        assertTrue(sentChunkFlags().stream().allMatch(flags -> flags == 0));
+        assertEquals(1.0, duplexA.getCompressionRatio());
+    }
+}
@@ -0,0 +1,65 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.exception.P2pStreamException;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Stream creation timeout test")
+class StreamCreateTimeoutTest {
+    private StandInRelay relay;
+    private Message messageA;
+    private Stream streamA;
+    private AtomicReference<Duplex> accepted = new AtomicReference<>();
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        messageA = new Message(relay.connect("A"), "A");
+        streamA = new Stream(relay.socketOf("A"), messageA);
+        Stream streamB = new Stream(relay.connect("B"), new Message(relay.socketOf("B"), "B"));
+        streamB.onAddP2pStream(duplex -> {
+            accepted.set(duplex);
+            try {
+                Thread.sleep(300); // the ack leaves after A gave up
+            } catch (InterruptedException ignored) {
+            }
+        });
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    @Test
+    @DisplayName("should destroy the peer's stream if its ack arrives after the timeout")
+    void lateAck() {
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> streamA.addP2pStreamAsync("B", 50, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> accepted.get() != null && accepted.get().isDestroyed());
+    }
+
+    @Test
+    @DisplayName("should destroy the peer's stream if an optimistic open is acked after the timeout")
+    void lateOpenAck() {
+        messageA.setAckTimeout(50, TimeUnit.MILLISECONDS);
+        Duplex duplexA = streamA.openP2pStream("B", new byte[]{1, 2, 3});
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> duplexA.getOpenFuture().get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof P2pStreamException);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(duplexA::isDestroyed);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> accepted.get() != null && accepted.get().isDestroyed());
+    }
+}
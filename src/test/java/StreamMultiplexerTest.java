@@ -0,0 +1,281 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler;
+import io.gigasource.p2p_client.api.object.message.OutboundScheduler.Lane;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.api.object.stream.StreamMultiplexer;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.socket.client.Ack;
+import org.awaitility.Awaitility;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex stream multiplexing test")
+class StreamMultiplexerTest {
+    private StandInRelay relay;
+    private Message messageA, messageB;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        messageA = new Message(relay.connect("A"), "A");
+        messageB = new Message(relay.connect("B"), "B");
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    @Test
+    @DisplayName("should receive the chunks of every stream through one listener")
+    void singleListener() {
+        int streamCount = 500;
+        List<Duplex> senders = new ArrayList<>();
+        List<Duplex> receivers = new ArrayList<>();
+
+        for (int i = 0; i < streamCount; i++) {
+            String sourceStreamId = UUID.randomUUID().toString();
+            String targetStreamId = UUID.randomUUID().toString();
+            senders.add(new Duplex(relay.socketOf("A"), messageA, "B", sourceStreamId, targetStreamId));
+            receivers.add(new Duplex(relay.socketOf("B"), messageB, "A", targetStreamId, sourceStreamId));
+        }
+
+        assertEquals(1, relay.socketOf("A").listeners(SocketEvent.P2P_EMIT_STREAM).size());
+        assertEquals(1, relay.socketOf("B").listeners(SocketEvent.P2P_EMIT_STREAM).size());
+        assertEquals(streamCount, messageB.getStreamMultiplexer().getStreamCount());
+
+        // one small message per stream, each has to end up in its own stream
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            receivers.get(i).addOutputStream(output);
+            outputs.add(output);
+            senders.get(i).setInputStream(new ByteArrayInputStream(("stream " + i).getBytes()));
+        }
+
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> {
+            for (int i = 0; i < streamCount; i++) {
+                if (!outputs.get(i).toString().equals("stream " + i)) return false;
+            }
+            return true;
+        });
+
+        for (Duplex sender : senders) sender.destroy();
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> messageB.getStreamMultiplexer().getStreamCount() == 0);
+        assertEquals(0, messageA.getStreamMultiplexer().getStreamCount());
+        assertEquals(0, relay.socketOf("A").listeners(SocketEvent.P2P_EMIT_STREAM).size());
+        assertEquals(0, relay.socketOf("B").listeners(SocketEvent.P2P_EMIT_STREAM).size());
+    }
+
+    @Test
+    @DisplayName("should give the bulk slots of destroyed streams back")
+    void destroyedStreamsFreeSlots() {
+        int streamCount = OutboundScheduler.DEFAULT_BULK_MAX_IN_FLIGHT + 8;
+        OutboundScheduler scheduler = messageA.getOutboundScheduler();
+        AtomicBoolean dropping = new AtomicBoolean(true);
+        relay.dropEvents((event, args) -> dropping.get() && event.equals(SocketEvent.P2P_EMIT_STREAM)); // never acked
+
+        List<Duplex> senders = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+            String sourceStreamId = UUID.randomUUID().toString();
+            String targetStreamId = UUID.randomUUID().toString();
+            Duplex sender = new Duplex(relay.socketOf("A"), messageA, "B", sourceStreamId, targetStreamId);
+            new Duplex(relay.socketOf("B"), messageB, "A", targetStreamId, sourceStreamId);
+            sender.setInputStream(new ByteArrayInputStream(("stream " + i).getBytes()));
+            senders.add(sender);
+        }
+        // every stream has slots of its own
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> scheduler.getInFlight(Lane.BULK) == streamCount);
+        assertEquals(0, scheduler.getQueueDepth(Lane.BULK));
+
+        for (Duplex sender : senders) sender.destroy();
+        dropping.set(false);
+        assertEquals(0, scheduler.getInFlight(Lane.BULK));
+
+        Duplex sender = new Duplex(relay.socketOf("A"), messageA, "B", "a", "b");
+        Duplex receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        receiver.addOutputStream(output);
+        sender.setInputStream(new ByteArrayInputStream("after".getBytes()));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> output.toString().equals("after"));
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> scheduler.getInFlight(Lane.BULK) == 0);
+    }
+
+    @Test
+    @DisplayName("should keep streaming to a target while another one holds its acks back")
+    void stalledTarget() {
+        Message messageC = new Message(relay.connect("C"), "C");
+        OutboundScheduler scheduler = messageA.getOutboundScheduler();
+        // together their windows are more than the bulk lane's limit
+        int stalledCount = OutboundScheduler.DEFAULT_BULK_MAX_IN_FLIGHT / Duplex.DEFAULT_WINDOW_SIZE + 1;
+
+        for (int i = 0; i < stalledCount; i++) {
+            String sourceStreamId = UUID.randomUUID().toString();
+            String targetStreamId = UUID.randomUUID().toString();
+            Duplex sender = new Duplex(relay.socketOf("A"), messageA, "C", sourceStreamId, targetStreamId);
+            Duplex receiver = new Duplex(relay.socketOf("C"), messageC, "A", targetStreamId, sourceStreamId);
+            // C never writes what it receives, so it acks nothing over its receive budget
+            receiver.setMaxReceiveQueueBytes(1);
+            receiver.setReceiveExecutor(task -> {
+            });
+            sender.setInputStream(new ByteArrayInputStream(new byte[1024 * 1024]));
+        }
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> scheduler.getInFlight(Lane.BULK) == stalledCount * Duplex.DEFAULT_WINDOW_SIZE);
+
+        Duplex sender = new Duplex(relay.socketOf("A"), messageA, "B", "a", "b");
+        Duplex receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        receiver.addOutputStream(output);
+        sender.setInputStream(new ByteArrayInputStream(new byte[1024 * 1024]));
+
+        // well before C's chunks time out
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> output.size() == 1024 * 1024);
+        assertEquals(stalledCount * Duplex.DEFAULT_WINDOW_SIZE, scheduler.getInFlight(Lane.BULK));
+    }
+
+    @Test
+    @DisplayName("should destroy a stream right away while the outbound queue is full")
+    void destroyWhenQueueFull() {
+        Duplex sender = new Duplex(relay.socketOf("A"), messageA, "B", "a", "b");
+        Duplex receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+        OutboundScheduler scheduler = messageA.getOutboundScheduler();
+        relay.dropEvents((event, args) -> event.equals("rpc")); // never acked
+        messageA.setOutboundWatermarks(1, 2);
+        for (int i = 0; i < 2; i++) messageA.emitTo("B", "rpc", (Ack) args -> {});
+        assertFalse(scheduler.isWritable());
+
+        // BLOCK would wait the block timeout for a regular message
+        long start = System.nanoTime();
+        sender.destroy();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertTrue(sender.isDestroyed());
+        assertEquals(0, messageA.getStreamMultiplexer().getStreamCount()); // cleaned up before the peer is told
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(receiver::isDestroyed);
+    }
+
+    @Test
+    @DisplayName("should drop chunks of streams which are not open")
+    void unknownStream() {
+        Duplex receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        receiver.addOutputStream(output);
+
+        // a stream of A which B does not know, and a stream of B which was already destroyed
+        Duplex unknown = new Duplex(relay.socketOf("A"), messageA, "B", "x", "y");
+        Duplex destroyed = new Duplex(relay.socketOf("B"), messageB, "A", "z", "w");
+        destroyed.destroy();
+        Duplex sender = new Duplex(relay.socketOf("A"), messageA, "B", "w", "z");
+
+        unknown.setInputStream(new ByteArrayInputStream("unknown".getBytes()));
+        sender.setInputStream(new ByteArrayInputStream("destroyed".getBytes()));
+        new Duplex(relay.socketOf("A"), messageA, "B", "a", "b").setInputStream(new ByteArrayInputStream("ok".getBytes()));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> output.toString().equals("ok"));
+        // dropped chunks are acked all the same, nothing keeps a slot of the bulk lane
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> unknown.getStats().getInFlightChunks() == 0);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> messageA.getOutboundScheduler().getInFlight(Lane.BULK) == 0);
+    }
+
+    @Test
+    @DisplayName("should fall back to the per-stream event for peers which don't multiplex")
+    void legacyPeer() throws Exception {
+        Stream streamA = new Stream(relay.socketOf("A"), messageA);
+        AtomicReference<Duplex> accepted = new AtomicReference<>();
+        // B answers the create request like a client which doesn't know multiplexing: with an empty ack
+        relay.socketOf("B").on(SocketEvent.MULTI_API_CREATE_STREAM, args -> {
+            JSONObject connectionInfo = (JSONObject) args[0];
+            try {
+                Duplex duplex = new Duplex(relay.socketOf("B"), messageB, "A",
+                        connectionInfo.getString("targetStreamId"), connectionInfo.getString("sourceStreamId"));
+                duplex.setMultiplexed(false);
+                accepted.set(duplex);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            ((Ack) args[args.length - 1]).call();
+        });
+
+        Duplex duplexA = streamA.addP2pStreamAsync("B").get(5, TimeUnit.SECONDS);
+        assertFalse(duplexA.isMultiplexed());
+        assertEquals(0, messageA.getStreamMultiplexer().getStreamCount());
+        assertEquals(0, messageB.getStreamMultiplexer().getStreamCount());
+
+        ByteArrayOutputStream outputA = new ByteArrayOutputStream();
+        ByteArrayOutputStream outputB = new ByteArrayOutputStream();
+        duplexA.addOutputStream(outputA);
+        accepted.get().addOutputStream(outputB);
+        duplexA.setInputStream(new ByteArrayInputStream("from A".getBytes()));
+        accepted.get().setInputStream(new ByteArrayInputStream("from B".getBytes()));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> outputB.toString().equals("from A"));
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> outputA.toString().equals("from B"));
+
+        List<String> sentEvents = new ArrayList<>();
+        for (Object[] packet : relay.socketOf("A").emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE)) {
+            sentEvents.add(((JSONObject) packet[1]).getString(EnvelopeEncoder.EVENT));
+        }
+        assertTrue(sentEvents.stream().anyMatch(event ->
+                event.startsWith(SocketEvent.P2P_EMIT_STREAM + SocketEvent.STREAM_IDENTIFIER_PREFIX)));
+        assertFalse(sentEvents.contains(SocketEvent.P2P_EMIT_STREAM));
+    }
+
+    @Test
+    @DisplayName("should negotiate multiplexing with peers which know it")
+    void multiplexedPeer() throws Exception {
+        Stream streamA = new Stream(relay.socketOf("A"), messageA);
+        Stream streamB = new Stream(relay.socketOf("B"), messageB);
+        AtomicReference<Duplex> accepted = new AtomicReference<>();
+        streamB.onAddP2pStream(accepted::set);
+
+        Duplex duplexA = streamA.addP2pStreamAsync("B").get(5, TimeUnit.SECONDS);
+        assertTrue(duplexA.isMultiplexed());
+        assertTrue(accepted.get().isMultiplexed());
+        assertEquals(1, messageB.getStreamMultiplexer().getStreamCount());
+    }
+
+    @Test
+    @DisplayName("should answer malformed chunks with an error")
+    void malformedChunks() {
+        Duplex receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+        List<Object> answers = new CopyOnWriteArrayList<>();
+
+        relay.inject("B", SocketEvent.P2P_EMIT_STREAM, "A", new byte[StreamMultiplexer.HEADER_LENGTH - 1], new byte[1],
+                (Ack) args -> answers.add(args[0]));
+        relay.inject("B", SocketEvent.P2P_EMIT_STREAM, "A", "header", new byte[1], (Ack) args -> answers.add(args[0]));
+        relay.inject("B", SocketEvent.P2P_EMIT_STREAM, "A", (Ack) args -> answers.add(args[0]));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> answers.size() == 3);
+        for (Object answer : answers) assertEquals("Malformed chunk from A", answer);
+        assertEquals(0, receiver.getReceivedOffset());
+        assertFalse(receiver.isDestroyed());
+    }
+
+    @Test
+    @DisplayName("should derive the same key from the same stream id")
+    void streamKeys() {
+        String streamId = UUID.randomUUID().toString();
+
+        assertEquals(StreamMultiplexer.streamKeyOf(streamId), StreamMultiplexer.streamKeyOf(new String(streamId)));
+        assertNotEquals(StreamMultiplexer.streamKeyOf("a1"), StreamMultiplexer.streamKeyOf("a2"));
+    }
+}
@@ -0,0 +1,98 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Duplex input pump test")
+class StreamPumpTest {
+    private StandInRelay relay;
+    private Message messageA, messageB;
+    private ExecutorService pumpThreads;
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        messageA = new Message(relay.connect("A"), "A");
+        messageB = new Message(relay.connect("B"), "B");
+        pumpThreads = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    void shutdown() {
+        pumpThreads.shutdownNow();
+        relay.shutdown();
+    }
+
+    @Test
+    @DisplayName("should pump many streams on a bounded executor")
+    void manyStreamsFewThreads() {
+        int streamCount = 200;
+        Set<String> pumpThreadNames = ConcurrentHashMap.newKeySet();
+        List<byte[]> inputs = new ArrayList<>();
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        Random random = new Random(1);
+
+        for (int i = 0; i < streamCount; i++) {
+            Duplex sender = new Duplex(relay.socketOf("A"), messageA, "B", "a" + i, "b" + i);
+            Duplex receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b" + i, "a" + i);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            receiver.addOutputStream(output);
+
+            byte[] input = new byte[100 * 1024 + i];
+            random.nextBytes(input);
+            inputs.add(input);
+            outputs.add(output);
+
+            sender.setWindowSize(2);
+            sender.setPumpExecutor(task -> pumpThreads.execute(() -> {
+                pumpThreadNames.add(Thread.currentThread().getName());
+                task.run();
+            }));
+            sender.setInputStream(new ByteArrayInputStream(input));
+        }
+
+        Awaitility.await().atMost(30, TimeUnit.SECONDS).until(() -> {
+            for (int i = 0; i < streamCount; i++) {
+                if (outputs.get(i).size() != inputs.get(i).length) return false;
+            }
+            return true;
+        });
+
+        for (int i = 0; i < streamCount; i++) assertArrayEquals(inputs.get(i), outputs.get(i).toByteArray());
+        assertTrue(pumpThreadNames.size() <= 2);
+    }
+
+    @Test
+    @DisplayName("should stop pumping once destroyed")
+    void stopOnDestroy() throws InterruptedException {
+        Duplex sender = new Duplex(relay.socketOf("A"), messageA, "B", "a", "b");
+        Duplex receiver = new Duplex(relay.socketOf("B"), messageB, "A", "b", "a");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        receiver.addOutputStream(output);
+
+        sender.setPumpExecutor(pumpThreads);
+        sender.setInputStream(new ByteArrayInputStream(new byte[64 * 1024 * 1024]));
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> output.size() > 0);
+
+        sender.destroy();
+        Thread.sleep(200);
+        int received = output.size();
+        Thread.sleep(200);
+
+        assertEquals(received, output.size());
+        assertTrue(received < 64 * 1024 * 1024);
+    }
+}
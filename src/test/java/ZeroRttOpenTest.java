@@ -0,0 +1,119 @@
+import io.gigasource.p2p_client.api.Message;
+import io.gigasource.p2p_client.api.Stream;
+import io.gigasource.p2p_client.api.object.message.EnvelopeEncoder;
+import io.gigasource.p2p_client.api.object.stream.Duplex;
+import io.gigasource.p2p_client.constants.SocketEvent;
+import io.gigasource.p2p_client.exception.P2pStreamException;
+import org.awaitility.Awaitility;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Zero round trip stream open test")
+class ZeroRttOpenTest {
+    private StandInRelay relay;
+    private Stream streamA, streamB;
+    private AtomicReference<Duplex> accepted = new AtomicReference<>();
+    private ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void init() {
+        relay = new StandInRelay();
+        streamA = new Stream(relay.connect("A"), new Message(relay.socketOf("A"), "A"));
+        streamB = new Stream(relay.connect("B"), new Message(relay.socketOf("B"), "B"));
+        streamB.onAddP2pStream(duplex -> {
+            duplex.addOutputStream(received);
+            accepted.set(duplex);
+        });
+    }
+
+    @AfterEach
+    void shutdown() {
+        relay.shutdown();
+    }
+
+    private long sentChunkCount() throws Exception {
+        long count = 0;
+        for (Object[] packet : relay.socketOf("A").emitted(SocketEvent.P2P_EMIT_ACKNOWLEDGE)) {
+            if (((JSONObject) packet[1]).getString(EnvelopeEncoder.EVENT).equals(SocketEvent.P2P_EMIT_STREAM)) count++;
+        }
+        return count;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    @Test
+    @DisplayName("should deliver early data with the create request")
+    void earlyDataWithOpen() throws Exception {
+        byte[] request = "GET /status".getBytes(StandardCharsets.UTF_8);
+        Duplex duplexA = streamA.openP2pStream("B", request);
+
+        assertSame(duplexA, duplexA.getOpenFuture().get(5, TimeUnit.SECONDS));
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> received.size() == request.length);
+        assertArrayEquals(request, received.toByteArray());
+        // acked along with the stream, no chunk of its own
+        assertEquals(0, sentChunkCount());
+        assertEquals(request.length, duplexA.getStats().getBytesAcked());
+
+        byte[] response = "200 OK".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream responseOutput = new ByteArrayOutputStream();
+        duplexA.addOutputStream(responseOutput);
+        accepted.get().setInputStream(new ByteArrayInputStream(response));
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> responseOutput.size() == response.length);
+        assertArrayEquals(response, responseOutput.toByteArray());
+    }
+
+    @Test
+    @DisplayName("should hold writes back until the peer acked, then send them after the early data")
+    void writesHeldUntilAck() throws Exception {
+        streamA.setCompressStreams(true);
+        byte[] early = new byte[Duplex.MAX_EARLY_DATA];
+        byte[] rest = new byte[1024 * 1024];
+        new Random(24).nextBytes(early);
+        new Random(25).nextBytes(rest);
+
+        Duplex duplexA = streamA.openP2pStream("B", early);
+        duplexA.setInputStream(new ByteArrayInputStream(rest));
+
+        byte[] expected = concat(early, rest);
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> received.size() == expected.length);
+        assertArrayEquals(expected, received.toByteArray());
+        assertTrue(duplexA.getOpenFuture().isDone());
+        assertNotNull(duplexA.getCompression());
+    }
+
+    @Test
+    @DisplayName("should fail the open and drop what was written if the peer refuses the stream")
+    void refused() throws Exception {
+        new Stream(relay.connect("C"), new Message(relay.socketOf("C"), "C")); // not listening
+        Duplex duplexA = streamA.openP2pStream("C", "hello".getBytes(StandardCharsets.UTF_8));
+        duplexA.setInputStream(new ByteArrayInputStream(new byte[256 * 1024]));
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> duplexA.getOpenFuture().get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof P2pStreamException);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(duplexA::isDestroyed);
+        assertEquals(0, sentChunkCount());
+    }
+
+    @Test
+    @DisplayName("should refuse more early data than the budget")
+    void earlyDataBudget() {
+        assertThrows(IllegalArgumentException.class,
+                () -> streamA.openP2pStream("B", new byte[Duplex.MAX_EARLY_DATA + 1]));
+    }
+}